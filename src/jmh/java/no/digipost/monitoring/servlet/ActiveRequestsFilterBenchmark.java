@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+
+import static no.digipost.monitoring.servlet.ActiveRequestsFilter.Config.forMaxThreads;
+
+/**
+ * Throughput and allocation of {@link ActiveRequestsFilter#doFilter}, and the cost of reading its gauges
+ * with many requests in flight, for each way of tracking requests.
+ * <p>
+ * Run {@link #main(String[])} to measure filtering with 1, 4, 16 and 64 threads and the GC profiler, or
+ * run a single configuration with e.g.
+ * <code>mvn -Pjmh test-compile exec:exec -Djmh.args="ActiveRequestsFilterBenchmark.filter -t 16 -prof gc"</code>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ActiveRequestsFilterBenchmark {
+
+    private static final Duration LONG_RUNNING_THRESHOLD = Duration.ofMinutes(1);
+
+    @State(Scope.Benchmark)
+    public static class Filtering {
+
+        @Param({"map", "lockFree"})
+        public String tracking;
+
+        @Param({"false", "true"})
+        public boolean routeMetrics;
+
+        ActiveRequestsFilter filter;
+        HttpServletRequest request;
+        ServletResponse response;
+        FilterChain chain;
+
+        @Setup
+        public void setUp(Blackhole blackhole) {
+            ActiveRequestsFilter.Config config = tracking(forMaxThreads(200), tracking);
+            filter = new ActiveRequestsFilter(new SimpleMeterRegistry(), routeMetrics ? config.routeMetrics() : config);
+            request = stubRequest("GET", "/api/documents/12345");
+            response = stub(HttpServletResponse.class);
+            chain = (req, res) -> blackhole.consume(req);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class InFlight {
+
+        @Param({"map", "lockFree"})
+        public String tracking;
+
+        @Param({"10", "1000", "100000"})
+        public int requests;
+
+        Gauge active;
+        Gauge longRunning;
+        private ActiveRequestsFilter filter;
+        private long[] handles;
+
+        /**
+         * Starts the requests with ages spread evenly over twice the long-running threshold,
+         * so that half of them are long-running.
+         */
+        @Setup(Level.Trial)
+        public void setUp() {
+            SimpleMeterRegistry registry = new SimpleMeterRegistry();
+            ActiveRequestsFilter.Config config = forMaxThreads(200).longRunningThreshold(LONG_RUNNING_THRESHOLD);
+            filter = new ActiveRequestsFilter(registry, "lockFree".equals(tracking) ? config.lockFreeTracking(requests * 2) : config);
+            handles = new long[requests];
+            long now = System.nanoTime();
+            long spread = LONG_RUNNING_THRESHOLD.toNanos() * 2 / requests;
+            for (int i = 0; i < requests; i++) {
+                handles[i] = filter.tracker.start("/api/documents/" + i, "GET", now - i * spread);
+            }
+            active = registry.get("app_http_requests_active").gauge();
+            longRunning = registry.get("app_http_requests_longrunning").gauge();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            for (long handle : handles) {
+                filter.tracker.end(handle);
+            }
+        }
+    }
+
+    @Benchmark
+    public void filter(Filtering state) throws Exception {
+        state.filter.doFilter(state.request, state.response, state.chain);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public double readActive(InFlight state) {
+        return state.active.value();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public double readLongRunning(InFlight state) {
+        return state.longRunning.value();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[] {1, 4, 16, 64}) {
+            new Runner(new OptionsBuilder()
+                    .include(ActiveRequestsFilterBenchmark.class.getName() + ".filter")
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .build())
+                    .run();
+        }
+    }
+
+    private static ActiveRequestsFilter.Config tracking(ActiveRequestsFilter.Config config, String tracking) {
+        return "lockFree".equals(tracking) ? config.lockFreeTracking() : config;
+    }
+
+    /**
+     * A request answering only what the filter asks for, without the recording and allocation of a mocking library.
+     */
+    private static HttpServletRequest stubRequest(String method, String uri) {
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class}, (proxy, m, args) -> {
+            switch (m.getName()) {
+                case "getMethod": return method;
+                case "getRequestURI": return uri;
+                case "getDispatcherType": return DispatcherType.REQUEST;
+                case "isAsyncStarted": return Boolean.FALSE;
+                default: return null;
+            }
+        });
+    }
+
+    private static <T> T stub(Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, m, args) -> null));
+    }
+
+}
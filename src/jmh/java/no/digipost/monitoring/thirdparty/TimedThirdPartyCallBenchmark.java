@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.thirdparty;
+
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import no.digipost.monitoring.micrometer.AppStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Time and allocation of {@link TimedThirdPartyCall}, which should be 0 B/op with
+ * <code>-prof gc</code> for all but the status mapper taking an <code>Optional</code>
+ * when the call throws.
+ * <p>
+ * <code>mvn -Pjmh test-compile exec:exec -Djmh.args="TimedThirdPartyCallBenchmark -prof gc"</code>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimedThirdPartyCallBenchmark {
+
+    private static final String RESULT = "result";
+    private static final Supplier<String> CALL = () -> RESULT;
+    private static final Runnable NO_RESULT_CALL = () -> {};
+
+    private TimedThirdPartyCall<String> exceptionAsFailure;
+    private TimedThirdPartyCall<String> callStatus;
+    private TimedThirdPartyCall<String> callResponseStatus;
+    private NoResultTimedThirdPartyCall noResult;
+
+    @Setup
+    public void setUp() {
+        PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        exceptionAsFailure = TimedThirdPartyCallDescriptor.create("Benchmark", "exceptionAsFailure", registry).exceptionAsFailure();
+        callStatus = TimedThirdPartyCallDescriptor.create("Benchmark", "callStatus", registry)
+                .callStatus((result, thrown) -> thrown != null ? AppStatus.FAILED : result.isEmpty() ? AppStatus.WARN : AppStatus.OK);
+        callResponseStatus = TimedThirdPartyCallDescriptor.create("Benchmark", "callResponseStatus", registry)
+                .callResponseStatus((result, thrown) -> thrown.isPresent() ? AppStatus.FAILED : AppStatus.OK);
+        noResult = TimedThirdPartyCallDescriptor.create("Benchmark", "noResult", registry).noResult().exceptionAsFailure();
+    }
+
+    @Benchmark
+    public String exceptionAsFailure() {
+        return exceptionAsFailure.call(CALL);
+    }
+
+    @Benchmark
+    public String callStatus() {
+        return callStatus.call(CALL);
+    }
+
+    @Benchmark
+    public String callResponseStatus() {
+        return callResponseStatus.call(CALL);
+    }
+
+    @Benchmark
+    public void noResult() {
+        noResult.call(NO_RESULT_CALL);
+    }
+
+}
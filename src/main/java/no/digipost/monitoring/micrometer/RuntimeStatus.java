@@ -24,7 +24,7 @@ package no.digipost.monitoring.micrometer;
  */
 public class RuntimeStatus {
 
-    private State state = State.STARTING;
+    private volatile State state = State.STARTING;
 
     public void set(State newState) {
         state = newState;
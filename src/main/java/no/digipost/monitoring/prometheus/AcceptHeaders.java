@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+/**
+ * Parsing of the elements of {@code Accept} and {@code Accept-Encoding} request headers.
+ */
+final class AcceptHeaders {
+
+    /**
+     * @param parameters an element of the header split on {@code ';'}, where the first value
+     *                   is the media range or content coding, and the rest are its parameters
+     * @return the quality value given by the {@code q} parameter, {@code 1} if not present,
+     *         and {@code 0} if it can not be parsed
+     */
+    static double quality(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    private AcceptHeaders() {}
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A small pool of equally sized byte buffers, to let each scrape reuse the buffer
+ * of a previous scrape instead of allocating a new one.
+ * <p>
+ * Buffers are allocated on demand if the pool is empty, and a released buffer is
+ * simply dropped if the pool is already full.
+ */
+final class BufferPool {
+
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    static final int DEFAULT_MAX_POOLED_BUFFERS = 4;
+
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> pooled;
+
+    BufferPool(int bufferSize, int maxPooledBuffers) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive, was " + bufferSize);
+        }
+        if (maxPooledBuffers <= 0) {
+            throw new IllegalArgumentException("maxPooledBuffers must be positive, was " + maxPooledBuffers);
+        }
+        this.bufferSize = bufferSize;
+        this.pooled = new ArrayBlockingQueue<>(maxPooledBuffers);
+    }
+
+    byte[] acquire() {
+        byte[] buffer = pooled.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    void release(byte[] buffer) {
+        if (buffer.length == bufferSize) {
+            pooled.offer(buffer);
+        }
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Streaming encoder for the {@code gzip} and {@code deflate} HTTP content codings,
+ * which also keeps track of the time actually spent compressing. Writing the
+ * compressed output to the underlying stream is not included in the measured time.
+ */
+final class CompressingOutputStream extends DeflaterOutputStream {
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final CRC32 crc;
+    private final Completion completion;
+    private long compressionNanos;
+    private boolean finished;
+    private boolean closed;
+
+    interface Completion {
+        void compressed(long uncompressedBytes, long compressedBytes, long compressionNanos);
+    }
+
+    static CompressingOutputStream gzip(OutputStream out, int level, Completion completion) throws IOException {
+        out.write(GZIP_HEADER);
+        return new CompressingOutputStream(out, new Deflater(level, true), new CRC32(), completion);
+    }
+
+    static CompressingOutputStream deflate(OutputStream out, int level, Completion completion) {
+        return new CompressingOutputStream(out, new Deflater(level, false), null, completion);
+    }
+
+    private CompressingOutputStream(OutputStream out, Deflater deflater, CRC32 crc, Completion completion) {
+        super(out, deflater, 8192);
+        this.crc = crc;
+        this.completion = completion;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        if (crc != null) {
+            crc.update(b, off, len);
+        }
+    }
+
+    @Override
+    protected void deflate() throws IOException {
+        long start = System.nanoTime();
+        int len = def.deflate(buf, 0, buf.length);
+        compressionNanos += System.nanoTime() - start;
+        if (len > 0) {
+            out.write(buf, 0, len);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        def.finish();
+        while (!def.finished()) {
+            deflate();
+        }
+        if (crc != null) {
+            writeIntLittleEndian((int) crc.getValue());
+            writeIntLittleEndian(def.getTotalIn());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+            long uncompressed = def.getBytesRead();
+            long compressed = def.getBytesWritten() + (crc != null ? GZIP_HEADER.length + 8 : 0);
+            completion.compressed(uncompressed, compressed, compressionNanos);
+            out.close();
+        } finally {
+            def.end();
+        }
+    }
+
+    private void writeIntLittleEndian(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+
+}
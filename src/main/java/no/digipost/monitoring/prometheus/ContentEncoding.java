@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import java.util.Locale;
+
+/**
+ * The content codings supported for the scrape response, negotiated from
+ * the {@code Accept-Encoding} request header.
+ */
+enum ContentEncoding {
+
+    GZIP("gzip"), DEFLATE("deflate"), IDENTITY("identity");
+
+    final String headerValue;
+
+    ContentEncoding(String headerValue) {
+        this.headerValue = headerValue;
+    }
+
+    /**
+     * Resolve the preferred supported encoding from an {@code Accept-Encoding} header value,
+     * taking quality values into account. On equal quality, {@link #GZIP} is preferred
+     * over {@link #DEFLATE}.
+     *
+     * @param acceptEncoding the header value, may be {@code null}
+     * @return the encoding to use, {@link #IDENTITY} if none of the compressing encodings are acceptable
+     */
+    static ContentEncoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return IDENTITY;
+        }
+        double gzipQuality = 0;
+        double deflateQuality = 0;
+        double wildcardQuality = 0;
+        boolean gzipListed = false;
+        boolean deflateListed = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim().toLowerCase(Locale.ROOT);
+            double quality = AcceptHeaders.quality(parameters);
+            if (name.equals(GZIP.headerValue) || name.equals("x-gzip")) {
+                gzipQuality = Math.max(gzipQuality, quality);
+                gzipListed = true;
+            } else if (name.equals(DEFLATE.headerValue)) {
+                deflateQuality = Math.max(deflateQuality, quality);
+                deflateListed = true;
+            } else if (name.equals("*")) {
+                wildcardQuality = quality;
+            }
+        }
+        if (!gzipListed) {
+            gzipQuality = wildcardQuality;
+        }
+        if (!deflateListed) {
+            deflateQuality = wildcardQuality;
+        }
+        if (gzipQuality > 0 && gzipQuality >= deflateQuality) {
+            return GZIP;
+        } else if (deflateQuality > 0) {
+            return DEFLATE;
+        } else {
+            return IDENTITY;
+        }
+    }
+
+}
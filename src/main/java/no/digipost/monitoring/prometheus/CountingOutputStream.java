@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written through it, and optionally the samples of a text exposition
+ * format, i.e. the lines not being comments.
+ */
+final class CountingOutputStream extends FilterOutputStream {
+
+    private final boolean countSamples;
+    private long bytes;
+    private long samples;
+    private boolean atLineStart = true;
+
+    /**
+     * @param countSamples whether to count the samples of a text exposition format written through this stream
+     */
+    CountingOutputStream(OutputStream out, boolean countSamples) {
+        super(out);
+        this.countSamples = countSamples;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        bytes++;
+        if (countSamples) {
+            scan((byte) b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytes += len;
+        if (countSamples) {
+            for (int i = off; i < off + len; i++) {
+                scan(b[i]);
+            }
+        }
+    }
+
+    private void scan(byte b) {
+        if (atLineStart && b != '#' && b != '\n') {
+            samples++;
+        }
+        atLineStart = b == '\n';
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    long samples() {
+        return samples;
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import no.digipost.monitoring.db.DbStatus;
+import no.digipost.monitoring.db.DbStatusCollector;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The latest results of checking some databases with {@link DbStatusCollector}s.
+ * The checks are run by {@link #refresh()}, typically on a schedule, and reading
+ * the results never waits for a check in progress. A database which has not yet been
+ * checked, or whose check threw an exception, has the status {@link DbStatus#ERROR}.
+ */
+final class DatabaseStatuses {
+
+    private final DbStatusCollector[] collectors;
+    private final AtomicReferenceArray<DbStatus> results;
+
+    DatabaseStatuses(List<DbStatusCollector> collectors) {
+        this.collectors = collectors.toArray(new DbStatusCollector[0]);
+        this.results = new AtomicReferenceArray<>(this.collectors.length);
+        for (int i = 0; i < this.collectors.length; i++) {
+            results.set(i, DbStatus.ERROR);
+        }
+    }
+
+    void refresh() {
+        for (int i = 0; i < collectors.length; i++) {
+            DbStatus status;
+            try {
+                status = collectors[i].check();
+            } catch (RuntimeException e) {
+                status = DbStatus.ERROR;
+            }
+            results.set(i, status != null ? status : DbStatus.ERROR);
+        }
+    }
+
+    boolean allAvailable() {
+        for (int i = 0; i < collectors.length; i++) {
+            if (results.get(i) == DbStatus.ERROR) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void describeTo(StringBuilder description) {
+        for (int i = 0; i < collectors.length; i++) {
+            description.append("database ").append(collectors[i].type()).append(": ").append(results.get(i)).append('\n');
+        }
+    }
+
+}
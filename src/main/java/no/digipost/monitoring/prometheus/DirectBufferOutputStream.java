@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders a response into direct buffers borrowed from a {@link DirectBufferPool}, handing over each buffer
+ * to be written to a channel as soon as it is full. When all the buffers of the pool are in use, writing waits
+ * until a buffer already handed over has been written and released, so the rendering never gets further ahead
+ * of the connection than the buffers of the pool allow. A rendering also never holds more than a given number of
+ * the buffers of the pool, leaving the rest for other renderings if its connection is slow to read.
+ * <p>
+ * Written to by one thread, which {@link #complete() completes} or {@link #fail() fails} the rendering when done,
+ * and {@link #poll() drained} by another thread, which is notified whenever there is something to drain.
+ */
+final class DirectBufferOutputStream extends OutputStream {
+
+    private final DirectBufferPool pool;
+    private final int maxHeld;
+    private final long maxWaitNanos;
+    private final Runnable onAvailable;
+    private final Queue<ByteBuffer> filled = new ConcurrentLinkedQueue<>();
+    private volatile boolean completed;
+    private volatile boolean failed;
+    private volatile boolean aborted;
+    private ByteBuffer current;
+    private int held;
+
+    /**
+     * @param pool the pool to borrow buffers from
+     * @param maxHeld the max number of buffers held at once, i.e. acquired and not yet released
+     * @param maxWaitNanos the max time to wait for a buffer to be released before failing the rendering
+     * @param onAvailable notified when a buffer has been handed over, or the rendering is done
+     */
+    DirectBufferOutputStream(DirectBufferPool pool, int maxHeld, long maxWaitNanos, Runnable onAvailable) {
+        this.pool = pool;
+        this.maxHeld = maxHeld;
+        this.maxWaitNanos = maxWaitNanos;
+        this.onAvailable = onAvailable;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureRemaining().put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ByteBuffer buffer = ensureRemaining();
+            int chunk = Math.min(len, buffer.remaining());
+            buffer.put(b, off, chunk);
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    private ByteBuffer ensureRemaining() throws IOException {
+        if (current != null && current.hasRemaining()) {
+            return current;
+        }
+        if (current != null) {
+            handOver();
+            onAvailable.run();
+        }
+        long deadline = System.nanoTime() + maxWaitNanos;
+        try {
+            awaitHeldBelowMax(deadline);
+            current = pool.acquire(Math.max(0, deadline - System.nanoTime()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a buffer");
+        }
+        if (current == null) {
+            throw notReading();
+        }
+        synchronized (this) {
+            held++;
+        }
+        return current;
+    }
+
+    private synchronized void awaitHeldBelowMax(long deadline) throws IOException, InterruptedException {
+        while (held >= maxHeld && !aborted) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw notReading();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        if (aborted) {
+            throw new IOException("Rendering aborted, the connection is closed");
+        }
+    }
+
+    private IOException notReading() {
+        return new IOException("No buffer was released within " + maxWaitNanos + " ns, the connection is not reading");
+    }
+
+    private void handOver() {
+        ByteBuffer buffer = current;
+        current = null;
+        filled.add(buffer.flip());
+        if (aborted) {
+            releaseFilled();
+        }
+    }
+
+    /**
+     * Hand over the last buffer, and mark the rendering as completed.
+     */
+    void complete() {
+        if (current != null && current.position() > 0) {
+            handOver();
+        } else if (current != null) {
+            release(current);
+            current = null;
+        }
+        completed = true;
+        onAvailable.run();
+    }
+
+    /**
+     * Discard the rest of the rendering, and mark it as failed.
+     */
+    void fail() {
+        if (current != null) {
+            release(current);
+            current = null;
+        }
+        failed = true;
+        onAvailable.run();
+    }
+
+    /**
+     * Stop the rendering from the draining side, releasing the buffers not yet drained. The rendering
+     * fails when it needs another buffer.
+     */
+    void abort() {
+        aborted = true;
+        releaseFilled();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return whether the rendering is done, i.e. completed or failed. Any buffers handed over before
+     *         it was done are available from {@link #poll()} after this returns {@code true}.
+     */
+    boolean isDone() {
+        return completed || failed;
+    }
+
+    boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return the next buffer which has been handed over, flipped and ready to be read, or {@code null} if none.
+     *         The buffer must be {@link #release(ByteBuffer) released} when written.
+     */
+    ByteBuffer poll() {
+        return filled.poll();
+    }
+
+    /**
+     * Release a buffer of this rendering to the pool, allowing the rendering to acquire another.
+     * Buffers not acquired from the pool are ignored.
+     */
+    void release(ByteBuffer buffer) {
+        if (pool.release(buffer)) {
+            synchronized (this) {
+                held--;
+                notifyAll();
+            }
+        }
+    }
+
+    private void releaseFilled() {
+        ByteBuffer buffer;
+        while ((buffer = filled.poll()) != null) {
+            release(buffer);
+        }
+    }
+
+}
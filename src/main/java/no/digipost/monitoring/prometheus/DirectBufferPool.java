@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded set of equally sized direct byte buffers, shared by a thread filling buffers and a thread
+ * draining them.
+ * <p>
+ * Buffers are allocated on demand, up to the max number of buffers, after which acquiring a buffer waits
+ * until another buffer is released. The memory used by the buffers is therefore never more than the max
+ * number of buffers times the buffer size.
+ */
+final class DirectBufferPool {
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final Deque<ByteBuffer> pooled = new ArrayDeque<>();
+    private int allocated;
+
+    DirectBufferPool(int bufferSize, int maxBuffers) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive, was " + bufferSize);
+        }
+        if (maxBuffers <= 0) {
+            throw new IllegalArgumentException("maxBuffers must be positive, was " + maxBuffers);
+        }
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * @param timeoutNanos the max time to wait for a buffer to be released, if all buffers are in use
+     * @return a buffer, or {@code null} if none was released in time
+     */
+    synchronized ByteBuffer acquire(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (pooled.isEmpty() && allocated >= maxBuffers) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        ByteBuffer buffer = pooled.poll();
+        if (buffer == null) {
+            allocated++;
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * Release a buffer to the pool, if it was acquired from this pool.
+     *
+     * @return whether the buffer was released to the pool
+     */
+    synchronized boolean release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == bufferSize) {
+            pooled.push(buffer.clear());
+            notifyAll();
+            return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import java.util.Locale;
+
+/**
+ * The exposition formats which the scrape can be serialized to, negotiated from
+ * the {@code Accept} request header.
+ * <p>
+ * The content types are passed on to {@link io.micrometer.prometheusmetrics.PrometheusMeterRegistry#scrape(java.io.OutputStream, String)},
+ * which resolves the corresponding writer from them.
+ */
+enum ExpositionFormat {
+
+    PROMETHEUS_PROTOBUF("application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited"),
+    OPENMETRICS_TEXT("application/openmetrics-text; version=1.0.0; charset=utf-8"),
+    PROMETHEUS_TEXT("text/plain; version=0.0.4; charset=utf-8");
+
+    private static final boolean PROTOBUF_AVAILABLE = isClassAvailable("io.prometheus.metrics.expositionformats.internal.PrometheusProtobufWriterImpl");
+
+    final String contentType;
+
+    ExpositionFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * Resolve the preferred format from an {@code Accept} header value. Media ranges with a higher
+     * quality value are preferred, and on equal quality the most efficient format is chosen, i.e.
+     * protobuf over OpenMetrics over the Prometheus text format. Protobuf is only chosen if the
+     * protobuf writer is available on the classpath.
+     *
+     * @param accept the header value, may be {@code null}
+     * @return the format to use, {@link #PROMETHEUS_TEXT} if none of the other formats are acceptable
+     */
+    static ExpositionFormat negotiate(String accept) {
+        if (accept == null || accept.isEmpty()) {
+            return PROMETHEUS_TEXT;
+        }
+        ExpositionFormat preferred = PROMETHEUS_TEXT;
+        double preferredQuality = 0;
+        for (String mediaRange : accept.split(",")) {
+            String[] parameters = mediaRange.split(";");
+            ExpositionFormat format = resolve(parameters);
+            double quality = AcceptHeaders.quality(parameters);
+            if (format != null && quality > 0 && (quality > preferredQuality || (quality == preferredQuality && format.ordinal() < preferred.ordinal()))) {
+                preferred = format;
+                preferredQuality = quality;
+            }
+        }
+        return preferred;
+    }
+
+    private static ExpositionFormat resolve(String[] parameters) {
+        String mediaType = parameters[0].trim().toLowerCase(Locale.ROOT);
+        switch (mediaType) {
+            case "application/vnd.google.protobuf":
+                return PROTOBUF_AVAILABLE && hasParameter(parameters, "proto=io.prometheus.client.MetricFamily") ? PROMETHEUS_PROTOBUF : null;
+            case "application/openmetrics-text":
+                return OPENMETRICS_TEXT;
+            case "text/plain":
+                return PROMETHEUS_TEXT;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean hasParameter(String[] parameters, String parameter) {
+        for (int i = 1; i < parameters.length; i++) {
+            if (parameters[i].trim().equals(parameter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isClassAvailable(String className) {
+        try {
+            Class.forName(className, false, ExpositionFormat.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import no.digipost.monitoring.micrometer.RuntimeStatus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Answers liveness or readiness probes, only from the current {@link RuntimeStatus}
+ * and the latest known {@link DatabaseStatuses}, and so never blocks on anything else.
+ * <ul>
+ *   <li>The application is <em>live</em> unless it is {@link RuntimeStatus.State#OFFLINE OFFLINE}.</li>
+ *   <li>The application is <em>ready</em> when it is {@link RuntimeStatus.State#ONLINE ONLINE}
+ *       and all databases are available.</li>
+ * </ul>
+ * The response is <code>200 OK</code> or <code>503 Service Unavailable</code>, with a short plain
+ * text description of the status.
+ */
+final class HealthHandler implements HttpHandler {
+
+    static final String LIVE_PATH = "/health/live";
+    static final String READY_PATH = "/health/ready";
+
+    private final RuntimeStatus runtimeStatus;
+    private final DatabaseStatuses databases;
+    private final boolean readiness;
+
+    /**
+     * @param databases the databases which must be available to be ready, or {@code null}
+     * @param readiness {@code true} to answer readiness probes, {@code false} for liveness probes
+     */
+    HealthHandler(RuntimeStatus runtimeStatus, DatabaseStatuses databases, boolean readiness) {
+        this.runtimeStatus = runtimeStatus;
+        this.databases = databases;
+        this.readiness = readiness;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            RuntimeStatus.State state = runtimeStatus.get();
+            boolean healthy;
+            StringBuilder description = new StringBuilder(64).append(state).append('\n');
+            if (readiness) {
+                healthy = state == RuntimeStatus.State.ONLINE;
+                if (databases != null) {
+                    healthy &= databases.allAvailable();
+                    databases.describeTo(description);
+                }
+            } else {
+                healthy = state != RuntimeStatus.State.OFFLINE;
+            }
+            byte[] body = description.toString().getBytes(UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            boolean head = "HEAD".equals(exchange.getRequestMethod());
+            exchange.sendResponseHeaders(healthy ? 200 : 503, head ? -1 : body.length);
+            if (!head) {
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+}
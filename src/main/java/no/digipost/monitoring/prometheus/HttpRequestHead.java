@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * The request line and the few headers of an HTTP/1.x request which are relevant
+ * for serving metrics.
+ */
+final class HttpRequestHead {
+
+    final String method;
+    final String path;
+    final String rawQuery;
+    final String accept;
+    final boolean keepAlive;
+    final boolean hasBody;
+
+    private HttpRequestHead(String method, String path, String rawQuery, String accept, boolean keepAlive, boolean hasBody) {
+        this.method = method;
+        this.path = path;
+        this.rawQuery = rawQuery;
+        this.accept = accept;
+        this.keepAlive = keepAlive;
+        this.hasBody = hasBody;
+    }
+
+    /**
+     * Find the end of the request head, i.e. the empty line ending the headers.
+     *
+     * @return the index right after the empty line, or {@code -1} if the head is not complete
+     */
+    static int endOfHead(byte[] bytes, int offset, int length) {
+        for (int i = offset; i + 3 < offset + length; i++) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param bytes the bytes of a complete request head, including the final empty line
+     * @return the parsed request head, or {@code null} if it is malformed
+     */
+    static HttpRequestHead parse(byte[] bytes, int offset, int length) {
+        String[] lines = new String(bytes, offset, length, ISO_8859_1).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            return null;
+        }
+        boolean http11 = !"HTTP/1.0".equals(requestLine[2]);
+        String connection = null;
+        String accept = null;
+        boolean hasBody = false;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            if ("Connection".equalsIgnoreCase(name)) {
+                connection = value;
+            } else if ("Accept".equalsIgnoreCase(name)) {
+                accept = value;
+            } else if ("Transfer-Encoding".equalsIgnoreCase(name) || ("Content-Length".equalsIgnoreCase(name) && !"0".equals(value))) {
+                hasBody = true;
+            }
+        }
+        boolean keepAlive = http11 ? !"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+        String target = requestLine[1];
+        int query = target.indexOf('?');
+        return new HttpRequestHead(requestLine[0], query < 0 ? target : target.substring(0, query),
+                query < 0 ? null : target.substring(query + 1), accept, keepAlive, hasBody);
+    }
+
+}
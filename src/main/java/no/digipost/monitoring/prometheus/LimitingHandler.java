@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Guards a handler with a limit of concurrent requests, and a timeout for each request.
+ * <p>
+ * Requests exceeding the limit are rejected right away with
+ * <code>503 Service Unavailable</code>. A request which does not complete within the
+ * timeout has its exchange closed, which aborts the response being sent. The timeout only
+ * answers the client, and the request keeps its permit until the handler returns, as the
+ * scrape may still be rendering, e.g. into a buffer, and so the limit holds for the scrapes
+ * actually running. Rejected and aborted requests are recorded in the {@link ScrapeMetrics}, if given.
+ */
+final class LimitingHandler implements HttpHandler {
+
+    private final HttpHandler handler;
+    private final Semaphore permits;
+    private final ScheduledExecutorService timeouts;
+    private final long timeoutNanos;
+    private final ScrapeMetrics metrics;
+
+    /**
+     * @param handler the handler to guard
+     * @param permits the permits for concurrent requests, possibly shared with other handlers, or {@code null} for no limit
+     * @param timeouts the scheduler to enforce timeouts with, or {@code null} for no timeout
+     * @param timeoutNanos the timeout for each request
+     * @param metrics the metrics to record rejected and aborted requests with, or {@code null}
+     */
+    LimitingHandler(HttpHandler handler, Semaphore permits, ScheduledExecutorService timeouts, long timeoutNanos, ScrapeMetrics metrics) {
+        this.handler = handler;
+        this.permits = permits;
+        this.timeouts = timeouts;
+        this.timeoutNanos = timeoutNanos;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (permits != null && !permits.tryAcquire()) {
+            if (metrics != null) {
+                metrics.rejected();
+            }
+            reject(exchange);
+            return;
+        }
+        ScheduledFuture<?> timeout = timeouts != null ? timeouts.schedule(() -> abort(exchange), timeoutNanos, TimeUnit.NANOSECONDS) : null;
+        try {
+            handler.handle(exchange);
+        } finally {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            if (permits != null) {
+                permits.release();
+            }
+        }
+    }
+
+    private void abort(HttpExchange exchange) {
+        if (metrics != null) {
+            metrics.timedOut();
+        }
+        exchange.close();
+    }
+
+    private static void reject(HttpExchange exchange) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(503, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Merges the text expositions of several registries written through it, one after the other,
+ * into one exposition. The samples are passed straight through, and only comment lines are
+ * inspected:
+ * <ul>
+ *   <li>a <code># HELP</code>, <code># TYPE</code> or <code># UNIT</code> line for a metric name
+ *       which has already been written is dropped</li>
+ *   <li>the OpenMetrics <code># EOF</code> line is dropped, and written once by {@link #finish()}</li>
+ * </ul>
+ * Samples of a metric family present in several registries are written as part of each
+ * registry's exposition, and are not grouped together.
+ */
+final class MergingOutputStream extends FilterOutputStream {
+
+    private static final byte[] EOF = "# EOF".getBytes(UTF_8);
+    private static final String[] METADATA_PREFIXES = {"# HELP ", "# TYPE ", "# UNIT "};
+
+    private final Set<String> writtenMetadata = new HashSet<>();
+    private final byte[] singleByte = new byte[1];
+    private byte[] comment = new byte[256];
+    private int commentLength;
+    private boolean atLineStart = true;
+    private boolean inComment;
+    private boolean eof;
+
+    MergingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int passThroughFrom = off;
+        for (int i = off; i < end; i++) {
+            byte current = b[i];
+            if (inComment) {
+                if (current == '\n') {
+                    inComment = false;
+                    atLineStart = true;
+                    endComment();
+                } else {
+                    appendToComment(current);
+                }
+                passThroughFrom = i + 1;
+            } else if (atLineStart && current == '#') {
+                out.write(b, passThroughFrom, i - passThroughFrom);
+                inComment = true;
+                atLineStart = false;
+                appendToComment(current);
+                passThroughFrom = i + 1;
+            } else {
+                atLineStart = current == '\n';
+            }
+        }
+        out.write(b, passThroughFrom, end - passThroughFrom);
+    }
+
+    /**
+     * Completes the merged exposition, after all registries have been written.
+     */
+    void finish() throws IOException {
+        if (inComment) {
+            inComment = false;
+            endComment();
+        }
+        if (eof) {
+            out.write(EOF);
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    private void appendToComment(byte b) {
+        if (commentLength == comment.length) {
+            comment = Arrays.copyOf(comment, comment.length * 2);
+        }
+        comment[commentLength++] = b;
+    }
+
+    private void endComment() throws IOException {
+        int length = commentLength;
+        commentLength = 0;
+        if (length == EOF.length && Arrays.equals(comment, 0, length, EOF, 0, length)) {
+            eof = true;
+            return;
+        }
+        String metadataKey = metadataKey(length);
+        if (metadataKey == null || writtenMetadata.add(metadataKey)) {
+            out.write(comment, 0, length);
+            out.write('\n');
+        }
+    }
+
+    /**
+     * @return the kind and metric name of a metadata comment, e.g. <code># TYPE app_info</code>,
+     *         or {@code null} if the comment is not metadata
+     */
+    private String metadataKey(int length) {
+        for (String prefix : METADATA_PREFIXES) {
+            if (length > prefix.length() && startsWith(prefix, length)) {
+                int nameEnd = prefix.length();
+                while (nameEnd < length && comment[nameEnd] != ' ') {
+                    nameEnd++;
+                }
+                return new String(comment, 0, nameEnd, UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private boolean startsWith(String prefix, int length) {
+        for (int i = 0; i < prefix.length(); i++) {
+            if (i >= length || comment[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import java.net.URLDecoder;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The metric names requested by the query parameters <code>name[]</code> (exact names)
+ * and <code>name_prefix[]</code>, to limit a scrape to only some metric families.
+ * <p>
+ * This is passed as the set of included names to
+ * {@link io.micrometer.prometheusmetrics.PrometheusMeterRegistry#scrape(java.io.OutputStream, String, Set)},
+ * which only uses {@link #contains(Object)} to decide which metrics to collect and serialize.
+ * Iterating the set only yields the exact names, not what is matched by the prefixes.
+ * <p>
+ * As with the Prometheus client library, a name given with one of the suffixes added by the
+ * exposition formats, e.g. <code>_total</code> for counters, also matches the metric family
+ * without the suffix.
+ */
+final class MetricNameFilter extends AbstractSet<String> {
+
+    private static final String NAME_PARAMETER = "name[]";
+    private static final String NAME_PREFIX_PARAMETER = "name_prefix[]";
+    private static final String[] EXPOSITION_SUFFIXES = {"_total", "_created", "_bucket", "_info", "_count", "_sum", "_gcount", "_gsum"};
+
+    private final Set<String> names;
+    private final Set<String> familyNames;
+    private final String[] prefixes;
+
+    /**
+     * @param rawQuery the raw (not decoded) query of the request URI, may be {@code null}
+     * @return the filter, or {@code null} if no names were requested
+     */
+    static MetricNameFilter fromQuery(String rawQuery) {
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return null;
+        }
+        Set<String> names = new HashSet<>();
+        List<String> prefixes = new ArrayList<>();
+        for (String parameter : rawQuery.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator <= 0 || separator == parameter.length() - 1) {
+                continue;
+            }
+            String key = decode(parameter.substring(0, separator));
+            String value = decode(parameter.substring(separator + 1));
+            if (NAME_PARAMETER.equals(key)) {
+                names.add(value);
+            } else if (NAME_PREFIX_PARAMETER.equals(key)) {
+                prefixes.add(value);
+            }
+        }
+        return names.isEmpty() && prefixes.isEmpty() ? null : new MetricNameFilter(names, prefixes);
+    }
+
+    MetricNameFilter(Set<String> names, List<String> prefixes) {
+        this.names = Collections.unmodifiableSet(new HashSet<>(names));
+        this.familyNames = new HashSet<>(names);
+        for (String name : names) {
+            for (String suffix : EXPOSITION_SUFFIXES) {
+                if (name.endsWith(suffix)) {
+                    familyNames.add(name.substring(0, name.length() - suffix.length()));
+                }
+            }
+        }
+        this.prefixes = prefixes.toArray(new String[0]);
+    }
+
+    @Override
+    public boolean contains(Object metricName) {
+        if (!(metricName instanceof String)) {
+            return false;
+        }
+        String name = (String) metricName;
+        if (familyNames.contains(name)) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return names.iterator();
+    }
+
+    @Override
+    public int size() {
+        return names.size();
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, UTF_8);
+        } catch (IllegalArgumentException e) {
+            return value;
+        }
+    }
+
+}
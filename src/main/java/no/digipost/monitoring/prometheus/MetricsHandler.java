@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serves the scrape of one or more {@link PrometheusMeterRegistry registries}. Several registries are
+ * scraped one after the other into the same response, and a text exposition is merged with
+ * a {@link MergingOutputStream}.
+ * <p>
+ * In streaming mode the registry is serialized straight to the response body using
+ * chunked transfer encoding, through a buffer borrowed from a {@link BufferPool}.
+ * Otherwise the complete scrape is rendered before it is sent with a known content length.
+ * In both modes the response is compressed if enabled and accepted by the client.
+ * <p>
+ * If format negotiation is enabled, the exposition format is resolved from the
+ * {@code Accept} header of each request. Otherwise the Prometheus text format is always used.
+ * <p>
+ * If a {@link ScrapeCache} is given, the rendered response is reused for as long as it lives in the cache.
+ * <p>
+ * A scrape can be limited to only some metrics with the query parameters supported by {@link MetricNameFilter}.
+ * Such scrapes are never cached, as they are cheap to serialize.
+ * <p>
+ * If {@link ScrapeMetrics} are given, the duration, response size and number of samples of each scrape are recorded.
+ */
+final class MetricsHandler implements HttpHandler {
+
+    private final List<PrometheusMeterRegistry> registries;
+    private final BufferPool bufferPool;
+    private final ResponseCompression compression;
+    private final boolean negotiateFormat;
+    private final ScrapeCache cache;
+    private final ScrapeMetrics metrics;
+
+    /**
+     * @param registries the registries to scrape
+     * @param bufferPool the pool to borrow buffers from when streaming, or {@code null}
+     *                   to render the complete scrape before sending it
+     * @param compression the compression settings, or {@code null} to never compress the response
+     * @param negotiateFormat whether to negotiate the exposition format from the {@code Accept} header
+     * @param cache the cache for rendered responses, or {@code null} to render every response
+     * @param metrics the metrics to record each scrape with, or {@code null}
+     */
+    MetricsHandler(List<PrometheusMeterRegistry> registries, BufferPool bufferPool, ResponseCompression compression, boolean negotiateFormat,
+                   ScrapeCache cache, ScrapeMetrics metrics) {
+        this.registries = new ArrayList<>(registries);
+        this.bufferPool = bufferPool;
+        this.compression = compression;
+        this.negotiateFormat = negotiateFormat;
+        this.cache = cache;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handle(HttpExchange httpExchange) throws IOException {
+        long startTime = metrics != null ? metrics.started() : 0;
+        ScrapeResponse response = null;
+        try {
+            ExpositionFormat format = negotiateFormat
+                    ? ExpositionFormat.negotiate(httpExchange.getRequestHeaders().getFirst("Accept"))
+                    : ExpositionFormat.PROMETHEUS_TEXT;
+            ContentEncoding encoding = compression != null
+                    ? ContentEncoding.negotiate(httpExchange.getRequestHeaders().getFirst("Accept-Encoding"))
+                    : ContentEncoding.IDENTITY;
+            MetricNameFilter names = MetricNameFilter.fromQuery(httpExchange.getRequestURI().getRawQuery());
+            response = new ScrapeResponse(httpExchange, format, encoding, compression);
+            if (cache != null && names == null) {
+                response.send(cache.get(format, encoding, () -> render(format, encoding)));
+            } else if (bufferPool != null) {
+                sendStreamed(response, format, names);
+            } else {
+                sendBuffered(response, format, names);
+            }
+        } finally {
+            httpExchange.close();
+            if (metrics != null) {
+                metrics.completed(startTime, response != null ? response.bodyBytes() : 0);
+            }
+        }
+    }
+
+    /**
+     * If the scrape fails before anything is sent, nothing is sent, and the exchange is closed,
+     * as when the complete scrape is rendered before it is sent.
+     */
+    private void sendStreamed(ScrapeResponse response, ExpositionFormat format, MetricNameFilter names) throws IOException {
+        PooledBufferOutputStream os = new PooledBufferOutputStream(response, bufferPool);
+        try {
+            scrape(os, format, names);
+        } catch (IOException | RuntimeException | Error e) {
+            os.abort();
+            throw e;
+        }
+        os.close();
+    }
+
+    private void scrape(OutputStream out, ExpositionFormat format, MetricNameFilter names) throws IOException {
+        boolean textFormat = format != ExpositionFormat.PROMETHEUS_PROTOBUF;
+        CountingOutputStream counting = metrics != null && names == null && textFormat ? new CountingOutputStream(out, true) : null;
+        OutputStream target = counting != null ? counting : out;
+        if (registries.size() == 1) {
+            registries.get(0).scrape(target, format.contentType, names);
+        } else if (textFormat) {
+            MergingOutputStream merging = new MergingOutputStream(target);
+            for (PrometheusMeterRegistry registry : registries) {
+                registry.scrape(merging, format.contentType, names);
+            }
+            merging.finish();
+        } else {
+            for (PrometheusMeterRegistry registry : registries) {
+                registry.scrape(target, format.contentType, names);
+            }
+        }
+        if (counting != null) {
+            metrics.rendered(counting.samples());
+        }
+    }
+
+    private ScrapeCache.RenderedScrape render(ExpositionFormat format, ContentEncoding encoding) throws IOException {
+        ByteArrayOutputStream scrape = new ByteArrayOutputStream();
+        scrape(scrape, format, null);
+        if (compression != null && compression.shouldCompress(encoding, scrape.size())) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(scrape.size() / 4);
+            try (OutputStream os = compression.compress(encoding, compressed)) {
+                scrape.writeTo(os);
+            }
+            return new ScrapeCache.RenderedScrape(compressed.toByteArray(), encoding);
+        }
+        return new ScrapeCache.RenderedScrape(scrape.toByteArray(), ContentEncoding.IDENTITY);
+    }
+
+    private void sendBuffered(ScrapeResponse response, ExpositionFormat format, MetricNameFilter names) throws IOException {
+        ByteArrayOutputStream scrape = new ByteArrayOutputStream();
+        scrape(scrape, format, names);
+        try (OutputStream os = response.open(scrape.size())) {
+            scrape.writeTo(os);
+        }
+    }
+
+}
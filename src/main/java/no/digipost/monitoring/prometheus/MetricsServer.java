@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+
+/**
+ * A running server exposing metrics, which can be stopped in an orderly manner.
+ */
+public interface MetricsServer extends AutoCloseable {
+
+    Duration DEFAULT_STOP_GRACE_PERIOD = Duration.ofSeconds(2);
+
+    /**
+     * @return the address the server is bound to, which also tells the actual port
+     *         if the server was started on port <code>0</code>
+     */
+    InetSocketAddress getAddress();
+
+    /**
+     * Stop accepting new requests, and wait at most the given grace period for
+     * requests in progress to complete before stopping the server. Calling this
+     * more than once has no effect.
+     *
+     * @param gracePeriod the maximum time to wait for requests in progress, which may be
+     *                    rounded up to whole seconds
+     */
+    void stop(Duration gracePeriod);
+
+    /**
+     * Stop the server, waiting at most {@link #DEFAULT_STOP_GRACE_PERIOD} for requests in progress.
+     */
+    @Override
+    default void close() {
+        stop(DEFAULT_STOP_GRACE_PERIOD);
+    }
+
+}
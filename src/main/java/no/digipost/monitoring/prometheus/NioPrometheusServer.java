@@ -0,0 +1,579 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * A minimal, non-blocking alternative to {@link SimplePrometheusServer}, serving the scrape of a
+ * registry on <code>/metrics</code> using only two threads, with a small and fixed memory footprint.
+ * <p>
+ * All connections are served by one selector thread, and the scrapes are rendered by one rendering thread,
+ * and so scrapes are rendered one at a time. Connections are kept alive, and pipelined requests are answered
+ * in order. A scrape is rendered into a bounded set of pooled direct buffers, and each buffer is written to the
+ * connection as a chunk, using chunked transfer encoding, as soon as it is full. A connection holds at most half
+ * of the buffers, and when these are waiting to be written, the rendering waits for the connection, and so the
+ * memory used for scrapes never exceeds the buffers of the pool, regardless of the size of the scrapes.
+ * A connection which does not accept any of its response for 5 seconds is closed, aborting its scrape, so that
+ * a client which stops reading does not hold up the scrapes of other clients.
+ * <p>
+ * When stopped, the server stops accepting connections, and closes idle connections right away. Connections
+ * with a response in progress are closed when the response is sent, or when the grace period is over.
+ * <p>
+ * Only <code>GET</code> and <code>HEAD</code> requests without a body are supported, and the response is never compressed.
+ */
+public class NioPrometheusServer {
+
+    private static final String METRICS_PATH = "/metrics";
+    private static final int MAX_REQUEST_HEAD_SIZE = 8 * 1024;
+    private static final int MAX_GATHERED_BUFFERS = 16;
+    private static final long MAX_RENDER_WAIT_SECONDS = 10;
+    private static final long MAX_STALL_SECONDS = 5;
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+    private static final ByteBuffer CRLF = ByteBuffer.wrap("\r\n".getBytes(ISO_8859_1)).asReadOnlyBuffer();
+    private static final ByteBuffer LAST_CHUNK = ByteBuffer.wrap("0\r\n\r\n".getBytes(ISO_8859_1)).asReadOnlyBuffer();
+
+    private BiConsumer<String, Object> infoLogger;
+    private int bufferSize = BufferPool.DEFAULT_BUFFER_SIZE;
+    private int maxPooledBuffers = BufferPool.DEFAULT_MAX_POOLED_BUFFERS;
+    private boolean negotiateFormat;
+    private int backlog;
+
+    public NioPrometheusServer(BiConsumer<String, Object> infoLogger) {
+        this.infoLogger = infoLogger;
+    }
+
+    /**
+     * The scrape is rendered into direct buffers of the given size, and at most the given number of buffers
+     * are ever allocated, which bounds the memory used for rendering scrapes. Each connection holds at most
+     * half of the buffers, or one buffer if there are less than two. The default is
+     * {@value BufferPool#DEFAULT_MAX_POOLED_BUFFERS} buffers of {@value BufferPool#DEFAULT_BUFFER_SIZE} bytes.
+     *
+     * @param bufferSize the size in bytes of each buffer
+     * @param maxPooledBuffers the max number of buffers
+     * @return this
+     */
+    public NioPrometheusServer buffers(int bufferSize, int maxPooledBuffers) {
+        if (bufferSize <= 0 || maxPooledBuffers <= 0) {
+            throw new IllegalArgumentException("Buffer size and max pooled buffers must be positive, was " + bufferSize + " and " + maxPooledBuffers);
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+        return this;
+    }
+
+    /**
+     * Serve the exposition format requested in the <code>Accept</code> header sent by the scraper,
+     * instead of always using the Prometheus text format.
+     *
+     * @return this
+     * @see SimplePrometheusServer#negotiateFormat()
+     */
+    public NioPrometheusServer negotiateFormat() {
+        this.negotiateFormat = true;
+        return this;
+    }
+
+    /**
+     * @param backlog the max number of incoming connections to queue, if the server is
+     *                not able to accept them fast enough
+     * @return this
+     */
+    public NioPrometheusServer backlog(int backlog) {
+        this.backlog = backlog;
+        return this;
+    }
+
+    /**
+     * Start the server. A JVM shutdown hook is registered to stop the server, unless it
+     * has been stopped using the returned {@link MetricsServer}.
+     *
+     * @param prometheusContext the registry to serve
+     * @param prometheusPort the port to listen to, or <code>0</code> for any available port
+     * @return the running server
+     */
+    public MetricsServer start(final PrometheusMeterRegistry prometheusContext, final int prometheusPort) {
+        try {
+            Selector selector = Selector.open();
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(prometheusPort), backlog);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            ExecutorService renderer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "NioPrometheusServerRenderer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            SelectorLoop loop = new SelectorLoop(selector, prometheusContext, new DirectBufferPool(bufferSize, maxPooledBuffers),
+                    Math.max(1, maxPooledBuffers / 2), renderer, negotiateFormat);
+            Thread thread = new Thread(loop, "NioPrometheusServer");
+            RunningServer runningServer = new RunningServer((InetSocketAddress) serverChannel.getLocalAddress(), loop, thread);
+            thread.start();
+            Runtime.getRuntime().addShutdownHook(runningServer.shutdownHook);
+
+            infoLogger.accept("Started Prometheus metrics endpoint server on port {}", runningServer.getAddress().getPort());
+            return runningServer;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final class Connection {
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_HEAD_SIZE);
+        final Deque<ByteBuffer> pending = new ArrayDeque<>();
+        boolean closeWhenWritten;
+
+        /**
+         * When the connection last stopped accepting what is pending to be written, or <code>0</code> if
+         * everything pending has been written.
+         */
+        long stalledSince;
+
+        /**
+         * The scrape being rendered for the current request, if any, and how to respond with it.
+         */
+        DirectBufferOutputStream scrape;
+        String scrapeContentType;
+        boolean scrapeKeepAlive;
+        boolean scrapeHeadersSent;
+
+        /**
+         * The scrape whose buffers are pending to be written, which remains after the rendering is done
+         * and the scrape is no longer current, until the next scrape of the connection.
+         */
+        DirectBufferOutputStream sending;
+    }
+
+    private static final class SelectorLoop implements Runnable {
+
+        private final Selector selector;
+        private final PrometheusMeterRegistry registry;
+        private final DirectBufferPool bufferPool;
+        private final int maxBuffersPerConnection;
+        private final ExecutorService renderer;
+        private final boolean negotiateFormat;
+        private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_BUFFERS];
+        private final Queue<SelectionKey> rendered = new ConcurrentLinkedQueue<>();
+        private volatile boolean stopping;
+        private volatile long stopDeadline;
+        private boolean draining;
+        private long lastStallCheck = System.nanoTime();
+
+        SelectorLoop(Selector selector, PrometheusMeterRegistry registry, DirectBufferPool bufferPool, int maxBuffersPerConnection,
+                     ExecutorService renderer, boolean negotiateFormat) {
+            this.selector = selector;
+            this.registry = registry;
+            this.bufferPool = bufferPool;
+            this.maxBuffersPerConnection = maxBuffersPerConnection;
+            this.renderer = renderer;
+            this.negotiateFormat = negotiateFormat;
+        }
+
+        /**
+         * Stop accepting connections, and stop when the responses in progress are sent, or the grace period is over.
+         */
+        synchronized void stop(Duration gracePeriod) {
+            if (!stopping) {
+                stopDeadline = System.nanoTime() + gracePeriod.toNanos();
+                stopping = true;
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Called by the rendering thread when there is more of the scrape of a connection to write.
+         */
+        private void rendered(SelectionKey key) {
+            rendered.add(key);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    if (stopping && !draining) {
+                        draining = true;
+                        stopAccepting();
+                    }
+                    long untilDeadline = draining ? stopDeadline - System.nanoTime() : Long.MAX_VALUE;
+                    if (draining && (untilDeadline <= 0 || !hasConnections())) {
+                        break;
+                    }
+                    selector.select(Math.max(1, Math.min(SELECT_TIMEOUT_MILLIS, TimeUnit.NANOSECONDS.toMillis(untilDeadline))));
+                    SelectionKey renderedKey;
+                    while ((renderedKey = rendered.poll()) != null) {
+                        try {
+                            if (renderedKey.isValid()) {
+                                serve(renderedKey);
+                            }
+                        } catch (IOException e) {
+                            close(renderedKey);
+                        }
+                    }
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        try {
+                            if (key.isValid() && key.isAcceptable()) {
+                                accept((ServerSocketChannel) key.channel());
+                            } else if (key.isValid() && key.isReadable()) {
+                                read(key);
+                            } else if (key.isValid() && key.isWritable()) {
+                                serve(key);
+                            }
+                        } catch (IOException e) {
+                            close(key);
+                        }
+                    }
+                    closeStalled();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                renderer.shutdownNow();
+                for (SelectionKey key : selector.keys()) {
+                    close(key);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // stopping anyway
+                }
+            }
+        }
+
+        /**
+         * Close the server channel, and the connections which are not in the middle of a response.
+         */
+        private void stopAccepting() {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection == null || (connection.scrape == null && connection.pending.isEmpty())) {
+                    close(key);
+                }
+            }
+        }
+
+        private boolean hasConnections() {
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Close the connections which have not accepted any of their pending response for
+         * {@value #MAX_STALL_SECONDS} seconds, releasing the buffers they hold.
+         */
+        private void closeStalled() {
+            long now = System.nanoTime();
+            if (now - lastStallCheck < TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT_MILLIS)) {
+                return;
+            }
+            lastStallCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (key.isValid() && connection != null && connection.stalledSince != 0
+                        && now - connection.stalledSince > TimeUnit.SECONDS.toNanos(MAX_STALL_SECONDS)) {
+                    close(key);
+                }
+            }
+        }
+
+        private void accept(ServerSocketChannel serverChannel) throws IOException {
+            SocketChannel channel = serverChannel.accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new Connection());
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            Connection connection = (Connection) key.attachment();
+            if (((SocketChannel) key.channel()).read(connection.request) < 0) {
+                close(key);
+                return;
+            }
+            serve(key);
+        }
+
+        /**
+         * Write any pending response, and answer the requests received so far, one by one, until
+         * a response can not be written without blocking, more of a scrape must be rendered,
+         * or more of the request must be read.
+         */
+        private void serve(SelectionKey key) throws IOException {
+            Connection connection = (Connection) key.attachment();
+            while (true) {
+                if (connection.scrape != null) {
+                    drainScrape(connection);
+                }
+                if (!write((SocketChannel) key.channel(), connection)) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (connection.scrape != null) {
+                    key.interestOps(0);
+                    return;
+                }
+                if (connection.closeWhenWritten || draining) {
+                    close(key);
+                    return;
+                }
+                ByteBuffer request = connection.request;
+                int endOfHead = HttpRequestHead.endOfHead(request.array(), 0, request.position());
+                if (endOfHead < 0) {
+                    if (!request.hasRemaining()) {
+                        respond(connection, "431 Request Header Fields Too Large", false);
+                    } else {
+                        key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                } else {
+                    HttpRequestHead head = HttpRequestHead.parse(request.array(), 0, endOfHead);
+                    request.flip().position(endOfHead);
+                    request.compact();
+                    answer(key, connection, head);
+                }
+            }
+        }
+
+        private void answer(SelectionKey key, Connection connection, HttpRequestHead request) {
+            if (request == null || request.hasBody) {
+                respond(connection, "400 Bad Request", false);
+            } else if (!METRICS_PATH.equals(request.path)) {
+                respond(connection, "404 Not Found", request.keepAlive);
+            } else if (!"GET".equals(request.method) && !"HEAD".equals(request.method)) {
+                respond(connection, "405 Method Not Allowed", request.keepAlive);
+            } else {
+                ExpositionFormat format = negotiateFormat ? ExpositionFormat.negotiate(request.accept) : ExpositionFormat.PROMETHEUS_TEXT;
+                if ("HEAD".equals(request.method)) {
+                    connection.pending.add(headers("200 OK", format.contentType, -1, request.keepAlive));
+                    connection.closeWhenWritten = !request.keepAlive;
+                } else {
+                    render(key, connection, format, MetricNameFilter.fromQuery(request.rawQuery), request.keepAlive);
+                }
+            }
+        }
+
+        private void render(SelectionKey key, Connection connection, ExpositionFormat format, MetricNameFilter names, boolean keepAlive) {
+            DirectBufferOutputStream scrape = new DirectBufferOutputStream(
+                    bufferPool, maxBuffersPerConnection, TimeUnit.SECONDS.toNanos(MAX_RENDER_WAIT_SECONDS), () -> rendered(key));
+            connection.scrape = scrape;
+            connection.sending = scrape;
+            connection.scrapeContentType = format.contentType;
+            connection.scrapeKeepAlive = keepAlive;
+            connection.scrapeHeadersSent = false;
+            try {
+                renderer.execute(() -> {
+                    try {
+                        registry.scrape(scrape, format.contentType, names);
+                        scrape.complete();
+                    } catch (IOException | RuntimeException e) {
+                        scrape.fail();
+                    }
+                });
+            } catch (RejectedExecutionException stopping) {
+                scrape.fail();
+            }
+        }
+
+        /**
+         * Queue the buffers rendered so far of the scrape of a connection as chunks of the response, and finish
+         * the response if the rendering is done. If the rendering failed before anything was sent, the response
+         * is an error, or else the connection is closed without the last chunk, telling the client that the
+         * response is incomplete.
+         */
+        private static void drainScrape(Connection connection) {
+            DirectBufferOutputStream scrape = connection.scrape;
+            boolean done = scrape.isDone();
+            ByteBuffer buffer;
+            while ((buffer = scrape.poll()) != null) {
+                sendScrapeHeaders(connection);
+                connection.pending.add(ByteBuffer.wrap((Integer.toHexString(buffer.remaining()) + "\r\n").getBytes(ISO_8859_1)));
+                connection.pending.add(buffer);
+                connection.pending.add(CRLF.duplicate());
+            }
+            if (!done) {
+                return;
+            }
+            connection.scrape = null;
+            if (scrape.isCompleted()) {
+                sendScrapeHeaders(connection);
+                connection.pending.add(LAST_CHUNK.duplicate());
+                connection.closeWhenWritten = !connection.scrapeKeepAlive;
+            } else if (!connection.scrapeHeadersSent) {
+                respond(connection, "500 Internal Server Error", false);
+            } else {
+                connection.closeWhenWritten = true;
+            }
+        }
+
+        private static void sendScrapeHeaders(Connection connection) {
+            if (!connection.scrapeHeadersSent) {
+                connection.pending.add(headers("200 OK", connection.scrapeContentType, -1, connection.scrapeKeepAlive));
+                connection.scrapeHeadersSent = true;
+            }
+        }
+
+        private static void respond(Connection connection, String status, boolean keepAlive) {
+            connection.pending.add(headers(status, null, 0, keepAlive));
+            connection.closeWhenWritten = !keepAlive;
+        }
+
+        /**
+         * @param contentLength the length of the body, or <code>-1</code> for a body sent in chunks
+         */
+        private static ByteBuffer headers(String status, String contentType, long contentLength, boolean keepAlive) {
+            StringBuilder headers = new StringBuilder(128).append("HTTP/1.1 ").append(status).append("\r\n");
+            if (contentType != null) {
+                headers.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            if (contentLength < 0) {
+                headers.append("Transfer-Encoding: chunked\r\n");
+            } else {
+                headers.append("Content-Length: ").append(contentLength).append("\r\n");
+            }
+            if (!keepAlive) {
+                headers.append("Connection: close\r\n");
+            }
+            return ByteBuffer.wrap(headers.append("\r\n").toString().getBytes(ISO_8859_1));
+        }
+
+        /**
+         * Write as much as possible of the pending buffers of a connection with gathering writes,
+         * releasing each buffer to the pool when it has been completely written.
+         *
+         * @return whether all the pending buffers were written
+         */
+        private boolean write(SocketChannel channel, Connection connection) throws IOException {
+            Deque<ByteBuffer> pending = connection.pending;
+            while (!pending.isEmpty()) {
+                int count = 0;
+                for (Iterator<ByteBuffer> buffers = pending.iterator(); buffers.hasNext() && count < gathered.length; ) {
+                    gathered[count++] = buffers.next();
+                }
+                long written = channel.write(gathered, 0, count);
+                while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+                    release(connection, pending.poll());
+                }
+                Arrays.fill(gathered, 0, count, null);
+                if (written == 0) {
+                    if (connection.stalledSince == 0) {
+                        connection.stalledSince = System.nanoTime();
+                    }
+                    return false;
+                }
+                connection.stalledSince = 0;
+            }
+            return true;
+        }
+
+        private static void release(Connection connection, ByteBuffer buffer) {
+            if (connection.sending != null) {
+                connection.sending.release(buffer);
+            }
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                Connection connection = (Connection) attachment;
+                if (connection.scrape != null) {
+                    connection.scrape.abort();
+                    connection.scrape = null;
+                }
+                Deque<ByteBuffer> pending = connection.pending;
+                while (!pending.isEmpty()) {
+                    release(connection, pending.poll());
+                }
+            }
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // nothing more to do with the connection
+            }
+        }
+    }
+
+    private static final class RunningServer implements MetricsServer {
+
+        private final InetSocketAddress address;
+        private final SelectorLoop loop;
+        private final Thread thread;
+        private final Thread shutdownHook;
+
+        RunningServer(InetSocketAddress address, SelectorLoop loop, Thread thread) {
+            this.address = address;
+            this.loop = loop;
+            this.thread = thread;
+            this.shutdownHook = new Thread(() -> doStop(DEFAULT_STOP_GRACE_PERIOD), "NioPrometheusServerShutdownHook");
+        }
+
+        @Override
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        @Override
+        public void stop(Duration gracePeriod) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException alreadyShuttingDown) {
+                // the shutdown hook is either running or about to run
+            }
+            doStop(gracePeriod);
+        }
+
+        private void doStop(Duration gracePeriod) {
+            loop.stop(gracePeriod);
+            try {
+                thread.join(gracePeriod.toMillis() + SELECT_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
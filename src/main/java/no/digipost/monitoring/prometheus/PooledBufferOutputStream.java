@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffering {@link OutputStream} which borrows its buffer from a {@link BufferPool},
+ * and hands it back when the stream is closed.
+ * <p>
+ * The underlying stream is not opened until the buffer overflows or this stream is closed,
+ * so if everything written fits in the buffer, the {@link Target} is told the total length
+ * up front. Until then, {@link #flush()} has no effect. If writing fails, the stream must be
+ * {@link #abort() aborted} instead of closed, so that what is buffered is not sent as if complete.
+ * <p>
+ * Not thread safe, and the stream must not be used after it has been closed.
+ */
+final class PooledBufferOutputStream extends OutputStream {
+
+    @FunctionalInterface
+    interface Target {
+        /**
+         * @param knownLength the total number of bytes which will be written, or {@code -1} if not known
+         * @return the stream to write to
+         */
+        OutputStream open(long knownLength) throws IOException;
+    }
+
+    private final Target target;
+    private final BufferPool pool;
+    private OutputStream out;
+    private byte[] buffer;
+    private int count;
+
+    PooledBufferOutputStream(Target target, BufferPool pool) {
+        this.target = target;
+        this.pool = pool;
+        this.buffer = pool.acquire();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= buffer.length) {
+            flushBuffer();
+            out.write(b, off, len);
+            return;
+        }
+        if (len > buffer.length - count) {
+            flushBuffer();
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out != null) {
+            flushBuffer();
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            if (out == null) {
+                out = target.open(count);
+            }
+            try (OutputStream closingOut = out) {
+                flushBuffer();
+            }
+        } finally {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Hands back the buffer without opening the underlying stream, if not already opened, and without
+     * closing it, discarding anything buffered.
+     */
+    void abort() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (out == null) {
+            out = target.open(-1);
+        }
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compression settings for the scrape response, and the metrics
+ * recording the effect and cost of compressing:
+ * <ul>
+ *   <li><code>app_metrics_scrape_compression_ratio</code>, uncompressed size divided by compressed size</li>
+ *   <li><code>app_metrics_scrape_compression_seconds</code>, time spent compressing</li>
+ * </ul>
+ */
+final class ResponseCompression {
+
+    static final int DEFAULT_MIN_SIZE_BYTES = 1024;
+
+    private final int level;
+    private final int minSizeBytes;
+    private final Map<ContentEncoding, DistributionSummary> ratios = new EnumMap<>(ContentEncoding.class);
+    private final Map<ContentEncoding, Timer> timers = new EnumMap<>(ContentEncoding.class);
+
+    ResponseCompression(int level, int minSizeBytes, MeterRegistry registry) {
+        this.level = level;
+        this.minSizeBytes = minSizeBytes;
+        for (ContentEncoding encoding : new ContentEncoding[] {ContentEncoding.GZIP, ContentEncoding.DEFLATE}) {
+            ratios.put(encoding, DistributionSummary.builder("app_metrics_scrape_compression_ratio")
+                    .description("Uncompressed size divided by compressed size of the metrics scrape response")
+                    .tag("encoding", encoding.headerValue)
+                    .register(registry));
+            timers.put(encoding, Timer.builder("app_metrics_scrape_compression")
+                    .description("Time spent compressing the metrics scrape response")
+                    .tag("encoding", encoding.headerValue)
+                    .register(registry));
+        }
+    }
+
+    /**
+     * @param encoding the negotiated encoding
+     * @param knownLength the length of the uncompressed response if known, or {@code -1}
+     *                    if the response is larger than what has been buffered
+     */
+    boolean shouldCompress(ContentEncoding encoding, long knownLength) {
+        return encoding != ContentEncoding.IDENTITY && (knownLength < 0 || knownLength >= minSizeBytes);
+    }
+
+    OutputStream compress(ContentEncoding encoding, OutputStream out) throws IOException {
+        DistributionSummary ratio = ratios.get(encoding);
+        Timer timer = timers.get(encoding);
+        CompressingOutputStream.Completion completion = (uncompressed, compressed, nanos) -> {
+            if (compressed > 0) {
+                ratio.record((double) uncompressed / compressed);
+            }
+            timer.record(nanos, TimeUnit.NANOSECONDS);
+        };
+        switch (encoding) {
+            case GZIP: return CompressingOutputStream.gzip(out, level, completion);
+            case DEFLATE: return CompressingOutputStream.deflate(out, level, completion);
+            default: throw new IllegalArgumentException("Not a compressing encoding: " + encoding);
+        }
+    }
+
+}
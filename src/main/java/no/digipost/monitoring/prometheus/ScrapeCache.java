@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Short-lived cache of rendered scrape responses, one for each combination of
+ * {@link ExpositionFormat} and {@link ContentEncoding}.
+ * <p>
+ * Concurrent requests for a response which is not cached share the same rendering
+ * (single-flight), instead of each serializing the registry. Lookups are counted in
+ * <code>app_metrics_scrape_cache_total</code>, tagged with <code>result</code> being
+ * either <code>hit</code> or <code>miss</code>. Waiting for a rendering already in
+ * progress counts as a hit.
+ * <p>
+ * The time to live is measured from when the rendering started, and a failed
+ * rendering is never cached.
+ */
+final class ScrapeCache {
+
+    @FunctionalInterface
+    interface Renderer {
+        RenderedScrape render() throws IOException;
+    }
+
+    static final class RenderedScrape {
+        final byte[] body;
+        final ContentEncoding encoding;
+
+        RenderedScrape(byte[] body, ContentEncoding encoding) {
+            this.body = body;
+            this.encoding = encoding;
+        }
+    }
+
+    private static final class Entry {
+        final CompletableFuture<RenderedScrape> rendering = new CompletableFuture<>();
+        final long startedAtNanos;
+
+        Entry(long startedAtNanos) {
+            this.startedAtNanos = startedAtNanos;
+        }
+    }
+
+    private static final int ENCODINGS = ContentEncoding.values().length;
+
+    private final long ttlNanos;
+    private final LongSupplier nanoTime;
+    private final AtomicReferenceArray<Entry> slots;
+    private final Counter hits;
+    private final Counter misses;
+
+    ScrapeCache(Duration ttl, LongSupplier nanoTime, MeterRegistry registry) {
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("Scrape cache time to live must be positive, was " + ttl);
+        }
+        this.ttlNanos = ttl.toNanos();
+        this.nanoTime = nanoTime;
+        this.slots = new AtomicReferenceArray<>(ExpositionFormat.values().length * ENCODINGS);
+        this.hits = Counter.builder("app_metrics_scrape_cache")
+                .description("Lookups of cached metrics scrape responses")
+                .tag("result", "hit")
+                .register(registry);
+        this.misses = Counter.builder("app_metrics_scrape_cache")
+                .description("Lookups of cached metrics scrape responses")
+                .tag("result", "miss")
+                .register(registry);
+    }
+
+    RenderedScrape get(ExpositionFormat format, ContentEncoding encoding, Renderer renderer) throws IOException {
+        int slot = format.ordinal() * ENCODINGS + encoding.ordinal();
+        while (true) {
+            Entry current = slots.get(slot);
+            long now = nanoTime.getAsLong();
+            if (current != null && (!current.rendering.isDone() || isFresh(current, now))) {
+                hits.increment();
+                return await(current.rendering);
+            }
+            Entry entry = new Entry(now);
+            if (slots.compareAndSet(slot, current, entry)) {
+                misses.increment();
+                return render(slot, entry, renderer);
+            }
+        }
+    }
+
+    private boolean isFresh(Entry entry, long now) {
+        return now - entry.startedAtNanos < ttlNanos && !entry.rendering.isCompletedExceptionally();
+    }
+
+    private RenderedScrape render(int slot, Entry entry, Renderer renderer) throws IOException {
+        try {
+            RenderedScrape rendered = renderer.render();
+            entry.rendering.complete(rendered);
+            return rendered;
+        } catch (IOException | RuntimeException | Error e) {
+            slots.compareAndSet(slot, entry, null);
+            entry.rendering.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static RenderedScrape await(CompletableFuture<RenderedScrape> rendering) throws IOException {
+        try {
+            return rendering.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for scrape in progress");
+        } catch (ExecutionException e) {
+            throw new IOException("Scrape in progress failed: " + e.getCause(), e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics describing the cost of serving scrapes:
+ * <ul>
+ *   <li><code>app_metrics_scrape_seconds</code>, histogram of the time spent serving a scrape</li>
+ *   <li><code>app_metrics_scrape_response_bytes</code>, size of the response body, after any compression</li>
+ *   <li><code>app_metrics_scrape_series</code>, number of samples in the latest rendered text exposition</li>
+ *   <li><code>app_metrics_scrape_in_flight</code>, scrapes currently being served</li>
+ *   <li><code>app_metrics_scrape_rejected_total</code>, scrapes rejected because of the limit of concurrent scrapes,
+ *       or aborted because of the request timeout, tagged with <code>reason</code> being
+ *       either <code>limit</code> or <code>timeout</code></li>
+ * </ul>
+ * All meters are registered up front, and recording a scrape only updates primitive counters.
+ */
+final class ScrapeMetrics {
+
+    private final Clock clock;
+    private final Timer duration;
+    private final DistributionSummary responseBytes;
+    private final AtomicLong series = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Counter rejectedByLimit;
+    private final Counter timedOut;
+
+    ScrapeMetrics(MeterRegistry registry) {
+        this.clock = registry.config().clock();
+        this.duration = Timer.builder("app_metrics_scrape")
+                .description("Time spent serving a scrape of the metrics")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofSeconds(30))
+                .register(registry);
+        this.responseBytes = DistributionSummary.builder("app_metrics_scrape_response")
+                .description("Size of the metrics scrape response body, after any compression")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("app_metrics_scrape_series", series, AtomicLong::get)
+                .description("Number of samples in the latest rendered scrape of the metrics in a text format")
+                .register(registry);
+        Gauge.builder("app_metrics_scrape_in_flight", inFlight, AtomicInteger::get)
+                .description("Scrapes of the metrics currently being served")
+                .register(registry);
+        this.rejectedByLimit = rejected("limit", registry);
+        this.timedOut = rejected("timeout", registry);
+    }
+
+    private static Counter rejected(String reason, MeterRegistry registry) {
+        return Counter.builder("app_metrics_scrape_rejected")
+                .description("Scrapes of the metrics rejected or aborted")
+                .tag("reason", reason)
+                .register(registry);
+    }
+
+    /**
+     * @return the start time to pass to {@link #completed(long, long)}
+     */
+    long started() {
+        inFlight.incrementAndGet();
+        return clock.monotonicTime();
+    }
+
+    void completed(long startTime, long bodyBytes) {
+        duration.record(clock.monotonicTime() - startTime, TimeUnit.NANOSECONDS);
+        responseBytes.record(bodyBytes);
+        inFlight.decrementAndGet();
+    }
+
+    void rendered(long samples) {
+        series.set(samples);
+    }
+
+    void rejected() {
+        rejectedByLimit.increment();
+    }
+
+    void timedOut() {
+        timedOut.increment();
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Sends the headers of a scrape response and opens its body, once it is known
+ * whether the whole body is available, and thus whether it is worth compressing.
+ * The number of bytes sent in the body is counted.
+ */
+final class ScrapeResponse implements PooledBufferOutputStream.Target {
+
+    private final HttpExchange exchange;
+    private final ExpositionFormat format;
+    private final ContentEncoding encoding;
+    private final ResponseCompression compression;
+    private CountingOutputStream body;
+    private long sentBytes;
+
+    /**
+     * @param format the format of the response body
+     * @param encoding the encoding negotiated with the client
+     * @param compression the compression settings, or {@code null} to never compress
+     */
+    ScrapeResponse(HttpExchange exchange, ExpositionFormat format, ContentEncoding encoding, ResponseCompression compression) {
+        this.exchange = exchange;
+        this.format = format;
+        this.encoding = encoding;
+        this.compression = compression;
+    }
+
+    void send(ScrapeCache.RenderedScrape rendered) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", format.contentType);
+        if (compression != null) {
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        }
+        if (rendered.encoding != ContentEncoding.IDENTITY) {
+            exchange.getResponseHeaders().set("Content-Encoding", rendered.encoding.headerValue);
+        }
+        exchange.sendResponseHeaders(200, rendered.body.length == 0 ? -1 : rendered.body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(rendered.body);
+        }
+        sentBytes = rendered.body.length;
+    }
+
+    @Override
+    public OutputStream open(long knownLength) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", format.contentType);
+        if (compression != null) {
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            if (compression.shouldCompress(encoding, knownLength)) {
+                exchange.getResponseHeaders().set("Content-Encoding", encoding.headerValue);
+                exchange.sendResponseHeaders(200, 0);
+                body = new CountingOutputStream(exchange.getResponseBody(), false);
+                return compression.compress(encoding, body);
+            }
+        }
+        exchange.sendResponseHeaders(200, knownLength < 0 ? 0 : knownLength == 0 ? -1 : knownLength);
+        body = new CountingOutputStream(exchange.getResponseBody(), false);
+        return body;
+    }
+
+    /**
+     * @return the number of bytes sent in the response body so far
+     */
+    long bodyBytes() {
+        return body != null ? body.bytes() : sentBytes;
+    }
+
+}
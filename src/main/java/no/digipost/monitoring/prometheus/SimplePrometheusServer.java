@@ -15,42 +15,476 @@
  */
 package no.digipost.monitoring.prometheus;
 
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import no.digipost.monitoring.db.DbStatusCollector;
+import no.digipost.monitoring.micrometer.RuntimeStatus;
+import no.digipost.monitoring.util.VirtualThreads;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiConsumer;
+import java.util.zip.Deflater;
 
 public class SimplePrometheusServer {
 
     private static final String METRICS_PATH = "/metrics";
     private BiConsumer<String, Object> infoLogger;
+    private BufferPool streamingBufferPool;
+    private boolean compression;
+    private int compressionLevel;
+    private int compressionMinSizeBytes;
+    private boolean negotiateFormat;
+    private Duration cacheTimeToLive;
+    private Executor executor;
+    private boolean virtualThreads;
+    private int backlog;
+    private Duration requestTimeout;
+    private int maxConcurrentScrapes;
+    private boolean instrumentScrapes;
+    private final Map<String, List<PrometheusMeterRegistry>> metricsPaths = new LinkedHashMap<>();
+    private RuntimeStatus healthStatus;
+    private List<DbStatusCollector> healthDatabases = List.of();
+    private Duration databaseCheckInterval;
 
     public SimplePrometheusServer(BiConsumer<String, Object> infoLogger) {
         this.infoLogger = infoLogger;
     }
 
+    /**
+     * Write the scrape straight to the response using chunked transfer encoding, instead of
+     * rendering the complete scrape in memory before sending it. The output is buffered
+     * through a small pool of reusable buffers, so the memory allocated per scrape stays flat
+     * regardless of how many time series the registry contains.
+     *
+     * @return this
+     */
+    public SimplePrometheusServer streamingResponse() {
+        return streamingResponse(BufferPool.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Same as {@link #streamingResponse()}, with a custom size of the pooled buffers.
+     *
+     * @param bufferSize the size in bytes of each pooled buffer
+     * @return this
+     */
+    public SimplePrometheusServer streamingResponse(int bufferSize) {
+        this.streamingBufferPool = new BufferPool(bufferSize, BufferPool.DEFAULT_MAX_POOLED_BUFFERS);
+        return this;
+    }
+
+    /**
+     * Compress the response with gzip or deflate when the scraper accepts it,
+     * using the default compression level, and only if the response is at least
+     * {@value ResponseCompression#DEFAULT_MIN_SIZE_BYTES} bytes.
+     *
+     * @return this
+     * @see #compression(int, int)
+     */
+    public SimplePrometheusServer compression() {
+        return compression(Deflater.DEFAULT_COMPRESSION, ResponseCompression.DEFAULT_MIN_SIZE_BYTES);
+    }
+
+    /**
+     * Compress the response with gzip or deflate, as negotiated with the
+     * <code>Accept-Encoding</code> header sent by the scraper. This also registers the metrics
+     * <code>app_metrics_scrape_compression_ratio</code> and <code>app_metrics_scrape_compression_seconds</code>
+     * in the served registry.
+     * <p>
+     * When {@link #streamingResponse() streaming}, the size of a response is only known if it fits
+     * in the streaming buffer, and any response larger than the buffer will be compressed.
+     *
+     * @param level the compression level, 0-9, or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param minSizeBytes responses smaller than this are sent uncompressed
+     * @return this
+     */
+    public SimplePrometheusServer compression(int level, int minSizeBytes) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        if (minSizeBytes < 0) {
+            throw new IllegalArgumentException("Min size for compression must not be negative, was " + minSizeBytes);
+        }
+        this.compression = true;
+        this.compressionLevel = level;
+        this.compressionMinSizeBytes = minSizeBytes;
+        return this;
+    }
+
+    /**
+     * Serve the exposition format requested in the <code>Accept</code> header sent by the scraper,
+     * instead of always using the Prometheus text format. The supported formats are
+     * <ul>
+     *   <li>the Prometheus protobuf format, which is the cheapest to parse for Prometheus,
+     *       if the protobuf writer of the Prometheus client library is on the classpath</li>
+     *   <li>the OpenMetrics text format, which also includes exemplars if the registry records them</li>
+     *   <li>the Prometheus text format</li>
+     * </ul>
+     *
+     * @return this
+     */
+    public SimplePrometheusServer negotiateFormat() {
+        this.negotiateFormat = true;
+        return this;
+    }
+
+    /**
+     * Reuse a rendered scrape response for the given duration, so that several scrapers
+     * (e.g. redundant Prometheus instances) scraping at about the same time do not each
+     * serialize the complete registry. Concurrent requests also share the same serialization
+     * while it is in progress. This registers the counter <code>app_metrics_scrape_cache_total</code>
+     * in the served registry, counting cache hits and misses.
+     * <p>
+     * The time to live should be considerably shorter than the scrape interval.
+     * The responses are rendered in memory, so this overrides {@link #streamingResponse()}.
+     *
+     * @param timeToLive how long a rendered response may be reused
+     * @return this
+     */
+    public SimplePrometheusServer cacheScrape(Duration timeToLive) {
+        this.cacheTimeToLive = timeToLive;
+        return this;
+    }
+
+    /**
+     * Handle requests using the given executor, instead of on the single thread
+     * dispatching requests to the server. The executor is not shut down when the
+     * server is stopped.
+     *
+     * @param executor the executor to handle requests
+     * @return this
+     */
+    public SimplePrometheusServer executor(Executor executor) {
+        this.executor = executor;
+        this.virtualThreads = false;
+        return this;
+    }
+
+    /**
+     * Handle each request on a new virtual thread. This requires Java 21 or newer.
+     *
+     * @return this
+     * @throws UnsupportedOperationException if virtual threads are not available
+     */
+    public SimplePrometheusServer virtualThreads() {
+        if (!VirtualThreads.isAvailable()) {
+            throw new UnsupportedOperationException("Virtual threads requires Java 21 or newer");
+        }
+        this.executor = null;
+        this.virtualThreads = true;
+        return this;
+    }
+
+    /**
+     * @param backlog the max number of incoming connections to queue, if the server is
+     *                not able to accept them fast enough
+     * @return this
+     */
+    public SimplePrometheusServer backlog(int backlog) {
+        this.backlog = backlog;
+        return this;
+    }
+
+    /**
+     * Abort requests which are not completed within the given timeout. This is done by closing
+     * the connection, which leaves the scraper with an incomplete response. An aborted scrape
+     * still counts against the {@link #maxConcurrentScrapes(int) max concurrent scrapes} until it
+     * is done rendering.
+     *
+     * @param requestTimeout the max time to spend on a request
+     * @return this
+     */
+    public SimplePrometheusServer requestTimeout(Duration requestTimeout) {
+        if (requestTimeout.isNegative() || requestTimeout.isZero()) {
+            throw new IllegalArgumentException("Request timeout must be positive, was " + requestTimeout);
+        }
+        this.requestTimeout = requestTimeout;
+        return this;
+    }
+
+    /**
+     * Limit the number of scrapes served concurrently. Requests exceeding the limit are
+     * rejected with <code>503 Service Unavailable</code>. This is only useful in combination with
+     * an {@link #executor(Executor) executor} or {@link #virtualThreads() virtual threads}, as
+     * requests are otherwise handled one at a time. The limit applies to all served paths combined.
+     *
+     * @param maxConcurrentScrapes the max number of concurrent scrapes
+     * @return this
+     */
+    public SimplePrometheusServer maxConcurrentScrapes(int maxConcurrentScrapes) {
+        if (maxConcurrentScrapes <= 0) {
+            throw new IllegalArgumentException("Max concurrent scrapes must be positive, was " + maxConcurrentScrapes);
+        }
+        this.maxConcurrentScrapes = maxConcurrentScrapes;
+        return this;
+    }
+
+    /**
+     * Record the cost of serving scrapes in the served registry:
+     * <ul>
+     *   <li><code>app_metrics_scrape_seconds</code>, a histogram of the time spent serving each scrape</li>
+     *   <li><code>app_metrics_scrape_response_bytes</code>, the size of each response body</li>
+     *   <li><code>app_metrics_scrape_series</code>, the number of samples in the latest complete scrape
+     *       in a text format, to reveal growing cardinality</li>
+     *   <li><code>app_metrics_scrape_in_flight</code>, the scrapes currently being served</li>
+     *   <li><code>app_metrics_scrape_rejected_total</code>, the scrapes rejected by the
+     *       {@link #maxConcurrentScrapes(int) limit of concurrent scrapes} or aborted by the
+     *       {@link #requestTimeout(Duration) request timeout}</li>
+     * </ul>
+     *
+     * @return this
+     */
+    public SimplePrometheusServer instrumentScrapes() {
+        this.instrumentScrapes = true;
+        return this;
+    }
+
+    /**
+     * Answer liveness probes on <code>/health/live</code> and readiness probes on <code>/health/ready</code>,
+     * from the given {@link RuntimeStatus}. The application is live unless it is
+     * {@link RuntimeStatus.State#OFFLINE OFFLINE}, and ready when it is {@link RuntimeStatus.State#ONLINE ONLINE}.
+     * Probes are answered with <code>200 OK</code> or <code>503 Service Unavailable</code>.
+     * <p>
+     * To not have probes wait for a scrape in progress, requests are handled on a pool of
+     * threads, unless an {@link #executor(Executor) executor} or {@link #virtualThreads() virtual threads}
+     * are used. Probes are neither subject to the {@link #maxConcurrentScrapes(int) limit of concurrent scrapes}
+     * nor the {@link #requestTimeout(Duration) request timeout}.
+     *
+     * @param runtimeStatus the status of the application
+     * @return this
+     */
+    public SimplePrometheusServer healthEndpoints(RuntimeStatus runtimeStatus) {
+        return healthEndpoints(runtimeStatus, null);
+    }
+
+    /**
+     * Same as {@link #healthEndpoints(RuntimeStatus)}, and the application is only ready when the given databases
+     * are available as well. The databases are checked in the background with the given interval, and a
+     * probe is answered from the latest results. A database is not available until it has been checked.
+     *
+     * @param runtimeStatus the status of the application
+     * @param databaseCheckInterval how often to check the databases
+     * @param databases the databases which must be available for the application to be ready
+     * @return this
+     */
+    public SimplePrometheusServer healthEndpoints(RuntimeStatus runtimeStatus, Duration databaseCheckInterval, DbStatusCollector ... databases) {
+        if (databases.length > 0 && (databaseCheckInterval.isNegative() || databaseCheckInterval.isZero())) {
+            throw new IllegalArgumentException("Database check interval must be positive, was " + databaseCheckInterval);
+        }
+        this.healthStatus = runtimeStatus;
+        this.healthDatabases = Arrays.asList(databases);
+        this.databaseCheckInterval = databaseCheckInterval;
+        return this;
+    }
+
+    /**
+     * Serve the given registries on an additional path. If more than one registry is given, they are
+     * merged into one response, by scraping one registry after the other. Duplicate <code># HELP</code>
+     * and <code># TYPE</code> lines of a metric present in several registries are left out, but its samples
+     * are not grouped together, and so the registries should preferably not contain the same metrics.
+     * <p>
+     * Any metrics registered by the server itself, e.g. by {@link #instrumentScrapes()}, are registered
+     * in the registry given to {@link #start(PrometheusMeterRegistry, int)}, or else in the first
+     * registry given to this method, and include all paths.
+     *
+     * @param path the path to serve the registries on, e.g. <code>/metrics/tenants</code>
+     * @param registries the registries to serve
+     * @return this
+     */
+    public SimplePrometheusServer metricsPath(String path, PrometheusMeterRegistry ... registries) {
+        if (!path.startsWith("/")) {
+            throw new IllegalArgumentException("Path must start with '/', was " + path);
+        }
+        if (registries.length == 0) {
+            throw new IllegalArgumentException("No registries to serve on " + path);
+        }
+        metricsPaths.put(path, Arrays.asList(registries));
+        return this;
+    }
+
+    /**
+     * Start the server, serving the given registry on <code>/metrics</code>, in addition to any
+     * paths configured with {@link #metricsPath(String, PrometheusMeterRegistry...)}. A JVM shutdown hook
+     * is registered to stop the server. Use {@link #start(PrometheusMeterRegistry, int)} to get a handle
+     * to the running server.
+     *
+     * @param prometheusContext the registry to serve
+     * @param prometheusPort the port to listen to
+     * @throws IllegalStateException if <code>/metrics</code> has been configured using {@link #metricsPath(String, PrometheusMeterRegistry...)}
+     */
     public void startMetricsServer(final PrometheusMeterRegistry prometheusContext, final int prometheusPort) {
+        start(prometheusContext, prometheusPort);
+    }
+
+    /**
+     * Same as {@link #startMetricsServer(PrometheusMeterRegistry, int)}, returning the running server, which can be
+     * used to find the port it listens to, and to stop it. The JVM shutdown hook is removed if the server is stopped
+     * using the returned {@link MetricsServer}.
+     *
+     * @param prometheusContext the registry to serve
+     * @param prometheusPort the port to listen to, or <code>0</code> for any available port
+     * @return the running server
+     * @throws IllegalStateException if <code>/metrics</code> has been configured using {@link #metricsPath(String, PrometheusMeterRegistry...)}
+     */
+    public MetricsServer start(final PrometheusMeterRegistry prometheusContext, final int prometheusPort) {
+        if (metricsPaths.containsKey(METRICS_PATH)) {
+            throw new IllegalStateException(METRICS_PATH + " is already configured, use start(int) instead");
+        }
+        Map<String, List<PrometheusMeterRegistry>> paths = new LinkedHashMap<>();
+        paths.put(METRICS_PATH, List.of(prometheusContext));
+        paths.putAll(metricsPaths);
+        return startServer(paths, prometheusPort);
+    }
+
+    /**
+     * Start the server, serving the paths configured with {@link #metricsPath(String, PrometheusMeterRegistry...)}.
+     * A JVM shutdown hook is registered to stop the server, unless it has been stopped using the
+     * returned {@link MetricsServer}.
+     *
+     * @param prometheusPort the port to listen to, or <code>0</code> for any available port
+     * @return the running server
+     * @throws IllegalStateException if no paths have been configured
+     */
+    public MetricsServer start(final int prometheusPort) {
+        if (metricsPaths.isEmpty()) {
+            throw new IllegalStateException("No registries to serve, configure at least one using metricsPath(..)");
+        }
+        return startServer(new LinkedHashMap<>(metricsPaths), prometheusPort);
+    }
+
+    private MetricsServer startServer(Map<String, List<PrometheusMeterRegistry>> paths, int prometheusPort) {
         // https://micrometer.io/docs/registry/prometheus
         try {
-            HttpServer server = HttpServer.create(new InetSocketAddress(prometheusPort), 0);
-            server.createContext(METRICS_PATH, httpExchange -> {
-                String response = prometheusContext.scrape();
-                httpExchange.sendResponseHeaders(200, response.getBytes().length);
-                try (OutputStream os = httpExchange.getResponseBody()) {
-                    os.write(response.getBytes());
+            HttpServer server = HttpServer.create(new InetSocketAddress(prometheusPort), backlog);
+            PrometheusMeterRegistry serverMetricsRegistry = paths.values().iterator().next().get(0);
+            ResponseCompression responseCompression = compression ? new ResponseCompression(compressionLevel, compressionMinSizeBytes, serverMetricsRegistry) : null;
+            ScrapeMetrics scrapeMetrics = instrumentScrapes ? new ScrapeMetrics(serverMetricsRegistry) : null;
+            Semaphore permits = maxConcurrentScrapes > 0 ? new Semaphore(maxConcurrentScrapes) : null;
+            List<ExecutorService> backgroundExecutors = new ArrayList<>();
+            ScheduledExecutorService timeouts = null;
+            if (requestTimeout != null) {
+                timeouts = Executors.newSingleThreadScheduledExecutor(daemonThreads("SimplePrometheusServerTimeouts"));
+                backgroundExecutors.add(timeouts);
+            }
+
+            for (Map.Entry<String, List<PrometheusMeterRegistry>> path : paths.entrySet()) {
+                ScrapeCache scrapeCache = cacheTimeToLive != null ? new ScrapeCache(cacheTimeToLive, System::nanoTime, serverMetricsRegistry) : null;
+                HttpHandler metricsHandler = new MetricsHandler(path.getValue(), streamingBufferPool, responseCompression, negotiateFormat, scrapeCache, scrapeMetrics);
+                if (permits != null || timeouts != null) {
+                    metricsHandler = new LimitingHandler(metricsHandler, permits, timeouts, requestTimeout != null ? requestTimeout.toNanos() : 0, scrapeMetrics);
                 }
-            });
+                server.createContext(path.getKey(), metricsHandler);
+            }
+
+            ExecutorService ownedExecutor = virtualThreads ? VirtualThreads.newVirtualThreadPerTaskExecutor() : null;
+            if (healthStatus != null) {
+                DatabaseStatuses databases = null;
+                if (!healthDatabases.isEmpty()) {
+                    databases = new DatabaseStatuses(healthDatabases);
+                    ScheduledExecutorService databaseChecks = Executors.newSingleThreadScheduledExecutor(daemonThreads("SimplePrometheusServerHealthChecks"));
+                    databaseChecks.scheduleWithFixedDelay(databases::refresh, 0, databaseCheckInterval.toNanos(), TimeUnit.NANOSECONDS);
+                    backgroundExecutors.add(databaseChecks);
+                }
+                server.createContext(HealthHandler.LIVE_PATH, new HealthHandler(healthStatus, databases, false));
+                server.createContext(HealthHandler.READY_PATH, new HealthHandler(healthStatus, databases, true));
+                if (ownedExecutor == null && executor == null) {
+                    ownedExecutor = Executors.newCachedThreadPool(daemonThreads("SimplePrometheusServerHandler"));
+                }
+            }
+            server.setExecutor(ownedExecutor != null ? ownedExecutor : executor);
 
             new Thread(server::start, "SimplePrometheusServer").start();
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(2), "SimplePrometheusServerShutdownHook"));
+            RunningServer runningServer = new RunningServer(server, ownedExecutor, backgroundExecutors);
+            Runtime.getRuntime().addShutdownHook(runningServer.shutdownHook);
 
-            infoLogger.accept("Started Prometheus metrics endpoint server on port {}", prometheusPort);
+            infoLogger.accept("Started Prometheus metrics endpoint server on port {}", server.getAddress().getPort());
+            return runningServer;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * The JDK HTTP server only waits whole seconds, and a grace period shorter than a second
+     * must not become an immediate stop.
+     */
+    static int wholeSecondsRoundedUp(Duration gracePeriod) {
+        if (gracePeriod.isNegative()) {
+            return 0;
+        }
+        long seconds = gracePeriod.getSeconds() + (gracePeriod.getNano() > 0 ? 1 : 0);
+        return (int) Math.min(Integer.MAX_VALUE, seconds);
+    }
+
+    private static final class RunningServer implements MetricsServer {
+
+        private final HttpServer server;
+        private final ExecutorService ownedExecutor;
+        private final List<ExecutorService> backgroundExecutors;
+        private final Thread shutdownHook;
+        private final AtomicBoolean stopped = new AtomicBoolean(false);
+
+        RunningServer(HttpServer server, ExecutorService ownedExecutor, List<ExecutorService> backgroundExecutors) {
+            this.server = server;
+            this.ownedExecutor = ownedExecutor;
+            this.backgroundExecutors = backgroundExecutors;
+            this.shutdownHook = new Thread(() -> doStop(DEFAULT_STOP_GRACE_PERIOD), "SimplePrometheusServerShutdownHook");
+        }
+
+        @Override
+        public InetSocketAddress getAddress() {
+            return server.getAddress();
+        }
+
+        @Override
+        public void stop(Duration gracePeriod) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException alreadyShuttingDown) {
+                // the shutdown hook is either running or about to run
+            }
+            doStop(gracePeriod);
+        }
+
+        private void doStop(Duration gracePeriod) {
+            if (!stopped.compareAndSet(false, true)) {
+                return;
+            }
+            server.stop(wholeSecondsRoundedUp(gracePeriod));
+            backgroundExecutors.forEach(ExecutorService::shutdownNow);
+            if (ownedExecutor != null) {
+                ownedExecutor.shutdown();
+                try {
+                    ownedExecutor.awaitTermination(gracePeriod.toMillis(), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
 }
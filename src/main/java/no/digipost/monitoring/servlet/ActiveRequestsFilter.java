@@ -16,6 +16,7 @@
 package no.digipost.monitoring.servlet;
 
 import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.DispatcherType;
 import jakarta.servlet.Filter;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.FilterConfig;
@@ -23,72 +24,175 @@ import jakarta.servlet.ServletException;
 import jakarta.servlet.ServletRequest;
 import jakarta.servlet.ServletResponse;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 
 import static java.util.Collections.emptyList;
-import static java.util.stream.Collectors.toList;
 
 public class ActiveRequestsFilter implements Filter {
-    final Map<UUID, RequestMetaInfo> activeRequests = new ConcurrentHashMap<>();
-    private final Config config;
+    final RequestTracker tracker;
+    private final RequestClock clock;
+    final RouteMetrics routes;
+    final AtomicInteger asyncActive = new AtomicInteger();
+    private final SaturationMetrics saturation;
+    private final SaturationMetrics.QueueingDelay queueingDelay;
+    private final String acceptedAtAttribute;
+    private final String acceptedAtHeader;
+    private final LongRunningRequestsDump longRunningRequestsDump;
+    private final LoadShedder loadShedder;
 
     public ActiveRequestsFilter(MeterRegistry registry, ActiveRequestsFilter.Config config) {
-        this.config = config;
-        registry.gauge("app_http_requests_active", activeRequests, Map::size);
+        this.clock = config.clock;
+        this.tracker = config.trackingCapacity > 0
+                ? new SlotArrayRequestTracker(config.trackingCapacity, config.longRunningThreshold, config.longRunningExclusions, config.captureThreads, clock)
+                : new MapRequestTracker(config.longRunningThreshold, config.longRunningExclusions, config.captureThreads, clock);
+        registry.gauge("app_http_requests_active", tracker, RequestTracker::active);
         registry.gauge("app_http_requests_max", config.getMaxThreads());
+        registry.gauge("app_http_requests_async_active", asyncActive);
 
-        registry.gauge("app_http_requests_longrunning", emptyList(), activeRequests,
-                (Map<UUID, RequestMetaInfo> activeRequests) -> getLongRunning(activeRequests, config.longRunningThreshold).size());
+        registry.gauge("app_http_requests_longrunning", emptyList(), tracker,
+                (RequestTracker tracker) -> tracker.longRunning(clock.nanoTime()));
+        this.routes = config.routeNormalizer != null ? new RouteMetrics(registry, config.routeNormalizer, config.maxRoutes, config.bodySizeMetrics) : null;
+        this.saturation = config.saturationMetrics ? new SaturationMetrics(registry, clock::nanoTime) : null;
+        this.acceptedAtAttribute = config.acceptedAtAttribute;
+        this.acceptedAtHeader = config.acceptedAtHeader;
+        this.longRunningRequestsDump = new LongRunningRequestsDump(tracker,
+                config.dumpMaxRequests, config.dumpMaxStackDepth, config.dumpMinInterval, clock::nanoTime);
+        this.loadShedder = config.concurrencyLimit != null ? new LoadShedder(registry, config.concurrencyLimit, config.shedStatus) : null;
+        this.queueingDelay = acceptedAtAttribute != null || acceptedAtHeader != null ? new SaturationMetrics.QueueingDelay(registry) : null;
     }
 
+    /**
+     * Tracks the request until the filter chain returns, or, if the request is put in
+     * async mode, until the async processing completes, times out or fails. Async dispatches
+     * of a request already being tracked are passed through without being tracked again.
+     * If {@link Config#loadShedding(ConcurrencyLimit) shedding load}, requests over the limit are
+     * rejected before being tracked.
+     */
     @Override
-    public void doFilter(final ServletRequest servletRequest, final ServletResponse servletResponse, final FilterChain filterChain) throws IOException, ServletException {
-        UUID requestId = UUID.randomUUID();
-        RequestMetaInfo metaInfo = createRequestMetaInfo(servletRequest, Instant.now());
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, final FilterChain filterChain) throws IOException, ServletException {
+        if (servletRequest.getDispatcherType() == DispatcherType.ASYNC) {
+            filterChain.doFilter(servletRequest, servletResponse);
+            return;
+        }
+        if (loadShedder != null && !loadShedder.tryAcquire()) {
+            if (servletResponse instanceof HttpServletResponse) {
+                ((HttpServletResponse) servletResponse).setStatus(loadShedder.rejectedStatus);
+            }
+            return;
+        }
+        long startNanos = clock.nanoTime();
+        long handle = 0;
+        boolean tracked = false;
+        RouteMetrics.RouteMeters route = null;
+        boolean saturated = false;
+        boolean async = false;
         try {
-            activeRequests.put(requestId, metaInfo);
+            if (servletRequest instanceof HttpServletRequest) {
+                HttpServletRequest httpReq = (HttpServletRequest) servletRequest;
+                handle = tracker.start(httpReq.getRequestURI(), httpReq.getMethod(), startNanos);
+                tracked = true;
+                if (routes != null) {
+                    RouteMetrics.RouteMeters meters = routes.meters(httpReq.getRequestURI(), httpReq.getMethod());
+                    meters.started();
+                    route = meters;
+                    if (route.recordsBodySizes() && servletResponse instanceof HttpServletResponse) {
+                        servletRequest = new BodySizes.Request(httpReq);
+                        servletResponse = new BodySizes.Response((HttpServletResponse) servletResponse);
+                    }
+                }
+                if (queueingDelay != null) {
+                    queueingDelay.record(acceptedAt(httpReq), clock.epochMillis());
+                }
+            } else {
+                handle = tracker.start("?", "?", startNanos);
+                tracked = true;
+            }
+            if (saturation != null) {
+                saturation.started(startNanos);
+                saturated = true;
+            }
             filterChain.doFilter(servletRequest, servletResponse);
+            if (servletRequest.isAsyncStarted()) {
+                async = trackUntilAsyncCompleted(servletRequest, servletResponse, handle, route, startNanos);
+            }
         } finally {
-            activeRequests.remove(requestId);
+            if (!async) {
+                end(tracked, handle, route, saturated, startNanos, servletRequest, servletResponse);
+            }
         }
     }
 
-    @Override
-    public void init(FilterConfig filterConfig) {}
+    /**
+     * The requests currently counted as long-running, with a sample of the stack of the thread handling each
+     * request if {@link Config#captureThreads() threads are captured}. The number of requests and the
+     * depth of the stacks are bounded, and a new dump is made at most once for each interval, as configured
+     * by {@link Config#longRunningRequestsDump(int, int, Duration)}. Calls within the interval get the
+     * previous dump.
+     *
+     * @see LongRunningRequestsServlet
+     */
+    public List<LongRunningRequest> longRunningRequests() {
+        return longRunningRequestsDump.dump();
+    }
 
-    @Override
-    public void destroy() {}
+    void end(long handle, RouteMetrics.RouteMeters route, long startNanos, ServletRequest request, ServletResponse response) {
+        end(true, handle, route, saturation != null, startNanos, request, response);
+    }
 
-    private boolean excludedRequest(RequestMetaInfo requestMetaInfo) {
-        return config.longRunningExclusions.stream().anyMatch(p -> p.test(requestMetaInfo));
+    /**
+     * Releases only what was acquired for the request, as tracking it may have failed part way.
+     * The {@link LoadShedder} permit is always released, as it is acquired before anything else.
+     */
+    private void end(boolean tracked, long handle, RouteMetrics.RouteMeters route, boolean saturated, long startNanos, ServletRequest request, ServletResponse response) {
+        if (tracked) {
+            tracker.end(handle);
+        }
+        if (route != null || saturated || loadShedder != null) {
+            long endNanos = clock.nanoTime();
+            if (route != null) {
+                route.completed(startNanos, endNanos);
+                if (request instanceof BodySizes.Request && response instanceof BodySizes.Response) {
+                    route.bodySizes(((BodySizes.Request) request).bodyBytes(), ((BodySizes.Response) response).bodyBytes());
+                }
+            }
+            if (saturated) {
+                saturation.ended(endNanos);
+            }
+            if (loadShedder != null) {
+                loadShedder.release(endNanos - startNanos);
+            }
+        }
     }
 
-    private List<RequestMetaInfo> getLongRunning(Map<UUID, RequestMetaInfo> activeRequests, Duration longRunningThreshold) {
-        Instant deadline = Instant.now().minus(longRunningThreshold);
-        return activeRequests.values().stream()
-                .filter(m -> m.isOlderThan(deadline) && !excludedRequest(m))
-                .collect(toList());
+    private Object acceptedAt(HttpServletRequest request) {
+        Object acceptedAt = acceptedAtAttribute != null ? request.getAttribute(acceptedAtAttribute) : null;
+        return acceptedAt == null && acceptedAtHeader != null ? request.getHeader(acceptedAtHeader) : acceptedAt;
     }
 
-    private static RequestMetaInfo createRequestMetaInfo(ServletRequest servletRequest, Instant now) {
-        if (servletRequest instanceof HttpServletRequest) {
-            HttpServletRequest httpReq = (HttpServletRequest) servletRequest;
-            String path = httpReq.getRequestURI();
-            String method = httpReq.getMethod();
-            return new RequestMetaInfo(path, method, now);
-        } else {
-            return new RequestMetaInfo();
+    private boolean trackUntilAsyncCompleted(ServletRequest request, ServletResponse response, long handle, RouteMetrics.RouteMeters route, long startNanos) {
+        asyncActive.incrementAndGet();
+        try {
+            request.getAsyncContext().addListener(new AsyncCompletion(this, handle, route, startNanos, request, response));
+            return true;
+        } catch (IllegalStateException alreadyCompleted) {
+            asyncActive.decrementAndGet();
+            return false;
         }
     }
 
+    @Override
+    public void init(FilterConfig filterConfig) {}
+
+    @Override
+    public void destroy() {}
+
 
     public static class RequestMetaInfo {
         public final String path;
@@ -115,10 +219,60 @@ public class ActiveRequestsFilter implements Filter {
         }
     }
 
+    public static class LongRunningRequest {
+        public final String path;
+        public final String method;
+        public final Duration age;
+        /**
+         * The name of the thread which started handling the request, or {@code null} if threads are not captured.
+         */
+        public final String threadName;
+        /**
+         * A sample of the stack of the thread which started handling the request, empty if threads are not
+         * captured. If the request is async, the thread may be doing something else.
+         */
+        public final List<StackTraceElement> stackTrace;
+
+        public LongRunningRequest(String path, String method, Duration age, String threadName, List<StackTraceElement> stackTrace) {
+            this.path = path;
+            this.method = method;
+            this.age = age;
+            this.threadName = threadName;
+            this.stackTrace = stackTrace;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder().append(age).append(' ').append(method).append(' ').append(path);
+            if (threadName != null) {
+                s.append(" on \"").append(threadName).append('"');
+            }
+            s.append('\n');
+            for (StackTraceElement element : stackTrace) {
+                s.append("\tat ").append(element).append('\n');
+            }
+            return s.toString();
+        }
+    }
+
     public static class Config {
         private Duration longRunningThreshold = Duration.ofMinutes(1);
         private int maxThreads;
         private List<Predicate<RequestMetaInfo>> longRunningExclusions = emptyList();
+        private int trackingCapacity;
+        private RouteNormalizer routeNormalizer;
+        private int maxRoutes;
+        private boolean saturationMetrics;
+        private String acceptedAtAttribute;
+        private String acceptedAtHeader;
+        private boolean captureThreads;
+        private int dumpMaxRequests = LongRunningRequestsDump.DEFAULT_MAX_REQUESTS;
+        private int dumpMaxStackDepth = LongRunningRequestsDump.DEFAULT_MAX_STACK_DEPTH;
+        private Duration dumpMinInterval = LongRunningRequestsDump.DEFAULT_MIN_INTERVAL;
+        private ConcurrencyLimit concurrencyLimit;
+        private int shedStatus;
+        private boolean bodySizeMetrics;
+        private RequestClock clock = RequestClock.system();
 
         private Config(int maxThreads) {
             this.maxThreads = maxThreads;
@@ -138,6 +292,176 @@ public class ActiveRequestsFilter implements Filter {
             return this;
         }
 
+        /**
+         * Track active requests in a preallocated array of slots, instead of in a map.
+         * Starting and ending a request is then lock-free and does not allocate anything,
+         * at the cost of reading the active requests gauge being proportional to the capacity.
+         * Long-running requests are detected incrementally, and the {@link #longRunningExclusions(List) exclusions}
+         * are evaluated only once for each request, when it becomes long-running.
+         * The capacity is twice the max threads, and at least 64.
+         *
+         * @see #lockFreeTracking(int)
+         */
+        public Config lockFreeTracking() {
+            return lockFreeTracking(Math.max(64, maxThreads * 2));
+        }
+
+        /**
+         * Same as {@link #lockFreeTracking()}, with a custom capacity. If more requests than the capacity
+         * are active at the same time, the excess requests are still counted as active, but never as
+         * long-running.
+         *
+         * @param capacity the max number of requests to keep track of, which is rounded up to a power of two
+         */
+        public Config lockFreeTracking(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("Capacity must be positive, was " + capacity);
+            }
+            this.trackingCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Record in-flight requests and request durations for each route and method, in
+         * <code>app_http_requests_route_active</code> and <code>app_http_requests_route_seconds</code>,
+         * tagged with <code>route</code> and <code>method</code>. Identifiers in the path are collapsed
+         * by {@link RouteNormalizer#collapsingIds()}, and at most 100 routes are recorded.
+         *
+         * @see #routeMetrics(RouteNormalizer, int)
+         */
+        public Config routeMetrics() {
+            return routeMetrics(RouteNormalizer.collapsingIds(), 100);
+        }
+
+        /**
+         * Same as {@link #routeMetrics()}, with a custom normalizer and max number of routes.
+         * Requests for any route beyond the max are recorded with the route <code>OTHER</code>.
+         *
+         * @param normalizer turns the request URI into a route
+         * @param maxRoutes the max number of distinct routes to record
+         */
+        public Config routeMetrics(RouteNormalizer normalizer, int maxRoutes) {
+            if (maxRoutes <= 0) {
+                throw new IllegalArgumentException("Max routes must be positive, was " + maxRoutes);
+            }
+            this.routeNormalizer = normalizer;
+            this.maxRoutes = maxRoutes;
+            return this;
+        }
+
+        /**
+         * Record the saturation of the threads handling requests in <code>app_http_requests_busy_seconds_total</code>,
+         * the time spent handling requests, whose rate divided by max threads is the utilization of the threads,
+         * and <code>app_http_requests_highwater</code>, the max active requests within roughly the last minute.
+         * Unlike the active requests gauge, these include any peaks happening between scrapes.
+         */
+        public Config saturationMetrics() {
+            this.saturationMetrics = true;
+            return this;
+        }
+
+        /**
+         * Record <code>app_http_requests_queueing_seconds</code>, the time from the request was accepted,
+         * e.g. by a proxy or the container, until it reached this filter. The time the request was accepted
+         * is read from a request attribute, as an {@link Instant}, or a number or string with the time since
+         * the epoch. The unit of the number is determined by its magnitude.
+         * Requests without the attribute are not recorded.
+         *
+         * @param attributeName the name of the request attribute
+         */
+        public Config queueingDelayFromAttribute(String attributeName) {
+            this.acceptedAtAttribute = attributeName;
+            return this;
+        }
+
+        /**
+         * Same as {@link #queueingDelayFromAttribute(String)}, reading the time the request was accepted from
+         * a header, such as <code>X-Request-Start</code>. The value may be prefixed with <code>t=</code>, and
+         * be in seconds with decimals, or in seconds, milliseconds or microseconds since the epoch.
+         * Note that the clocks of a proxy setting the header and of the application may differ.
+         * If both an attribute and a header are configured, the attribute takes precedence.
+         *
+         * @param headerName the name of the header
+         */
+        public Config queueingDelayFromHeader(String headerName) {
+            this.acceptedAtHeader = headerName;
+            return this;
+        }
+
+        /**
+         * Keep a reference to the thread handling each request, to include a sample of its stack in
+         * {@link ActiveRequestsFilter#longRunningRequests()}.
+         */
+        public Config captureThreads() {
+            this.captureThreads = true;
+            return this;
+        }
+
+        /**
+         * Limits of {@link ActiveRequestsFilter#longRunningRequests()}. The defaults are 10 requests,
+         * 32 stack frames, and 10 seconds.
+         *
+         * @param maxRequests the max number of requests to include
+         * @param maxStackDepth the max number of stack frames to include for each request
+         * @param minInterval the min interval between each time the stacks are sampled
+         */
+        public Config longRunningRequestsDump(int maxRequests, int maxStackDepth, Duration minInterval) {
+            if (maxRequests < 0 || maxStackDepth < 0 || minInterval.isNegative()) {
+                throw new IllegalArgumentException("Limits of long-running requests dump must not be negative, was "
+                        + maxRequests + " requests, " + maxStackDepth + " stack frames, " + minInterval + " interval");
+            }
+            this.dumpMaxRequests = maxRequests;
+            this.dumpMaxStackDepth = maxStackDepth;
+            this.dumpMinInterval = minInterval;
+            return this;
+        }
+
+        /**
+         * Reject requests immediately with <code>503 Service Unavailable</code> when as many requests as the
+         * limit are already in flight, to avoid collapsing under overload. Rejected requests are counted in
+         * <code>app_http_requests_shed_total</code>, and are not tracked otherwise. The current limit is
+         * recorded in <code>app_http_requests_limit</code>.
+         *
+         * @param limit the limit, e.g. {@link ConcurrencyLimit#fixed(int) fixed} or adapting to latency
+         *              with {@link ConcurrencyLimit#gradient(int, int, int) gradient}
+         */
+        public Config loadShedding(ConcurrencyLimit limit) {
+            return loadShedding(limit, 503);
+        }
+
+        /**
+         * Same as {@link #loadShedding(ConcurrencyLimit)}, rejecting with a custom status,
+         * e.g. <code>429 Too Many Requests</code>.
+         */
+        public Config loadShedding(ConcurrencyLimit limit, int rejectedStatus) {
+            this.concurrencyLimit = limit;
+            this.shedStatus = rejectedStatus;
+            return this;
+        }
+
+        /**
+         * Record the sizes of request and response bodies for each route and method, in
+         * <code>app_http_requests_route_request_size_bytes</code> and <code>app_http_requests_route_response_size_bytes</code>.
+         * The bytes are counted as they pass through the input and output streams of the request and
+         * response, without buffering. If the request body is not read through the input stream,
+         * its content length is recorded. Characters written through the writer of the response are
+         * counted as the bytes they are encoded to in UTF-8, or as one byte each in any other encoding.
+         * Enables {@link #routeMetrics()}, unless already configured.
+         */
+        public Config bodySizeMetrics() {
+            this.bodySizeMetrics = true;
+            return routeNormalizer != null ? this : routeMetrics();
+        }
+
+        /**
+         * The source of time for measuring requests, e.g. {@link RequestClock#coarse()}.
+         * The default is {@link RequestClock#system()}.
+         */
+        public Config clock(RequestClock clock) {
+            this.clock = clock;
+            return this;
+        }
+
         public int getMaxThreads() {
             return maxThreads;
         }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Additive increase, multiplicative decrease, with each update done by a single compare-and-set.
+ *
+ * @see ConcurrencyLimit#aimd(int, int, int, java.time.Duration)
+ */
+final class AimdConcurrencyLimit implements ConcurrencyLimit {
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final AtomicInteger limit;
+
+    AimdConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, long latencyThresholdNanos) {
+        if (minLimit <= 0 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Limits must be positive, and min <= initial <= max, was "
+                    + minLimit + " <= " + initialLimit + " <= " + maxLimit);
+        }
+        if (latencyThresholdNanos <= 0) {
+            throw new IllegalArgumentException("Latency threshold must be positive, was " + latencyThresholdNanos + " ns");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = latencyThresholdNanos;
+        this.limit = new AtomicInteger(initialLimit);
+    }
+
+    @Override
+    public int current() {
+        return limit.get();
+    }
+
+    @Override
+    public void onSample(long latencyNanos, int inFlight) {
+        int current = limit.get();
+        int updated;
+        if (latencyNanos > latencyThresholdNanos) {
+            updated = Math.max(minLimit, (int) (current * BACKOFF_RATIO));
+        } else if (inFlight * 2 >= current) {
+            updated = Math.min(maxLimit, current + 1);
+        } else {
+            return;
+        }
+        if (updated != current) {
+            limit.compareAndSet(current, updated);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AIMD concurrency limit " + limit.get() + " [" + minLimit + ", " + maxLimit + "]";
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Ends the tracking of an async request when it completes, times out or fails,
+ * whichever is notified first. If the request is started async again, e.g. from
+ * an async dispatch, the listener is added to the new async cycle.
+ * The count of active async requests is incremented by the filter before adding
+ * the listener, and decremented here.
+ */
+final class AsyncCompletion implements AsyncListener {
+
+    private final ActiveRequestsFilter filter;
+    private final long handle;
+    private final RouteMetrics.RouteMeters route;
+    private final long startNanos;
+    private final ServletRequest request;
+    private final ServletResponse response;
+    private final AtomicBoolean ended = new AtomicBoolean();
+
+    AsyncCompletion(ActiveRequestsFilter filter, long handle, RouteMetrics.RouteMeters route, long startNanos,
+                    ServletRequest request, ServletResponse response) {
+        this.filter = filter;
+        this.handle = handle;
+        this.route = route;
+        this.startNanos = startNanos;
+        this.request = request;
+        this.response = response;
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        end();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        end();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        end();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        if (!ended.get()) {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    private void end() {
+        if (ended.compareAndSet(false, true)) {
+            filter.asyncActive.decrementAndGet();
+            filter.end(handle, route, startNanos, request, response);
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Wrappers counting the size of the request and response bodies as they pass through the streams.
+ */
+final class BodySizes {
+
+    static final class Request extends HttpServletRequestWrapper {
+
+        private CountingServletInputStream in;
+
+        Request(HttpServletRequest request) {
+            super(request);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (in == null) {
+                in = new CountingServletInputStream(super.getInputStream());
+            }
+            return in;
+        }
+
+        /**
+         * @return the bytes read through the input stream, or if the stream was not used,
+         *         e.g. if the body was read through the reader, the content length if known
+         */
+        long bodyBytes() {
+            return in != null ? in.count() : Math.max(0, getContentLengthLong());
+        }
+    }
+
+    static final class Response extends HttpServletResponseWrapper {
+
+        private CountingServletOutputStream out;
+        private CountingPrintWriter writer;
+
+        Response(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                out = new CountingServletOutputStream(super.getOutputStream());
+            }
+            return out;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                PrintWriter containerWriter = super.getWriter();
+                writer = new CountingPrintWriter(containerWriter, isUtf8(getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        private static boolean isUtf8(String encoding) {
+            try {
+                return encoding != null && UTF_8.equals(Charset.forName(encoding));
+            } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                return false;
+            }
+        }
+
+        /**
+         * @return the bytes written through the output stream, plus the bytes written through
+         *         the writer, which are exact for UTF-8 and single-byte encodings
+         */
+        long bodyBytes() {
+            return (out != null ? out.count() : 0) + (writer != null ? writer.count() : 0);
+        }
+    }
+
+    private BodySizes() {
+    }
+
+}
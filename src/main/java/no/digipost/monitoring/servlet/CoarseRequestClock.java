@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @see RequestClock#coarse()
+ */
+final class CoarseRequestClock implements RequestClock {
+
+    static final CoarseRequestClock INSTANCE = new CoarseRequestClock(TimeUnit.MILLISECONDS.toNanos(1));
+
+    private volatile long nanoTime;
+    private volatile long epochMillis;
+
+    private CoarseRequestClock(long resolutionNanos) {
+        tick();
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                LockSupport.parkNanos(resolutionNanos);
+                tick();
+            }
+        }, "RequestClockTicker");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private void tick() {
+        nanoTime = System.nanoTime();
+        epochMillis = System.currentTimeMillis();
+    }
+
+    @Override
+    public long nanoTime() {
+        return nanoTime;
+    }
+
+    @Override
+    public long epochMillis() {
+        return epochMillis;
+    }
+
+}
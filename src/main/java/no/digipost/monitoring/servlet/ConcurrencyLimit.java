@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import java.time.Duration;
+
+/**
+ * The max number of requests to handle concurrently when
+ * {@link ActiveRequestsFilter.Config#loadShedding(ConcurrencyLimit) shedding load}.
+ * A limit may adapt to the latency of completed requests, and keeps state, so an
+ * instance must not be shared between filters.
+ */
+public interface ConcurrencyLimit {
+
+    /**
+     * @param limit the max number of concurrent requests
+     * @return a limit which never changes
+     */
+    static ConcurrencyLimit fixed(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive, was " + limit);
+        }
+        return new ConcurrencyLimit() {
+            @Override
+            public int current() {
+                return limit;
+            }
+
+            @Override
+            public void onSample(long latencyNanos, int inFlight) {
+            }
+
+            @Override
+            public String toString() {
+                return "fixed concurrency limit " + limit;
+            }
+        };
+    }
+
+    /**
+     * A limit which is increased by one when a request completes within the latency threshold while
+     * at least half of the limit is in use, and decreased by 10% when a request exceeds the threshold.
+     *
+     * @param initialLimit the limit to start with
+     * @param minLimit the limit is never decreased below this
+     * @param maxLimit the limit is never increased above this
+     * @param latencyThreshold requests slower than this decrease the limit, must be positive
+     */
+    static ConcurrencyLimit aimd(int initialLimit, int minLimit, int maxLimit, Duration latencyThreshold) {
+        return new AimdConcurrencyLimit(initialLimit, minLimit, maxLimit, latencyThreshold.toNanos());
+    }
+
+    /**
+     * A limit which follows the gradient of the short-term average latency relative to the long-term
+     * average latency. When requests become slower than usual, the limit is reduced in proportion,
+     * by at most half, and when latency is stable the limit grows by the square root of itself,
+     * allowing some queueing. The long-term average slowly adapts to a new normal latency.
+     *
+     * @param initialLimit the limit to start with
+     * @param minLimit the limit is never decreased below this
+     * @param maxLimit the limit is never increased above this
+     */
+    static ConcurrencyLimit gradient(int initialLimit, int minLimit, int maxLimit) {
+        return new GradientConcurrencyLimit(initialLimit, minLimit, maxLimit);
+    }
+
+    /**
+     * @return the current limit, read for each request, and should be cheap
+     */
+    int current();
+
+    /**
+     * Called when a request admitted by the limit completes.
+     *
+     * @param latencyNanos the duration of the request
+     * @param inFlight the number of requests in flight when the request completed, including itself
+     */
+    void onSample(long latencyNanos, int inFlight);
+
+}
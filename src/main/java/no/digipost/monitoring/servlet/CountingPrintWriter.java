@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Counts the bytes written through the {@link PrintWriter} of a response, passing the characters
+ * straight on to the writer of the container, which does the encoding and buffering. The bytes are
+ * counted exactly for UTF-8, and as one byte per character for any other encoding, which is exact
+ * only for single-byte encodings.
+ */
+final class CountingPrintWriter extends PrintWriter {
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final boolean utf8;
+    private long count;
+
+    /**
+     * @param out the writer of the container
+     * @param utf8 whether the container encodes the characters as UTF-8
+     */
+    CountingPrintWriter(Writer out, boolean utf8) {
+        super(out);
+        this.utf8 = utf8;
+    }
+
+    long count() {
+        return count;
+    }
+
+    @Override
+    public void write(int c) {
+        super.write(c);
+        count += bytes((char) c);
+    }
+
+    @Override
+    public void write(char[] buf, int off, int len) {
+        super.write(buf, off, len);
+        if (utf8) {
+            for (int i = off; i < off + len; i++) {
+                count += bytes(buf[i]);
+            }
+        } else {
+            count += len;
+        }
+    }
+
+    @Override
+    public void write(String s, int off, int len) {
+        super.write(s, off, len);
+        count += bytes(s, off, len);
+    }
+
+    /**
+     * The line separator is written by {@link PrintWriter} directly to the writer of the container,
+     * bypassing the other methods, and so it is counted here.
+     */
+    @Override
+    public void println() {
+        super.println();
+        count += bytes(LINE_SEPARATOR, 0, LINE_SEPARATOR.length());
+    }
+
+    private long bytes(String s, int off, int len) {
+        if (!utf8) {
+            return len;
+        }
+        long bytes = 0;
+        for (int i = off; i < off + len; i++) {
+            bytes += bytes(s.charAt(i));
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the bytes of the character when encoded, where each of the two surrogates of a
+     *         supplementary character counts half of its four bytes in UTF-8
+     */
+    private int bytes(char c) {
+        if (!utf8 || c < 0x80) {
+            return 1;
+        } else if (c < 0x800 || Character.isSurrogate(c)) {
+            return 2;
+        } else {
+            return 3;
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A simplified gradient limit. The short-term and long-term average latencies are exponentially
+ * weighted moving averages over roughly 10 and 500 requests. A completed request updates the averages
+ * and the limit unless another request is already updating them, in which case its sample is dropped,
+ * so completing requests never wait for each other. Reading the limit is a volatile read.
+ *
+ * @see ConcurrencyLimit#gradient(int, int, int)
+ */
+final class GradientConcurrencyLimit implements ConcurrencyLimit {
+
+    private static final double SHORT_TERM_WEIGHT = 0.1;
+    private static final double LONG_TERM_WEIGHT = 0.002;
+    private static final double SMOOTHING = 0.2;
+    private static final double MIN_GRADIENT = 0.5;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private volatile int limit;
+
+    private final AtomicBoolean updating = new AtomicBoolean();
+    // guarded by updating
+    private double estimatedLimit;
+    private double shortTermNanos;
+    private double longTermNanos;
+
+    GradientConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit <= 0 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Limits must be positive, and min <= initial <= max, was "
+                    + minLimit + " <= " + initialLimit + " <= " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.estimatedLimit = initialLimit;
+    }
+
+    @Override
+    public int current() {
+        return limit;
+    }
+
+    @Override
+    public void onSample(long latencyNanos, int inFlight) {
+        if (!updating.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            update(latencyNanos, inFlight);
+        } finally {
+            updating.set(false);
+        }
+    }
+
+    private void update(long latencyNanos, int inFlight) {
+        if (longTermNanos == 0) {
+            shortTermNanos = latencyNanos;
+            longTermNanos = latencyNanos;
+            return;
+        }
+        shortTermNanos += (latencyNanos - shortTermNanos) * SHORT_TERM_WEIGHT;
+        longTermNanos += (latencyNanos - longTermNanos) * LONG_TERM_WEIGHT;
+        if (longTermNanos / shortTermNanos > 2) {
+            // latency has dropped considerably, let the long-term average catch up faster
+            longTermNanos *= 0.95;
+        }
+        if (inFlight * 2 < estimatedLimit) {
+            // not using the limit, and so the latency says nothing about whether it is too high
+            return;
+        }
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, longTermNanos / shortTermNanos));
+        double target = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit * (1 - SMOOTHING) + target * SMOOTHING));
+        limit = (int) estimatedLimit;
+    }
+
+    @Override
+    public String toString() {
+        return "gradient concurrency limit " + limit + " [" + minLimit + ", " + maxLimit + "]";
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+/**
+ * @see RouteNormalizer#collapsingIds()
+ */
+final class IdCollapsingRouteNormalizer implements RouteNormalizer {
+
+    static final IdCollapsingRouteNormalizer INSTANCE = new IdCollapsingRouteNormalizer();
+
+    private static final String ID = "{id}";
+
+    @Override
+    public String normalize(String path) {
+        StringBuilder route = null;
+        int segmentStart = 0;
+        int length = path.length();
+        while (segmentStart <= length) {
+            int segmentEnd = path.indexOf('/', segmentStart);
+            if (segmentEnd < 0) {
+                segmentEnd = length;
+            }
+            int parameters = path.indexOf(';', segmentStart);
+            int valueEnd = parameters >= 0 && parameters < segmentEnd ? parameters : segmentEnd;
+            boolean id = isId(path, segmentStart, valueEnd);
+            if (route == null && (id || valueEnd != segmentEnd)) {
+                route = new StringBuilder(length).append(path, 0, segmentStart);
+            }
+            if (route != null) {
+                route.append(id ? ID : path.substring(segmentStart, valueEnd));
+                if (segmentEnd < length) {
+                    route.append('/');
+                }
+            }
+            segmentStart = segmentEnd + 1;
+        }
+        return route != null ? route.toString() : path;
+    }
+
+    private static boolean isId(String path, int start, int end) {
+        int length = end - start;
+        if (length == 0) {
+            return false;
+        }
+        boolean digits = true;
+        boolean hex = true;
+        boolean token = true;
+        boolean hasDigit = false;
+        for (int i = start; i < end; i++) {
+            char c = path.charAt(i);
+            boolean digit = c >= '0' && c <= '9';
+            hasDigit |= digit;
+            digits &= digit;
+            hex &= digit || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F') || c == '-';
+            token &= digit || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '-' || c == '_';
+        }
+        return digits || (hex && hasDigit && length >= 8) || (token && hasDigit && length >= 16);
+    }
+
+}
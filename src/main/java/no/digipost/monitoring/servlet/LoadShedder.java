@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admits requests while the number in flight is below a {@link ConcurrencyLimit}, and records
+ * <ul>
+ *   <li><code>app_http_requests_shed_total</code>, requests rejected because of the limit</li>
+ *   <li><code>app_http_requests_limit</code>, the current limit</li>
+ * </ul>
+ */
+final class LoadShedder {
+
+    final int rejectedStatus;
+    private final ConcurrencyLimit limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Counter shed;
+
+    LoadShedder(MeterRegistry registry, ConcurrencyLimit limit, int rejectedStatus) {
+        this.limit = limit;
+        this.rejectedStatus = rejectedStatus;
+        this.shed = Counter.builder("app_http_requests_shed")
+                .description("Requests rejected because the concurrency limit was reached")
+                .register(registry);
+        Gauge.builder("app_http_requests_limit", limit, ConcurrencyLimit::current)
+                .description("Current concurrency limit of requests")
+                .register(registry);
+    }
+
+    /**
+     * @return whether the request is admitted, in which case {@link #release(long)} must be called when it completes
+     */
+    boolean tryAcquire() {
+        int max = limit.current();
+        while (true) {
+            int current = inFlight.get();
+            if (current >= max) {
+                shed.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release(long latencyNanos) {
+        limit.onSample(latencyNanos, inFlight.getAndDecrement());
+    }
+
+}
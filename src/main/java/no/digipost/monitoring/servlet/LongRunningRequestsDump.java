@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import no.digipost.monitoring.servlet.ActiveRequestsFilter.LongRunningRequest;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Dumps the long-running requests, with a sample of the stack of the thread handling each request.
+ * <p>
+ * Sampling the stack of a thread requires bringing it to a safepoint, so a dump is only made at
+ * most once for each interval, and other calls within the interval get the previous dump. The number
+ * of requests and the depth of the stacks are bounded.
+ */
+final class LongRunningRequestsDump {
+
+    static final int DEFAULT_MAX_REQUESTS = 10;
+    static final int DEFAULT_MAX_STACK_DEPTH = 32;
+    static final Duration DEFAULT_MIN_INTERVAL = Duration.ofSeconds(10);
+
+    private final RequestTracker tracker;
+    private final int maxRequests;
+    private final int maxStackDepth;
+    private final long minIntervalNanos;
+    private final LongSupplier nanoTime;
+
+    private List<LongRunningRequest> previous;
+    private long previousNanos;
+
+    LongRunningRequestsDump(RequestTracker tracker, int maxRequests, int maxStackDepth, Duration minInterval, LongSupplier nanoTime) {
+        this.tracker = tracker;
+        this.maxRequests = maxRequests;
+        this.maxStackDepth = maxStackDepth;
+        this.minIntervalNanos = minInterval.toNanos();
+        this.nanoTime = nanoTime;
+    }
+
+    synchronized List<LongRunningRequest> dump() {
+        long now = nanoTime.getAsLong();
+        if (previous != null && now - previousNanos < minIntervalNanos) {
+            return previous;
+        }
+        List<LongRunningRequest> requests = new ArrayList<>();
+        tracker.forEachLongRunning(now, maxRequests, (path, method, ageNanos, thread) ->
+                requests.add(new LongRunningRequest(path, method, Duration.ofNanos(ageNanos),
+                        thread != null ? thread.getName() : null, sampleStack(thread))));
+        previous = unmodifiableList(requests);
+        previousNanos = now;
+        return previous;
+    }
+
+    private List<StackTraceElement> sampleStack(Thread thread) {
+        if (thread == null) {
+            return emptyList();
+        }
+        StackTraceElement[] stack = thread.getStackTrace();
+        return unmodifiableList(Arrays.asList(stack.length > maxStackDepth ? Arrays.copyOf(stack, maxStackDepth) : stack));
+    }
+
+}
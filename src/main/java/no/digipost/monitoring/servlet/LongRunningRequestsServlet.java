@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Responds with the current long-running requests of an {@link ActiveRequestsFilter}, as plain text.
+ * Each request is described by its age, method, path, and, if
+ * {@link ActiveRequestsFilter.Config#captureThreads() threads are captured}, a sample of the stack of the
+ * thread handling it. The response may be up to the
+ * {@link ActiveRequestsFilter.Config#longRunningRequestsDump(int, int, java.time.Duration) min interval} old.
+ * <p>
+ * The stack traces reveal the internals of the application, so this servlet should not be
+ * exposed publicly.
+ */
+public class LongRunningRequestsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient ActiveRequestsFilter filter;
+
+    public LongRunningRequestsServlet(ActiveRequestsFilter filter) {
+        this.filter = filter;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        List<ActiveRequestsFilter.LongRunningRequest> requests = filter.longRunningRequests();
+        resp.setContentType("text/plain");
+        resp.setCharacterEncoding(UTF_8.name());
+        resp.setHeader("Cache-Control", "no-store");
+        PrintWriter writer = resp.getWriter();
+        writer.print(requests.size() + " long-running requests\n");
+        for (ActiveRequestsFilter.LongRunningRequest request : requests) {
+            writer.print('\n');
+            writer.print(request);
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Incremental detection of long-running requests tracked in numbered slots, using a timing wheel.
+ * <p>
+ * Time is divided into ticks of a fraction of the long-running threshold, and the wheel has a bucket for
+ * each tick, wrapping around. A bucket is a bitmap with one bit for each slot, and a request is
+ * scheduled by setting the bit of its slot in the bucket of the tick it started. When the number of
+ * long-running requests is read, the buckets of the ticks which have become older than the threshold
+ * since the previous read are visited, and each request found to be older than the threshold is promoted
+ * to long-running exactly once. Reading is then proportional to the number of newly expired ticks and
+ * requests, instead of all active requests.
+ * <p>
+ * Scheduling and cancelling only flips bits with compare-and-set, and never allocates.
+ */
+final class LongRunningWheel {
+
+    /**
+     * Access to the requests in the slots.
+     */
+    interface Slots {
+
+        /**
+         * @return the start time of the request in the slot, or {@link #NOT_STARTED}
+         *         if the slot is not in use
+         */
+        long start(int slot);
+
+        /**
+         * Evaluated once for each request when it becomes long-running.
+         *
+         * @return whether the request should not be counted as long-running
+         */
+        boolean excluded(int slot, long start, long nowNanos);
+    }
+
+    /**
+     * Never the start time of a request.
+     */
+    static final long NOT_STARTED = Long.MIN_VALUE;
+
+    private static final int TICKS_PER_THRESHOLD = 32;
+    private static final int BUCKETS = 2 * TICKS_PER_THRESHOLD;
+    private static final int PENDING = 0;
+    private static final int LONG_RUNNING = 1;
+    private static final int EXCLUDED = 2;
+
+    private final Slots slots;
+    private final long thresholdNanos;
+    private final long tickNanos;
+    private final int wordsPerBucket;
+    private final AtomicLongArray buckets;
+    private final AtomicIntegerArray states;
+    private final LongAdder longRunning = new LongAdder();
+    private volatile long nextTickToVisit;
+
+    LongRunningWheel(int capacity, long thresholdNanos, long nowNanos, Slots slots) {
+        this.slots = slots;
+        this.thresholdNanos = thresholdNanos;
+        this.tickNanos = Math.max(1, thresholdNanos / TICKS_PER_THRESHOLD);
+        this.wordsPerBucket = (capacity + 63) / 64;
+        this.buckets = new AtomicLongArray(BUCKETS * wordsPerBucket);
+        this.states = new AtomicIntegerArray(capacity);
+        this.nextTickToVisit = Math.floorDiv(nowNanos - thresholdNanos, tickNanos);
+    }
+
+    /**
+     * Schedule a request to be promoted to long-running. Must be called after the
+     * start time of the request is available from {@link Slots#start(int)}.
+     *
+     * @return the bucket to pass to {@link #cancel(int, int)}
+     */
+    int schedule(int slot, long startNanos) {
+        long tick = Math.max(Math.floorDiv(startNanos, tickNanos), nextTickToVisit);
+        int bucket = (int) (tick & (BUCKETS - 1));
+        setBit(bucket, slot);
+        return bucket;
+    }
+
+    /**
+     * Cancel a request when it ends. Must be called after the start time of the request
+     * is no longer available from {@link Slots#start(int)}, and before the slot is reused.
+     */
+    void cancel(int slot, int bucket) {
+        if (states.getAndSet(slot, PENDING) == LONG_RUNNING) {
+            longRunning.decrement();
+        }
+        clearBit(bucket, slot);
+    }
+
+    int longRunning(long nowNanos) {
+        visitExpiredTicks(nowNanos);
+        return longRunning.intValue();
+    }
+
+    /**
+     * @return whether the request in the slot has been promoted to long-running, as of the
+     *         previous call to {@link #longRunning(long)}
+     */
+    boolean isLongRunning(int slot) {
+        return states.get(slot) == LONG_RUNNING;
+    }
+
+    /**
+     * Visit the ticks since the previous visit, up to and including the tick of the deadline, i.e. the current
+     * time minus the threshold. The tick of the deadline is only partially expired, and is visited again next time.
+     */
+    private synchronized void visitExpiredTicks(long nowNanos) {
+        long deadlineTick = Math.floorDiv(nowNanos - thresholdNanos, tickNanos);
+        if (deadlineTick < nextTickToVisit) {
+            return;
+        }
+        for (long tick = Math.max(nextTickToVisit, deadlineTick - BUCKETS + 1); tick <= deadlineTick; tick++) {
+            visit((int) (tick & (BUCKETS - 1)), nowNanos);
+        }
+        nextTickToVisit = deadlineTick;
+    }
+
+    private void visit(int bucket, long nowNanos) {
+        int firstWord = bucket * wordsPerBucket;
+        for (int word = 0; word < wordsPerBucket; word++) {
+            long bits = buckets.get(firstWord + word);
+            while (bits != 0) {
+                int bit = Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int slot = word * 64 + bit;
+                long start = slots.start(slot);
+                if (start != NOT_STARTED && nowNanos - start >= thresholdNanos && promote(slot, start, nowNanos)) {
+                    clearBit(bucket, slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the request was promoted, or {@code false} if it ended in the meantime
+     */
+    private boolean promote(int slot, long start, long nowNanos) {
+        int state = slots.excluded(slot, start, nowNanos) ? EXCLUDED : LONG_RUNNING;
+        if (!states.compareAndSet(slot, PENDING, state)) {
+            return false;
+        }
+        if (slots.start(slot) == start) {
+            if (state == LONG_RUNNING) {
+                longRunning.increment();
+            }
+            return true;
+        }
+        if (!states.compareAndSet(slot, state, PENDING) && state == LONG_RUNNING) {
+            // the request ended and was already subtracted by cancel(..)
+            longRunning.increment();
+        }
+        return false;
+    }
+
+    private void setBit(int bucket, int slot) {
+        int index = bucket * wordsPerBucket + (slot >>> 6);
+        long mask = 1L << slot;
+        long word;
+        do {
+            word = buckets.get(index);
+        } while (!buckets.compareAndSet(index, word, word | mask));
+    }
+
+    private void clearBit(int bucket, int slot) {
+        int index = bucket * wordsPerBucket + (slot >>> 6);
+        long mask = 1L << slot;
+        long word;
+        do {
+            word = buckets.get(index);
+        } while ((word & mask) != 0 && !buckets.compareAndSet(index, word, word & ~mask));
+    }
+
+}
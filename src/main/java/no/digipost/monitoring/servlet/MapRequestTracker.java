@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import no.digipost.monitoring.servlet.ActiveRequestsFilter.RequestMetaInfo;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Tracks each request in a map, by the {@link RequestClock#nanoTime() start time} given when
+ * the request is started. A {@link RequestMetaInfo} is only made when evaluating the exclusions
+ * for a request which is already long-running.
+ */
+final class MapRequestTracker implements RequestTracker {
+
+    private static final class TrackedRequest {
+        final String path;
+        final String method;
+        final long startNanos;
+        final Thread thread;
+
+        TrackedRequest(String path, String method, long startNanos, Thread thread) {
+            this.path = path;
+            this.method = method;
+            this.startNanos = startNanos;
+            this.thread = thread;
+        }
+    }
+
+    final Map<Long, TrackedRequest> activeRequests = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final long longRunningThresholdNanos;
+    private final List<Predicate<RequestMetaInfo>> longRunningExclusions;
+    private final boolean captureThreads;
+    private final RequestClock clock;
+
+    MapRequestTracker(Duration longRunningThreshold, List<Predicate<RequestMetaInfo>> longRunningExclusions, boolean captureThreads, RequestClock clock) {
+        this.longRunningThresholdNanos = longRunningThreshold.toNanos();
+        this.longRunningExclusions = longRunningExclusions;
+        this.captureThreads = captureThreads;
+        this.clock = clock;
+    }
+
+    @Override
+    public long start(String path, String method, long startNanos) {
+        long handle = sequence.incrementAndGet();
+        activeRequests.put(handle, new TrackedRequest(path, method, startNanos, captureThreads ? Thread.currentThread() : null));
+        return handle;
+    }
+
+    @Override
+    public void end(long handle) {
+        activeRequests.remove(handle);
+    }
+
+    @Override
+    public int active() {
+        return activeRequests.size();
+    }
+
+    @Override
+    public int longRunning(long nowNanos) {
+        return (int) activeRequests.values().stream()
+                .filter(r -> isLongRunning(r, nowNanos))
+                .count();
+    }
+
+    @Override
+    public void forEachLongRunning(long nowNanos, int max, LongRunningVisitor visitor) {
+        activeRequests.values().stream()
+                .filter(r -> isLongRunning(r, nowNanos))
+                .limit(max)
+                .forEach(r -> visitor.visit(r.path, r.method, nowNanos - r.startNanos, r.thread));
+    }
+
+    private boolean isLongRunning(TrackedRequest request, long nowNanos) {
+        if (nowNanos - request.startNanos <= longRunningThresholdNanos) {
+            return false;
+        }
+        if (longRunningExclusions.isEmpty()) {
+            return true;
+        }
+        RequestMetaInfo metaInfo = new RequestMetaInfo(request.path, request.method,
+                Instant.ofEpochMilli(clock.epochMillis()).minusNanos(nowNanos - request.startNanos));
+        return longRunningExclusions.stream().noneMatch(p -> p.test(metaInfo));
+    }
+
+}
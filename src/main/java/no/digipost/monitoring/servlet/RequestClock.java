@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+/**
+ * The source of time for {@link ActiveRequestsFilter}, read when each request starts and ends,
+ * and when the long-running requests are counted.
+ */
+public interface RequestClock {
+
+    /**
+     * @return the clock reading {@link System#nanoTime()} and {@link System#currentTimeMillis()}
+     *         every time, which is the default
+     */
+    static RequestClock system() {
+        return SystemRequestClock.INSTANCE;
+    }
+
+    /**
+     * A clock which is updated every millisecond by a single background thread, making reading the
+     * time a volatile read. Durations measured with this clock have a resolution of about a millisecond,
+     * which is usually fine for requests, and cheaper to obtain on platforms where reading the
+     * system clock is expensive, e.g. in some virtualized environments.
+     *
+     * @return the shared coarse clock, starting its background thread the first time it is requested
+     */
+    static RequestClock coarse() {
+        return CoarseRequestClock.INSTANCE;
+    }
+
+    /**
+     * @return monotonic time in nanoseconds, only meaningful relative to other readings,
+     *         like {@link System#nanoTime()}
+     */
+    long nanoTime();
+
+    /**
+     * @return the current time in milliseconds since the epoch, like {@link System#currentTimeMillis()}
+     */
+    long epochMillis();
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+/**
+ * Keeps track of the requests currently being handled, and their start times.
+ */
+interface RequestTracker {
+
+    @FunctionalInterface
+    interface LongRunningVisitor {
+        /**
+         * @param thread the thread which started the request, or {@code null} if threads are not captured
+         */
+        void visit(String path, String method, long ageNanos, Thread thread);
+    }
+
+    /**
+     * @param path the path of the request
+     * @param method the HTTP method of the request
+     * @param startNanos the start time of the request, from {@link RequestClock#nanoTime()}
+     * @return the handle to pass to {@link #end(long)} when the request is completed
+     */
+    long start(String path, String method, long startNanos);
+
+    /**
+     * @param handle the handle returned when the request was started
+     */
+    void end(long handle);
+
+    /**
+     * @return the number of requests currently being handled
+     */
+    int active();
+
+    /**
+     * @param nowNanos the current time, from {@link RequestClock#nanoTime()}
+     * @return the number of requests which have been handled for longer than the long-running threshold,
+     *         and are not excluded from being long-running
+     */
+    int longRunning(long nowNanos);
+
+    /**
+     * Visit the requests counted by {@link #longRunning(long)}, in no particular order.
+     *
+     * @param nowNanos the current time, from {@link RequestClock#nanoTime()}
+     * @param max the max number of requests to visit
+     */
+    void forEachLongRunning(long nowNanos, int max, LongRunningVisitor visitor);
+
+}
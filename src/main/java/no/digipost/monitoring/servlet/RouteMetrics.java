@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Meters for each route and method:
+ * <ul>
+ *   <li><code>app_http_requests_route_active</code>, requests currently in flight</li>
+ *   <li><code>app_http_requests_route_seconds</code>, duration of completed requests, with a histogram</li>
+ *   <li><code>app_http_requests_route_request_size_bytes</code> and <code>app_http_requests_route_response_size_bytes</code>,
+ *       sizes of the bodies of completed requests, if enabled</li>
+ * </ul>
+ * The meters of a route are registered the first time it is requested, and looked up in a map
+ * afterwards. A new route reserves one of the max number of routes before it is added, so concurrent
+ * new routes never exceed the max, and when all are reserved, any new route is recorded as the shared
+ * {@value #OTHER} route. The routes are never removed, and so paths with unbounded variations, e.g. from
+ * scanners probing for vulnerabilities, must be collapsed by the {@link RouteNormalizer}, or they will use up
+ * the max number of routes. Methods other than the common ones are recorded as {@value #OTHER} as well.
+ */
+final class RouteMetrics {
+
+    static final String OTHER = "OTHER";
+
+    private static final String[] METHODS = {"GET", "POST", "PUT", "DELETE", "PATCH", "HEAD", "OPTIONS", OTHER};
+
+    static final class RouteMeters {
+        private final AtomicInteger active = new AtomicInteger();
+        private final Timer duration;
+        private final DistributionSummary requestSize;
+        private final DistributionSummary responseSize;
+
+        RouteMeters(String route, String method, MeterRegistry registry, boolean bodySizes) {
+            Gauge.builder("app_http_requests_route_active", active, AtomicInteger::get)
+                    .description("Requests currently in flight")
+                    .tag("route", route)
+                    .tag("method", method)
+                    .register(registry);
+            this.duration = Timer.builder("app_http_requests_route")
+                    .description("Duration of completed requests")
+                    .tag("route", route)
+                    .tag("method", method)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofMillis(1))
+                    .maximumExpectedValue(Duration.ofMinutes(1))
+                    .register(registry);
+            this.requestSize = bodySizes ? bodySize("app_http_requests_route_request_size", "Size of request bodies", route, method, registry) : null;
+            this.responseSize = bodySizes ? bodySize("app_http_requests_route_response_size",
+                    "Size of response bodies, counting one byte per character written in other encodings than UTF-8", route, method, registry) : null;
+        }
+
+        private static DistributionSummary bodySize(String name, String description, String route, String method, MeterRegistry registry) {
+            return DistributionSummary.builder(name)
+                    .description(description)
+                    .baseUnit("bytes")
+                    .tag("route", route)
+                    .tag("method", method)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(64.0)
+                    .maximumExpectedValue(64.0 * 1024 * 1024)
+                    .register(registry);
+        }
+
+        boolean recordsBodySizes() {
+            return requestSize != null;
+        }
+
+        void started() {
+            active.incrementAndGet();
+        }
+
+        void completed(long startNanos, long endNanos) {
+            active.decrementAndGet();
+            duration.record(endNanos - startNanos, TimeUnit.NANOSECONDS);
+        }
+
+        void bodySizes(long requestBytes, long responseBytes) {
+            requestSize.record(requestBytes);
+            responseSize.record(responseBytes);
+        }
+    }
+
+    private final MeterRegistry registry;
+    private final RouteNormalizer normalizer;
+    private final int maxRoutes;
+    private final boolean bodySizes;
+    private final ConcurrentHashMap<String, AtomicReferenceArray<RouteMeters>> routes = new ConcurrentHashMap<>();
+    private final AtomicInteger reservedRoutes = new AtomicInteger();
+    private final AtomicReferenceArray<RouteMeters> other = new AtomicReferenceArray<>(METHODS.length);
+
+    RouteMetrics(MeterRegistry registry, RouteNormalizer normalizer, int maxRoutes, boolean bodySizes) {
+        this.registry = registry;
+        this.normalizer = normalizer;
+        this.maxRoutes = maxRoutes;
+        this.bodySizes = bodySizes;
+    }
+
+    RouteMeters meters(String path, String method) {
+        String route = normalizer.normalize(path);
+        AtomicReferenceArray<RouteMeters> byMethod = routes.get(route);
+        if (byMethod == null) {
+            byMethod = add(route);
+            if (byMethod == null) {
+                route = OTHER;
+                byMethod = other;
+            }
+        }
+        int methodIndex = methodIndex(method);
+        RouteMeters meters = byMethod.get(methodIndex);
+        return meters != null ? meters : register(route, methodIndex, byMethod);
+    }
+
+    int routes() {
+        return routes.size();
+    }
+
+    /**
+     * @return the meters by method of the new route, or {@code null} if the max number of routes is reached
+     */
+    private AtomicReferenceArray<RouteMeters> add(String route) {
+        int reserved;
+        do {
+            reserved = reservedRoutes.get();
+            if (reserved >= maxRoutes) {
+                return routes.get(route);
+            }
+        } while (!reservedRoutes.compareAndSet(reserved, reserved + 1));
+        AtomicReferenceArray<RouteMeters> added = new AtomicReferenceArray<>(METHODS.length);
+        AtomicReferenceArray<RouteMeters> existing = routes.putIfAbsent(route, added);
+        if (existing != null) {
+            reservedRoutes.decrementAndGet();
+            return existing;
+        }
+        return added;
+    }
+
+    private RouteMeters register(String route, int methodIndex, AtomicReferenceArray<RouteMeters> byMethod) {
+        synchronized (byMethod) {
+            RouteMeters meters = byMethod.get(methodIndex);
+            if (meters == null) {
+                meters = new RouteMeters(route, METHODS[methodIndex], registry, bodySizes);
+                byMethod.set(methodIndex, meters);
+            }
+            return meters;
+        }
+    }
+
+    private static int methodIndex(String method) {
+        switch (method) {
+            case "GET": return 0;
+            case "POST": return 1;
+            case "PUT": return 2;
+            case "DELETE": return 3;
+            case "PATCH": return 4;
+            case "HEAD": return 5;
+            case "OPTIONS": return 6;
+            default: return 7;
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+/**
+ * Turns the path of a request into a route, with a bounded number of distinct values,
+ * to be used as a tag on metrics.
+ */
+@FunctionalInterface
+public interface RouteNormalizer {
+
+    /**
+     * Collapses path segments which look like identifiers to <code>{id}</code>, e.g.
+     * <code>/api/doc/123</code> to <code>/api/doc/{id}</code>. A segment is considered an identifier if it is
+     * <ul>
+     *   <li>a number</li>
+     *   <li>a hexadecimal string of at least 8 characters, including a UUID</li>
+     *   <li>a string of at least 16 letters, digits, <code>-</code> or <code>_</code>, including at least one digit</li>
+     * </ul>
+     * Any path parameters, e.g. <code>;jsessionid=..</code>, are removed. A path which needs no
+     * change is returned as is, without allocating a new string.
+     *
+     * @return the default route normalizer
+     */
+    static RouteNormalizer collapsingIds() {
+        return IdCollapsingRouteNormalizer.INSTANCE;
+    }
+
+    /**
+     * @param path the path of a request
+     * @return the route of the request
+     */
+    String normalize(String path);
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.TimeWindowMax;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Saturation of the threads handling requests:
+ * <ul>
+ *   <li><code>app_http_requests_busy_seconds_total</code>, the total time spent handling requests, i.e. the active
+ *       requests integrated over time. The utilization of the threads over an interval is the rate of this
+ *       divided by max threads, e.g. <code>rate(app_http_requests_busy_seconds_total[1m]) / app_http_requests_max</code></li>
+ *   <li><code>app_http_requests_highwater</code>, the max number of active requests within roughly the last minute,
+ *       in a window which is rotated at a fixed interval</li>
+ * </ul>
+ * Reading the metrics does not change them, and so they can be read by any number of registries and scrapers.
+ * <p>
+ * The time-weighted sum of active requests is accumulated when a request starts or ends, by
+ * claiming the time since the previous start or end, and adding it multiplied by the number of
+ * active requests. Starts and ends happening at the same time may be counted with a slightly
+ * wrong number of active requests, but no time is lost or counted twice.
+ */
+final class SaturationMetrics {
+
+    private static final long HIGH_WATER_ROTATE_MILLIS = 20_000;
+    private static final int HIGH_WATER_BUFFERS = 3;
+
+    private final LongSupplier nanoTime;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong lastChangeNanos;
+    private final LongAdder activeNanos = new LongAdder();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final TimeWindowMax highWater;
+
+    SaturationMetrics(MeterRegistry registry, LongSupplier nanoTime) {
+        this.nanoTime = nanoTime;
+        this.lastChangeNanos = new AtomicLong(nanoTime.getAsLong());
+        this.highWater = new TimeWindowMax(new Clock() {
+            @Override
+            public long wallTime() {
+                return nanoTime.getAsLong() / 1_000_000;
+            }
+
+            @Override
+            public long monotonicTime() {
+                return nanoTime.getAsLong();
+            }
+        }, HIGH_WATER_ROTATE_MILLIS, HIGH_WATER_BUFFERS);
+        FunctionCounter.builder("app_http_requests_busy", this, SaturationMetrics::busySeconds)
+                .description("Time spent handling requests, to be divided by max threads to get the utilization of the threads")
+                .baseUnit("seconds")
+                .register(registry);
+        Gauge.builder("app_http_requests_highwater", this, SaturationMetrics::highWater)
+                .description("Max active requests within roughly the last minute")
+                .register(registry);
+    }
+
+    void started(long nowNanos) {
+        accumulate(nowNanos);
+        highWater.record(active.incrementAndGet());
+    }
+
+    void ended(long nowNanos) {
+        accumulate(nowNanos);
+        active.decrementAndGet();
+    }
+
+    private void accumulate(long nowNanos) {
+        long previous = lastChangeNanos.getAndSet(nowNanos);
+        activeNanos.add((nowNanos - previous) * active.get());
+    }
+
+    /**
+     * The accumulated time, including the time of the active requests since the previous start or end.
+     * A read racing with a start or end may miss the time being added, and so the highest value read is
+     * returned, for the counter to never decrease.
+     */
+    double busySeconds() {
+        long total = activeNanos.sum() + (nanoTime.getAsLong() - lastChangeNanos.get()) * active.get();
+        return busyNanos.accumulateAndGet(total, Math::max) / 1e9;
+    }
+
+    /**
+     * @return the max active requests within the window, and at least the requests active now,
+     *         as no request may have started within the window
+     */
+    double highWater() {
+        return Math.max(highWater.poll(), active.get());
+    }
+
+
+    /**
+     * Records <code>app_http_requests_queueing_seconds</code>, the time from the request was accepted,
+     * e.g. by a proxy or the container, until it reached the filter.
+     */
+    static final class QueueingDelay {
+
+        private final Timer timer;
+
+        QueueingDelay(MeterRegistry registry) {
+            this.timer = Timer.builder("app_http_requests_queueing")
+                    .description("Time from the request was accepted until it was handled")
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofMillis(1))
+                    .maximumExpectedValue(Duration.ofMinutes(1))
+                    .register(registry);
+        }
+
+        void record(Object acceptedAt, long nowEpochMillis) {
+            long acceptedAtMillis = toEpochMillis(acceptedAt);
+            if (acceptedAtMillis > 0) {
+                timer.record(Math.max(0, nowEpochMillis - acceptedAtMillis), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * @param acceptedAt an {@link Instant}, a number or a string with the time since the epoch,
+         *                   in seconds, milliseconds, microseconds or nanoseconds, as determined by
+         *                   the magnitude, or a string with seconds with decimals. A string may be
+         *                   prefixed with <code>t=</code>, as commonly used in <code>X-Request-Start</code>.
+         * @return the time in milliseconds since the epoch, or {@code -1} if it could not be determined
+         */
+        static long toEpochMillis(Object acceptedAt) {
+            if (acceptedAt instanceof Instant) {
+                return ((Instant) acceptedAt).toEpochMilli();
+            } else if (acceptedAt instanceof Number) {
+                return scaleToMillis(((Number) acceptedAt).longValue());
+            } else if (acceptedAt instanceof String) {
+                String value = ((String) acceptedAt).trim();
+                int start = value.startsWith("t=") ? 2 : 0;
+                try {
+                    return value.indexOf('.', start) >= 0
+                            ? (long) (Double.parseDouble(value.substring(start)) * 1000)
+                            : scaleToMillis(Long.parseLong(value, start, value.length(), 10));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            } else {
+                return -1;
+            }
+        }
+
+        private static long scaleToMillis(long sinceEpoch) {
+            if (sinceEpoch <= 0) {
+                return -1;
+            } else if (sinceEpoch < 100_000_000_000L) {
+                return sinceEpoch * 1000;
+            } else if (sinceEpoch < 100_000_000_000_000L) {
+                return sinceEpoch;
+            } else if (sinceEpoch < 100_000_000_000_000_000L) {
+                return sinceEpoch / 1000;
+            } else {
+                return sinceEpoch / 1_000_000;
+            }
+        }
+    }
+
+}
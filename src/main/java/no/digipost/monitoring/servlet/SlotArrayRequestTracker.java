@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import no.digipost.monitoring.servlet.ActiveRequestsFilter.RequestMetaInfo;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
+
+/**
+ * Tracks requests in a preallocated array of slots, holding the start time of each request as a
+ * primitive <code>long</code>. Starting and ending a request claims and frees a slot with a single
+ * compare-and-set, without any allocation.
+ * <p>
+ * Each thread starts looking for a free slot at an index derived from its id, so that concurrent
+ * requests rarely contend for the same slot, and a thread handling one request after the other
+ * keeps reusing the same slot. If all slots are taken, the request is only counted as active,
+ * and never as long-running.
+ * <p>
+ * Long-running requests are detected incrementally by a {@link LongRunningWheel}, and the exclusions
+ * are only evaluated once for each request, when it becomes long-running.
+ * <p>
+ * If threads are captured, the thread starting a request is kept in its slot, to be able to
+ * sample what long-running requests are doing.
+ */
+final class SlotArrayRequestTracker implements RequestTracker, LongRunningWheel.Slots {
+
+    private static final long FREE = Long.MIN_VALUE;
+    private static final long CLAIMED = Long.MIN_VALUE + 1;
+    private static final long UNTRACKED = -1;
+
+    private final AtomicLongArray starts;
+    private final String[] paths;
+    private final String[] methods;
+    private final Thread[] threads;
+    private final int mask;
+    private final AtomicInteger untracked = new AtomicInteger();
+    private final LongRunningWheel longRunning;
+    private final List<Predicate<RequestMetaInfo>> longRunningExclusions;
+    private final RequestClock clock;
+
+    /**
+     * @param capacity the number of slots, rounded up to the nearest power of two
+     */
+    SlotArrayRequestTracker(int capacity, Duration longRunningThreshold, List<Predicate<RequestMetaInfo>> longRunningExclusions, boolean captureThreads, RequestClock clock) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be positive and at most 2^30, was " + capacity);
+        }
+        int slots = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.starts = new AtomicLongArray(slots);
+        this.paths = new String[slots];
+        this.methods = new String[slots];
+        this.threads = captureThreads ? new Thread[slots] : null;
+        this.mask = slots - 1;
+        for (int i = 0; i < slots; i++) {
+            starts.set(i, FREE);
+        }
+        this.longRunning = new LongRunningWheel(slots, longRunningThreshold.toNanos(), clock.nanoTime(), this);
+        this.longRunningExclusions = longRunningExclusions;
+        this.clock = clock;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    @Override
+    public long start(String path, String method, long startNanos) {
+        long start = startNanos == FREE || startNanos == CLAIMED ? CLAIMED + 1 : startNanos;
+        int first = firstSlotForCurrentThread();
+        for (int i = 0; i <= mask; i++) {
+            int slot = (first + i) & mask;
+            if (starts.get(slot) == FREE && starts.compareAndSet(slot, FREE, CLAIMED)) {
+                paths[slot] = path;
+                methods[slot] = method;
+                if (threads != null) {
+                    threads[slot] = Thread.currentThread();
+                }
+                starts.set(slot, start);
+                int bucket = longRunning.schedule(slot, start);
+                return ((long) bucket << 32) | slot;
+            }
+        }
+        untracked.incrementAndGet();
+        return UNTRACKED;
+    }
+
+    @Override
+    public void end(long handle) {
+        if (handle == UNTRACKED) {
+            untracked.decrementAndGet();
+            return;
+        }
+        int slot = (int) handle;
+        starts.set(slot, CLAIMED);
+        longRunning.cancel(slot, (int) (handle >>> 32));
+        paths[slot] = null;
+        methods[slot] = null;
+        if (threads != null) {
+            threads[slot] = null;
+        }
+        starts.set(slot, FREE);
+    }
+
+    @Override
+    public int active() {
+        int active = untracked.get();
+        for (int slot = 0; slot <= mask; slot++) {
+            if (starts.get(slot) != FREE) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    @Override
+    public int longRunning(long nowNanos) {
+        return longRunning.longRunning(nowNanos);
+    }
+
+    /**
+     * The path, method and thread of a slot are read between two reads of its start time,
+     * and only visited if the start time is unchanged, i.e. they belong to the same request.
+     */
+    @Override
+    public void forEachLongRunning(long nowNanos, int max, LongRunningVisitor visitor) {
+        longRunning.longRunning(nowNanos);
+        int visited = 0;
+        for (int slot = 0; slot <= mask && visited < max; slot++) {
+            long start = start(slot);
+            if (start != LongRunningWheel.NOT_STARTED && longRunning.isLongRunning(slot)) {
+                String path = paths[slot];
+                String method = methods[slot];
+                Thread thread = threads != null ? threads[slot] : null;
+                if (starts.get(slot) == start) {
+                    visitor.visit(path, method, nowNanos - start, thread);
+                    visited++;
+                }
+            }
+        }
+    }
+
+    @Override
+    public long start(int slot) {
+        long start = starts.get(slot);
+        return start == FREE || start == CLAIMED ? LongRunningWheel.NOT_STARTED : start;
+    }
+
+    /**
+     * Only called once for each long-running request, which should be rare, and so it is acceptable to
+     * allocate the {@link RequestMetaInfo} to evaluate the exclusions with.
+     */
+    @Override
+    public boolean excluded(int slot, long start, long nowNanos) {
+        if (longRunningExclusions.isEmpty()) {
+            return false;
+        }
+        String path = paths[slot];
+        String method = methods[slot];
+        if (starts.get(slot) != start) {
+            return true;
+        }
+        RequestMetaInfo metaInfo = new RequestMetaInfo(path, method, Instant.ofEpochMilli(clock.epochMillis()).minusNanos(nowNanos - start));
+        for (Predicate<RequestMetaInfo> exclusion : longRunningExclusions) {
+            if (exclusion.test(metaInfo)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int firstSlotForCurrentThread() {
+        return Long.hashCode(Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) & mask;
+    }
+
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.thirdparty;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import no.digipost.monitoring.micrometer.AppStatus;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Caps the number of concurrent calls to a third party, so that a slow partner can not use up all
+ * the threads of the application, and optionally enforces a timeout for each call.
+ * <p>
+ * A call is rejected with {@link CallNotPermittedException}, without calling, when the max number of calls
+ * are in progress. A call taking longer than the timeout is counted with the {@link Config#timeoutStatus(AppStatus) timeout status}
+ * instead of the status it completed with. The stage returned for an asynchronous call is completed with a {@link TimeoutException}
+ * at the timeout, without completing the stage of the call itself, which is in progress until it completes. Synchronous
+ * calls can only be cancelled when run by an {@link Config#timeout(Duration, ExecutorService) executor}, in which case the calling
+ * thread gives up waiting at the timeout, interrupts the call, and throws {@link CallTimeoutException}. Such a call is still
+ * in progress until it actually ends, as it may not respond to being interrupted. On Java 21 and later, an executor creating
+ * a virtual thread per task makes this cheap.
+ * <p>
+ * Records the following metrics, tagged with the name of the call:
+ * <ul>
+ *   <li><code>app_third_party_call_in_flight</code>, calls in progress</li>
+ *   <li><code>app_third_party_call_bulkhead_rejected_total</code>, calls rejected because the max number of calls were in progress</li>
+ *   <li><code>app_third_party_call_timed_out_total</code>, calls taking longer than the timeout</li>
+ * </ul>
+ */
+public final class Bulkhead {
+
+    public static final class Config {
+        private final int maxConcurrentCalls;
+        private long timeoutNanos = Long.MAX_VALUE;
+        private ExecutorService executor;
+        private AppStatus timeoutStatus = AppStatus.FAILED;
+
+        private Config(int maxConcurrentCalls) {
+            this.maxConcurrentCalls = maxConcurrentCalls;
+        }
+
+        /**
+         * @param maxConcurrentCalls the number of calls which may be in progress at the same time
+         */
+        public static Config maxConcurrentCalls(int maxConcurrentCalls) {
+            if (maxConcurrentCalls <= 0) {
+                throw new IllegalArgumentException("Max concurrent calls must be positive, was " + maxConcurrentCalls);
+            }
+            return new Config(maxConcurrentCalls);
+        }
+
+        /**
+         * Calls taking longer than this are timed out. Asynchronous calls are completed with a {@link TimeoutException},
+         * while synchronous calls are run to completion, and only counted as timed out.
+         *
+         * @param timeout a positive duration
+         */
+        public Config timeout(Duration timeout) {
+            if (timeout == null || timeout.isNegative() || timeout.isZero()) {
+                throw new IllegalArgumentException("Timeout must be positive, was " + timeout);
+            }
+            this.timeoutNanos = timeout.toNanos();
+            return this;
+        }
+
+        /**
+         * Calls taking longer than this are timed out, and cancelled. Synchronous calls are run by the executor,
+         * while the calling thread waits at most until the timeout.
+         */
+        public Config timeout(Duration timeout, ExecutorService executor) {
+            timeout(timeout);
+            this.executor = Objects.requireNonNull(executor, "executor can not be null");
+            return this;
+        }
+
+        /**
+         * The status to count timed out calls with. The default is {@link AppStatus#FAILED}.
+         */
+        public Config timeoutStatus(AppStatus timeoutStatus) {
+            this.timeoutStatus = timeoutStatus;
+            return this;
+        }
+    }
+
+    private final Semaphore permits;
+    private final long timeoutNanos;
+    private final ExecutorService executor;
+    private final AppStatus timeoutStatus;
+    private final String name;
+    private final CallNotPermittedException notPermitted;
+    private final Counter rejected;
+    private final Counter timedOut;
+
+    Bulkhead(String name, Config config, MeterRegistry registry) {
+        this.permits = new Semaphore(config.maxConcurrentCalls);
+        this.timeoutNanos = config.timeoutNanos;
+        this.executor = config.executor;
+        this.timeoutStatus = config.timeoutStatus;
+        this.name = name;
+        this.notPermitted = new CallNotPermittedException("Bulkhead of " + name + " is full, not calling");
+        Gauge.builder("app_third_party_call_in_flight", permits, available -> config.maxConcurrentCalls - available.availablePermits())
+                .description("Calls in progress")
+                .tag("name", name)
+                .register(registry);
+        this.rejected = Counter.builder("app_third_party_call_bulkhead_rejected")
+                .description("Calls rejected because the max number of calls were in progress")
+                .tag("name", name)
+                .register(registry);
+        this.timedOut = Counter.builder("app_third_party_call_timed_out")
+                .description("Calls taking longer than the timeout")
+                .tag("name", name)
+                .register(registry);
+    }
+
+    /**
+     * @throws CallNotPermittedException if the max number of calls are in progress
+     */
+    void acquirePermission() {
+        if (!permits.tryAcquire()) {
+            rejected.increment();
+            throw notPermitted;
+        }
+    }
+
+    void release() {
+        permits.release();
+    }
+
+    /**
+     * Release the permission of a completed call.
+     *
+     * @return the status to count the call with, which is the given status unless the call timed out
+     */
+    AppStatus onResult(AppStatus status, long durationNanos) {
+        release();
+        return statusOf(status, durationNanos);
+    }
+
+    /**
+     * Whether synchronous calls are run by the executor, in which case the permission of the call
+     * is released when the call ends, and not by {@link #onResult(AppStatus, long)}.
+     *
+     * @see #statusOf(AppStatus, long)
+     */
+    boolean runsCalls() {
+        return executor != null;
+    }
+
+    /**
+     * @return the status to count the call with, which is the given status unless the call timed out
+     */
+    AppStatus statusOf(AppStatus status, long durationNanos) {
+        if (durationNanos >= timeoutNanos) {
+            timedOut.increment();
+            return timeoutStatus;
+        }
+        return status;
+    }
+
+    <T> T call(Supplier<T> call) {
+        if (executor == null) {
+            return call.get();
+        }
+        PermittedCall<T> permitted = new PermittedCall<>(call);
+        try {
+            return await(executor.submit(permitted));
+        } finally {
+            if (permitted.abandon()) {
+                release();
+            }
+        }
+    }
+
+    void run(Runnable call) {
+        if (executor == null) {
+            call.run();
+        } else {
+            call(() -> {
+                call.run();
+                return null;
+            });
+        }
+    }
+
+    /**
+     * A call run by the executor, which releases the permission when it ends, unless it is
+     * abandoned by the calling thread before it starts.
+     */
+    private final class PermittedCall<T> implements Callable<T> {
+        private final Supplier<T> call;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        PermittedCall(Supplier<T> call) {
+            this.call = call;
+        }
+
+        @Override
+        public T call() {
+            if (!claimed.compareAndSet(false, true)) {
+                return null;
+            }
+            try {
+                return call.get();
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * @return whether the call had not started, and will not start, in which case the caller must release the permission
+         */
+        boolean abandon() {
+            return claimed.compareAndSet(false, true);
+        }
+    }
+
+    /**
+     * Holds the permission of an asynchronous call until the stage of the call completes, also when the call
+     * times out, so that calls which have timed out still count against the max number of calls.
+     *
+     * @return the stage to complete the call by, which is completed with a {@link TimeoutException} at the timeout
+     */
+    <T> CompletionStage<T> releaseWhenCompleted(CompletionStage<T> stage) {
+        stage.whenComplete((result, thrown) -> release());
+        if (timeoutNanos == Long.MAX_VALUE) {
+            return stage;
+        }
+        return stage.toCompletableFuture().copy().orTimeout(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private <T> T await(Future<T> future) {
+        try {
+            return future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new CallTimeoutException("Call of " + name + " did not complete within " + Duration.ofNanos(timeoutNanos) + ", cancelled");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            CancellationException cancelled = new CancellationException("Interrupted while waiting for call of " + name + ", cancelled");
+            cancelled.initCause(e);
+            throw cancelled;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+}
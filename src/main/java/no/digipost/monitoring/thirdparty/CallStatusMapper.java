@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.thirdparty;
+
+import no.digipost.monitoring.micrometer.AppStatus;
+
+/**
+ * Determines the {@link AppStatus} of a completed call, from either its result or the exception it threw.
+ * Unlike a <code>BiFunction&lt;RESULT, Optional&lt;RuntimeException&gt;, AppStatus&gt;</code>, evaluating
+ * the status does not require wrapping the exception.
+ *
+ * @param <RESULT> the result of the call
+ */
+@FunctionalInterface
+public interface CallStatusMapper<RESULT> {
+
+    /**
+     * @param result the result of the call, or {@code null} if it threw an exception
+     * @param thrown the exception thrown by the call, or {@code null} if it returned normally
+     * @return the status of the call
+     */
+    AppStatus statusOf(RESULT result, RuntimeException thrown);
+
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.thirdparty;
+
+/**
+ * Thrown when a call run by the executor of a {@link Bulkhead} did not complete before the timeout,
+ * and was cancelled.
+ */
+public class CallTimeoutException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    CallTimeoutException(String message) {
+        super(message);
+    }
+
+}
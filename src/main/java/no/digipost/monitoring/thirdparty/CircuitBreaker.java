@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.thirdparty;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import no.digipost.monitoring.micrometer.AppStatus;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops calling a third party when too many of the recent calls have failed or been slow, to avoid
+ * wasting threads waiting for a partner which is degraded.
+ * <p>
+ * The outcomes of the most recent calls are kept in a ring buffer, where recording an outcome claims the
+ * next position with a single atomic increment, and replaces the outcome there, adjusting the counts
+ * of failed and slow calls by the difference. When the rate of failed calls ({@link AppStatus#FAILED}), or
+ * of slow calls, reaches its threshold, the circuit is <em>open</em>, and calls are rejected with
+ * {@link CallNotPermittedException} without calling. After a while, the circuit is <em>half open</em>, and a
+ * few trial calls are permitted. If all of them succeed, the circuit is <em>closed</em> again, and
+ * otherwise it is open again. While half open, only the outcomes of the trial calls count, and not of calls
+ * started before the circuit opened, nor of trial calls from an earlier time the circuit was half open.
+ * <p>
+ * Records the following metrics, tagged with the name of the call:
+ * <ul>
+ *   <li><code>app_third_party_call_circuit_state</code>, 1 for the current state and 0 for the other states,
+ *       tagged with <code>state</code> being <code>closed</code>, <code>open</code> or <code>half_open</code></li>
+ *   <li><code>app_third_party_call_circuit_transitions_total</code>, tagged with the <code>state</code> transitioned to</li>
+ *   <li><code>app_third_party_call_circuit_rejected_total</code>, calls rejected while the circuit is not closed</li>
+ * </ul>
+ */
+public final class CircuitBreaker {
+
+    public static final class Config {
+        private final int slidingWindowSize;
+        private int minimumCalls;
+        private double failureRateThreshold = 0.5;
+        private long slowCallNanos = Long.MAX_VALUE;
+        private double slowCallRateThreshold = 1.0;
+        private Duration waitInOpen = Duration.ofSeconds(30);
+        private int permittedCallsInHalfOpen = 5;
+
+        private Config(int slidingWindowSize) {
+            this.slidingWindowSize = slidingWindowSize;
+            this.minimumCalls = slidingWindowSize;
+        }
+
+        /**
+         * @param size the number of most recent calls to calculate the rates of failed and slow calls from
+         */
+        public static Config slidingWindow(int size) {
+            if (size <= 0) {
+                throw new IllegalArgumentException("Sliding window size must be positive, was " + size);
+            }
+            return new Config(size);
+        }
+
+        /**
+         * The min number of calls in the sliding window before the rates are considered.
+         * The default is the size of the sliding window.
+         */
+        public Config minimumCalls(int minimumCalls) {
+            this.minimumCalls = Math.max(1, Math.min(minimumCalls, slidingWindowSize));
+            return this;
+        }
+
+        /**
+         * @param rate the rate of failed calls, greater than 0 and at most 1, opening the circuit. The default is 0.5.
+         */
+        public Config failureRateThreshold(double rate) {
+            this.failureRateThreshold = requireRate("Failure rate threshold", rate);
+            return this;
+        }
+
+        /**
+         * Also open the circuit when too many calls are slow. Disabled by default.
+         *
+         * @param slowCall calls taking longer than this are slow, must be positive
+         * @param rate the rate of slow calls, greater than 0 and at most 1, opening the circuit
+         */
+        public Config slowCallThreshold(Duration slowCall, double rate) {
+            this.slowCallNanos = requirePositive("Slow call threshold", slowCall).toNanos();
+            this.slowCallRateThreshold = requireRate("Slow call rate threshold", rate);
+            return this;
+        }
+
+        /**
+         * How long to reject calls before permitting trial calls. The default is 30 seconds.
+         */
+        public Config waitInOpen(Duration waitInOpen) {
+            this.waitInOpen = requirePositive("Wait in open", waitInOpen);
+            return this;
+        }
+
+        /**
+         * The number of trial calls which must succeed to close the circuit. The default is 5.
+         */
+        public Config permittedCallsInHalfOpen(int permittedCalls) {
+            if (permittedCalls <= 0 || permittedCalls > MAX_TRIAL_CALLS) {
+                throw new IllegalArgumentException("Permitted calls in half open must be between 1 and " + MAX_TRIAL_CALLS + ", was " + permittedCalls);
+            }
+            this.permittedCallsInHalfOpen = permittedCalls;
+            return this;
+        }
+
+        private static double requireRate(String name, double rate) {
+            if (!(rate > 0 && rate <= 1)) {
+                throw new IllegalArgumentException(name + " must be greater than 0 and at most 1, was " + rate);
+            }
+            return rate;
+        }
+
+        private static Duration requirePositive(String name, Duration duration) {
+            if (duration.isNegative() || duration.isZero()) {
+                throw new IllegalArgumentException(name + " must be positive, was " + duration);
+            }
+            return duration;
+        }
+    }
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Permission for a call which is not a trial call, as the circuit was closed.
+     */
+    static final long NOT_TRIAL = 0;
+
+    private static final State[] STATES = State.values();
+    private static final int STATE_BITS = 2;
+    private static final long STATE_MASK = (1 << STATE_BITS) - 1;
+    private static final int TRIAL_CALL_BITS = 16;
+    private static final int MAX_TRIAL_CALLS = (1 << TRIAL_CALL_BITS) - 1;
+    private static final long SUCCEEDED = 1;
+    private static final long PERMIT = SUCCEEDED << TRIAL_CALL_BITS;
+    private static final long ENDED = PERMIT << TRIAL_CALL_BITS;
+    private static final int GENERATION_SHIFT = 2 * TRIAL_CALL_BITS + 1;
+    private static final long MAX_GENERATION = -1L >>> GENERATION_SHIFT;
+    private static final int RECORDED = 1;
+    private static final int FAILED = 2;
+    private static final int SLOW = 4;
+
+    private final Config config;
+    private final Clock clock;
+    private final long createdAt;
+    private final long waitInOpenNanos;
+    private final CallNotPermittedException notPermitted;
+
+    private final AtomicIntegerArray outcomes;
+    private final AtomicLong nextOutcome = new AtomicLong();
+    private final AtomicInteger recordedCalls = new AtomicInteger();
+    private final AtomicInteger failedCalls = new AtomicInteger();
+    private final AtomicInteger slowCalls = new AtomicInteger();
+
+    /**
+     * The state in the lowest bits, and the time the circuit was last opened, relative to {@link #createdAt},
+     * in the other bits, so that the time is published together with the state.
+     */
+    private final AtomicLong state = new AtomicLong(State.CLOSED.ordinal());
+    /**
+     * The trial calls of the most recent time the circuit was half open: succeeded calls in the lowest bits,
+     * then the remaining permits, a flag set when the trial has ended, and the generation in the highest bits,
+     * which is the permission given to the trial calls.
+     */
+    private final AtomicLong trial = new AtomicLong();
+
+    private final Counter[] transitions = new Counter[STATES.length];
+    private final Counter rejected;
+
+    CircuitBreaker(String name, Config config, MeterRegistry registry) {
+        this.config = config;
+        this.clock = registry.config().clock();
+        this.createdAt = clock.monotonicTime();
+        this.waitInOpenNanos = config.waitInOpen.toNanos();
+        this.notPermitted = new CallNotPermittedException("Circuit breaker of " + name + " is open, not calling");
+        this.outcomes = new AtomicIntegerArray(config.slidingWindowSize);
+        for (State s : STATES) {
+            String stateTag = s.name().toLowerCase(Locale.ROOT);
+            Gauge.builder("app_third_party_call_circuit_state", state, current -> ordinal(current.get()) == s.ordinal() ? 1 : 0)
+                    .description("Whether the circuit breaker is in the state")
+                    .tag("name", name)
+                    .tag("state", stateTag)
+                    .register(registry);
+            transitions[s.ordinal()] = Counter.builder("app_third_party_call_circuit_transitions")
+                    .description("Transitions of the circuit breaker to the state")
+                    .tag("name", name)
+                    .tag("state", stateTag)
+                    .register(registry);
+        }
+        this.rejected = Counter.builder("app_third_party_call_circuit_rejected")
+                .description("Calls rejected because the circuit breaker was open")
+                .tag("name", name)
+                .register(registry);
+    }
+
+    public State state() {
+        return STATES[ordinal(state.get())];
+    }
+
+    /**
+     * @return {@link #NOT_TRIAL} if the circuit is closed, and otherwise the permission of a trial call,
+     *         to give to {@link #onResult(AppStatus, long, long)} when the call is completed
+     * @throws CallNotPermittedException if the circuit is open, or half open and all trial calls are in progress
+     */
+    long acquirePermission() {
+        long current = state.get();
+        if (ordinal(current) == State.CLOSED.ordinal()) {
+            return NOT_TRIAL;
+        }
+        if (ordinal(current) == State.OPEN.ordinal()) {
+            if (clock.monotonicTime() - createdAt - (current >>> STATE_BITS) < waitInOpenNanos) {
+                reject();
+            }
+            if (state.compareAndSet(current, (current & ~STATE_MASK) | State.HALF_OPEN.ordinal())) {
+                long generation = trial.get() >>> GENERATION_SHIFT;
+                generation = generation == MAX_GENERATION ? 1 : generation + 1;
+                trial.set(generation << GENERATION_SHIFT | (config.permittedCallsInHalfOpen - 1) * PERMIT);
+                transitions[State.HALF_OPEN.ordinal()].increment();
+                return generation;
+            }
+        }
+        while (true) {
+            long trials = trial.get();
+            if ((trials & (MAX_TRIAL_CALLS * PERMIT)) == 0) {
+                reject();
+            }
+            if (trial.compareAndSet(trials, trials - PERMIT)) {
+                return trials >>> GENERATION_SHIFT;
+            }
+        }
+    }
+
+    /**
+     * @param permission the permission the call was given by {@link #acquirePermission()}
+     */
+    void onResult(AppStatus status, long durationNanos, long permission) {
+        boolean failed = status == AppStatus.FAILED;
+        boolean slow = durationNanos > config.slowCallNanos;
+        if (permission == NOT_TRIAL) {
+            if (ordinal(state.get()) == State.CLOSED.ordinal()) {
+                record(failed, slow);
+            }
+            return;
+        }
+        while (true) {
+            long trials = trial.get();
+            if (trials >>> GENERATION_SHIFT != permission || (trials & ENDED) != 0) {
+                return;
+            }
+            boolean closing = !failed && !slow && (trials & MAX_TRIAL_CALLS) + 1 >= config.permittedCallsInHalfOpen;
+            if (failed || slow || closing) {
+                if (trial.compareAndSet(trials, permission << GENERATION_SHIFT | ENDED)) {
+                    transition(State.HALF_OPEN, closing ? State.CLOSED : State.OPEN);
+                    return;
+                }
+            } else if (trial.compareAndSet(trials, trials + SUCCEEDED)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The call ended without a result, and gives back its permission, so that a trial call
+     * which is cancelled can be replaced by another trial call.
+     *
+     * @param permission the permission the call was given by {@link #acquirePermission()}
+     */
+    void onCancelled(long permission) {
+        if (permission == NOT_TRIAL) {
+            return;
+        }
+        while (true) {
+            long trials = trial.get();
+            if (trials >>> GENERATION_SHIFT != permission || (trials & ENDED) != 0
+                    || trial.compareAndSet(trials, trials + PERMIT)) {
+                return;
+            }
+        }
+    }
+
+    private void record(boolean failed, boolean slow) {
+        int outcome = RECORDED | (failed ? FAILED : 0) | (slow ? SLOW : 0);
+        int position = (int) Math.floorMod(nextOutcome.getAndIncrement(), (long) outcomes.length());
+        int replaced = outcomes.getAndSet(position, outcome);
+        int recorded = replaced == 0 ? recordedCalls.incrementAndGet() : recordedCalls.get();
+        int failures = adjust(failedCalls, replaced, outcome, FAILED);
+        int slowOnes = adjust(slowCalls, replaced, outcome, SLOW);
+        if (recorded >= config.minimumCalls
+                && (failures >= config.failureRateThreshold * recorded || slowOnes >= config.slowCallRateThreshold * recorded)) {
+            transition(State.CLOSED, State.OPEN);
+        }
+    }
+
+    private static int adjust(AtomicInteger count, int replaced, int outcome, int flag) {
+        int delta = (outcome & flag) - (replaced & flag);
+        return delta == 0 ? count.get() : count.addAndGet(delta / flag);
+    }
+
+    private void transition(State from, State to) {
+        long current = state.get();
+        if (ordinal(current) != from.ordinal()) {
+            return;
+        }
+        long next = to == State.OPEN
+                ? (clock.monotonicTime() - createdAt) << STATE_BITS | to.ordinal()
+                : (current & ~STATE_MASK) | to.ordinal();
+        if (state.compareAndSet(current, next)) {
+            transitions[to.ordinal()].increment();
+            if (to == State.CLOSED) {
+                clearOutcomes();
+            }
+        }
+    }
+
+    private void clearOutcomes() {
+        for (int i = 0; i < outcomes.length(); i++) {
+            int replaced = outcomes.getAndSet(i, 0);
+            if (replaced != 0) {
+                recordedCalls.decrementAndGet();
+                adjust(failedCalls, replaced, 0, FAILED);
+                adjust(slowCalls, replaced, 0, SLOW);
+            }
+        }
+    }
+
+    private static int ordinal(long state) {
+        return (int) (state & STATE_MASK);
+    }
+
+    private void reject() {
+        rejected.increment();
+        throw notPermitted;
+    }
+
+}
@@ -24,10 +24,7 @@ public class NoResultTimedThirdPartyCall {
     }
 
     public void call(Runnable thirdPartyCall) {
-        timedThirdPartyCall.call(() -> {
-            thirdPartyCall.run();
-            return null;
-        });
+        timedThirdPartyCall.run(thirdPartyCall);
     }
 
 }
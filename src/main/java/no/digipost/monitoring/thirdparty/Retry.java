@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.thirdparty;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import no.digipost.monitoring.micrometer.AppStatus;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Retries calls to a third party which fail, with exponential backoff and jitter between the attempts.
+ * <p>
+ * An attempt is retried when its status is {@link AppStatus#FAILED}, and any exception it threw is
+ * {@link Config#retryOn(Predicate) retryable}. Calls rejected by the circuit breaker or bulkhead are never retried.
+ * To keep retries from multiplying the load on a partner which is already struggling, retries are limited by a budget,
+ * which is a balance earning a fraction of a retry for each call, and paying for each retry. When the balance is
+ * spent, failed attempts are not retried until enough calls have earned new retries.
+ * <p>
+ * Each attempt is recorded as a call of its own, with the usual meters, and additionally the following metrics
+ * are recorded, tagged with the name of the call:
+ * <ul>
+ *   <li><code>app_third_party_call_including_retries_seconds</code>, the time of the call including all attempts and backoff</li>
+ *   <li><code>app_third_party_call_retries_total</code>, retried attempts</li>
+ *   <li><code>app_third_party_call_retry_budget_exhausted_total</code>, failed attempts not retried because the budget was spent</li>
+ * </ul>
+ */
+public final class Retry {
+
+    public static final class Config {
+        private final int maxAttempts;
+        private long initialBackoffNanos = Duration.ofMillis(100).toNanos();
+        private double multiplier = 2;
+        private long maxBackoffNanos = Duration.ofSeconds(10).toNanos();
+        private double jitter = 0.5;
+        private double budgetPerCall = 0.2;
+        private int maxBudget = 10;
+        private Predicate<? super RuntimeException> retryOn = thrown -> true;
+        private Executor executor = ForkJoinPool.commonPool();
+
+        private Config(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+        }
+
+        /**
+         * @param maxAttempts the max number of attempts of a call, including the first
+         */
+        public static Config maxAttempts(int maxAttempts) {
+            if (maxAttempts <= 0) {
+                throw new IllegalArgumentException("Max attempts must be positive, was " + maxAttempts);
+            }
+            return new Config(maxAttempts);
+        }
+
+        /**
+         * The backoff before the first retry, doubling for each retry, up to the max backoff.
+         * The default is 100 milliseconds, up to 10 seconds.
+         */
+        public Config backoff(Duration initial, Duration max) {
+            return backoff(initial, 2, max);
+        }
+
+        /**
+         * The backoff before the first retry, multiplied for each retry, up to the max backoff.
+         *
+         * @param multiplier at least 1
+         */
+        public Config backoff(Duration initial, double multiplier, Duration max) {
+            if (initial.isNegative() || initial.compareTo(max) > 0) {
+                throw new IllegalArgumentException("Backoff must not be negative, and initial <= max, was " + initial + " <= " + max);
+            }
+            if (!(multiplier >= 1)) {
+                throw new IllegalArgumentException("Backoff multiplier must be at least 1, was " + multiplier);
+            }
+            this.initialBackoffNanos = initial.toNanos();
+            this.multiplier = multiplier;
+            this.maxBackoffNanos = max.toNanos();
+            return this;
+        }
+
+        /**
+         * @param jitter the fraction, between 0 and 1, of each backoff which is randomly subtracted,
+         *               to spread out the retries of concurrent calls. The default is 0.5.
+         */
+        public Config jitter(double jitter) {
+            if (!(jitter >= 0 && jitter <= 1)) {
+                throw new IllegalArgumentException("Jitter must be between 0 and 1, was " + jitter);
+            }
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * The budget of retries. The default is 0.2 retries per call, with at most 10 retries saved up.
+         *
+         * @param retriesPerCall the fraction of a retry earned by each call
+         * @param maxRetries the max number of retries which can be saved up, for a burst of retries,
+         *                   which is also the balance initially
+         */
+        public Config budget(double retriesPerCall, int maxRetries) {
+            if (!(retriesPerCall >= 0) || maxRetries < 0) {
+                throw new IllegalArgumentException("Retry budget must not be negative, was " + retriesPerCall + " retries per call, and max " + maxRetries);
+            }
+            this.budgetPerCall = retriesPerCall;
+            this.maxBudget = maxRetries;
+            return this;
+        }
+
+        /**
+         * Only retry failed attempts which threw an exception when it matches the predicate.
+         * By default, all exceptions are retried, except {@link CallNotPermittedException}.
+         */
+        public Config retryOn(Predicate<? super RuntimeException> retryable) {
+            this.retryOn = retryable;
+            return this;
+        }
+
+        /**
+         * The executor running the retries of {@link TimedThirdPartyCall#callAsync(java.util.function.Supplier) asynchronous calls}
+         * after the backoff. The default is {@link ForkJoinPool#commonPool()}, which is shared with the rest of the application,
+         * and so calls which block, or are not to compete with other tasks for the common pool, should be given an executor of their own.
+         * Synchronous calls are retried by the calling thread.
+         */
+        public Config executor(Executor executor) {
+            this.executor = Objects.requireNonNull(executor, "executor can not be null");
+            return this;
+        }
+    }
+
+    private static final long BUDGET_SCALE = 1000;
+
+    private final Config config;
+    private final long depositPerCall;
+    private final long maxBalance;
+    private final AtomicLong balance;
+    private final Timer includingRetries;
+    private final Counter retries;
+    private final Counter budgetExhausted;
+
+    Retry(String name, Config config, MeterRegistry registry, double... percentiles) {
+        this.config = config;
+        this.depositPerCall = Math.round(config.budgetPerCall * BUDGET_SCALE);
+        this.maxBalance = config.maxBudget * BUDGET_SCALE;
+        this.balance = new AtomicLong(maxBalance);
+        this.includingRetries = Timer.builder("app_third_party_call_including_retries")
+                .description("Calls including all attempts and backoff")
+                .tag("name", name)
+                .publishPercentiles(percentiles)
+                .register(registry);
+        this.retries = Counter.builder("app_third_party_call_retries")
+                .description("Retried attempts")
+                .tag("name", name)
+                .register(registry);
+        this.budgetExhausted = Counter.builder("app_third_party_call_retry_budget_exhausted")
+                .description("Failed attempts not retried because the retry budget was spent")
+                .tag("name", name)
+                .register(registry);
+    }
+
+    /**
+     * A call is started, earning its share of the retry budget.
+     */
+    void started() {
+        long current;
+        do {
+            current = balance.get();
+            if (current >= maxBalance) {
+                return;
+            }
+        } while (!balance.compareAndSet(current, Math.min(maxBalance, current + depositPerCall)));
+    }
+
+    /**
+     * @return whether the attempt, which has completed, should be retried, paying for the retry
+     */
+    boolean shouldRetry(int attempt, AppStatus status, RuntimeException thrown) {
+        if (attempt >= config.maxAttempts || status != AppStatus.FAILED
+                || (thrown != null && (thrown instanceof CallNotPermittedException || !config.retryOn.test(thrown)))) {
+            return false;
+        }
+        long current;
+        do {
+            current = balance.get();
+            if (current < BUDGET_SCALE) {
+                budgetExhausted.increment();
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - BUDGET_SCALE));
+        retries.increment();
+        return true;
+    }
+
+    /**
+     * @return the backoff before the given retry, counting from 1, with jitter
+     */
+    long backoffNanos(int retry) {
+        double backoff = Math.min(config.maxBackoffNanos, config.initialBackoffNanos * Math.pow(config.multiplier, retry - 1));
+        return (long) (backoff * (1 - config.jitter * ThreadLocalRandom.current().nextDouble()));
+    }
+
+    /**
+     * Run the given retry, counting from 1, with the executor, after the backoff, without blocking the calling thread.
+     *
+     * @param rejected notified instead of running the retry if the executor rejects it
+     */
+    void schedule(int retry, Runnable attempt, Consumer<RejectedExecutionException> rejected) {
+        Executor executor = config.executor;
+        CompletableFuture.delayedExecutor(backoffNanos(retry), TimeUnit.NANOSECONDS, task -> {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                rejected.accept(e);
+            }
+        }).execute(attempt);
+    }
+
+    /**
+     * Wait before the given retry.
+     *
+     * @return {@code false} if interrupted, and the call should not be retried
+     */
+    boolean backoff(int retry) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(backoffNanos(retry));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    void completed(long durationNanos) {
+        includingRetries.record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.thirdparty;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Passes everything on to a subscriber, and notifies once with the last element or the exception
+ * when the publisher completes or fails, or, instead, that the subscription is cancelled.
+ */
+final class TimedSubscriber<T> implements Flow.Subscriber<T> {
+
+    private final Flow.Subscriber<? super T> subscriber;
+    private final BiConsumer<T, RuntimeException> completion;
+    private final Runnable cancellation;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private T last;
+
+    TimedSubscriber(Flow.Subscriber<? super T> subscriber, BiConsumer<T, RuntimeException> completion, Runnable cancellation) {
+        this.subscriber = subscriber;
+        this.completion = completion;
+        this.cancellation = cancellation;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                subscription.request(n);
+            }
+
+            @Override
+            public void cancel() {
+                if (done.compareAndSet(false, true)) {
+                    cancellation.run();
+                }
+                subscription.cancel();
+            }
+        });
+    }
+
+    /**
+     * Notifies that the subscription is cancelled, unless already done, as when subscribing to the publisher throws.
+     */
+    void subscribeFailed() {
+        if (done.compareAndSet(false, true)) {
+            cancellation.run();
+        }
+    }
+
+    @Override
+    public void onNext(T item) {
+        last = item;
+        subscriber.onNext(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        if (done.compareAndSet(false, true)) {
+            completion.accept(null, throwable instanceof RuntimeException ? (RuntimeException) throwable : new CompletionException(throwable));
+        }
+        subscriber.onError(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        if (done.compareAndSet(false, true)) {
+            completion.accept(last, null);
+        }
+        subscriber.onComplete();
+    }
+
+}
@@ -18,6 +18,11 @@ package no.digipost.monitoring.thirdparty;
 import no.digipost.monitoring.micrometer.AppStatus;
 
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 import java.util.function.Supplier;
 
@@ -35,7 +40,7 @@ import java.util.function.Supplier;
  * 
  * You control what is OK and failed by specifying the function for states that give an AppStatus. This
  * can be done with helper methods on TimedThirdPartyCallDescriptor. You can also 
- * send in your BiFunction to `callResponseStatus`. By doing that, you can differentiate 
+ * send in your BiFunction to `callResponseStatus`, or a {@link CallStatusMapper} to `callStatus`. By doing that, you can differentiate 
  * between situations that is failing but is ignorable. This is useful when you integrate to
  * an api, via batch, which has some kind of timeout-issue. Just check for a 
  * situation and count as WARN in stead.
@@ -44,25 +49,323 @@ import java.util.function.Supplier;
  */
 public class TimedThirdPartyCall<RESULT> {
 
+    private static final Flow.Subscription NO_SUBSCRIPTION = new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    };
+
     private final TimedThirdPartyCallDescriptor descriptor;
-    private final BiFunction<? super RESULT, Optional<RuntimeException>, AppStatus> reportWarnPredicate;
+    private final CallStatusMapper<? super RESULT> statusMapper;
 
     public TimedThirdPartyCall(TimedThirdPartyCallDescriptor descriptor, BiFunction<? super RESULT, Optional<RuntimeException>, AppStatus> reportWarnPredicate) {
+        this(descriptor, (CallStatusMapper<RESULT>) (result, thrown) -> reportWarnPredicate.apply(result, Optional.ofNullable(thrown)));
+    }
+
+    TimedThirdPartyCall(TimedThirdPartyCallDescriptor descriptor, CallStatusMapper<? super RESULT> statusMapper) {
         this.descriptor = descriptor;
-        this.reportWarnPredicate = reportWarnPredicate;
+        this.statusMapper = statusMapper;
     }
 
+    /**
+     * Times the call and counts its status. Neither this, nor the built-in status mappers of
+     * {@link TimedThirdPartyCallDescriptor}, allocate anything, as long as the supplier
+     * does not capture any variables.
+     * <p>
+     * With a {@link TimedThirdPartyCallDescriptor#retry(Retry.Config) retry policy}, failed attempts are retried
+     * after a backoff, blocking the calling thread, and the result or exception of the last attempt is returned or thrown.
+     *
+     * @throws CallNotPermittedException if the {@link TimedThirdPartyCallDescriptor#circuitBreaker(CircuitBreaker.Config) circuit breaker}
+     *                                   is open, or the {@link TimedThirdPartyCallDescriptor#bulkhead(Bulkhead.Config) bulkhead}
+     *                                   is full, without calling
+     * @throws CallTimeoutException if the call is run by the executor of the bulkhead, and did not complete before the timeout
+     */
     public RESULT call(Supplier<RESULT> thirdPartyCall) {
+        return execute(thirdPartyCall, null);
+    }
+
+    /**
+     * Same as {@link #call(Supplier)} for a call without a result, without adapting it to a {@link Supplier}.
+     */
+    void run(Runnable thirdPartyCall) {
+        execute(null, thirdPartyCall);
+    }
+
+    /**
+     * Calls either the supplier or the runnable, and retries it if the descriptor has a retry policy.
+     */
+    private RESULT execute(Supplier<RESULT> supplier, Runnable runnable) {
+        Retry retry = descriptor.retry;
+        long callStart = 0;
+        if (retry != null) {
+            retry.started();
+            callStart = descriptor.clock.monotonicTime();
+        }
+        try {
+            for (int attempt = 1; ; attempt++) {
+                long permission = acquirePermission();
+                long start = descriptor.clock.monotonicTime();
+                Bulkhead bulkhead = descriptor.bulkhead;
+                boolean released = bulkhead != null && bulkhead.runsCalls();
+                RESULT returnValue = null;
+                RuntimeException thrown = null;
+                try {
+                    returnValue = attempt(bulkhead, supplier, runnable);
+                } catch (RuntimeException e) {
+                    thrown = e;
+                } catch (Error e) {
+                    aborted(start, permission, released);
+                    throw e;
+                }
+                AppStatus status = completed(start, permission, released, returnValue, thrown);
+                if (retry == null || !retry.shouldRetry(attempt, status, thrown) || !retry.backoff(attempt)) {
+                    if (thrown != null) {
+                        throw thrown;
+                    }
+                    return returnValue;
+                }
+            }
+        } finally {
+            if (retry != null) {
+                retry.completed(descriptor.clock.monotonicTime() - callStart);
+            }
+        }
+    }
 
-        RESULT returnValue = null;
-        Optional<RuntimeException> thrown = Optional.empty();
+    private RESULT attempt(Bulkhead bulkhead, Supplier<RESULT> supplier, Runnable runnable) {
+        if (supplier != null) {
+            return bulkhead != null ? bulkhead.call(supplier) : supplier.get();
+        } else if (bulkhead != null) {
+            bulkhead.run(runnable);
+        } else {
+            runnable.run();
+        }
+        return null;
+    }
+
+    /**
+     * Times an asynchronous call from it is started until the returned stage completes, and counts its
+     * status from the result or exception it completes with. No thread is blocked waiting for the completion.
+     * If the supplier itself throws, the call is recorded and the exception is rethrown, as with {@link #call(Supplier)}.
+     * A supplier returning {@code null} instead of a stage is treated as throwing a {@link NullPointerException}.
+     * A checked exception completing the stage is given to the status mapper wrapped in a {@link CompletionException}.
+     * <p>
+     * With a retry policy, failed attempts are retried after a backoff, without blocking any thread, by the
+     * {@link Retry.Config#executor(java.util.concurrent.Executor) executor of the retry policy}, and an exception thrown
+     * by the supplier completes the returned stage instead of being rethrown. If the executor rejects a retry, the returned
+     * stage is completed with the {@link java.util.concurrent.RejectedExecutionException}.
+     *
+     * @return a stage completing with the same result or exception as the call, after the call is recorded,
+     *         or with {@link CallNotPermittedException} if the circuit breaker is open or the bulkhead is full.
+     *         With a timeout in the bulkhead, the returned stage is completed with a {@link java.util.concurrent.TimeoutException}
+     *         if the call has not completed before the timeout, while the stage of the call itself is left as it is.
+     */
+    public CompletionStage<RESULT> callAsync(Supplier<? extends CompletionStage<RESULT>> thirdPartyCall) {
+        Retry retry = descriptor.retry;
+        if (retry != null) {
+            retry.started();
+            CompletableFuture<RESULT> result = new CompletableFuture<>();
+            attemptAsync(thirdPartyCall, retry, 1, descriptor.clock.monotonicTime(), result);
+            return result;
+        }
+        long permission;
+        try {
+            permission = acquirePermission();
+        } catch (CallNotPermittedException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        long start = descriptor.clock.monotonicTime();
+        CompletionStage<RESULT> stage;
+        try {
+            stage = stageOf(thirdPartyCall);
+        } catch (RuntimeException e) {
+            completed(start, permission, null, e);
+            throw e;
+        }
+        Bulkhead bulkhead = descriptor.bulkhead;
+        if (bulkhead != null) {
+            stage = bulkhead.releaseWhenCompleted(stage);
+        }
+        boolean released = bulkhead != null;
+        return stage.whenComplete((result, thrown) -> completed(start, permission, released, result, thrown != null ? asRuntimeException(thrown) : null));
+    }
+
+    /**
+     * Starts an attempt of an asynchronous call with retries, and schedules the next attempt, or completes the
+     * result, when it completes. An exception thrown by the supplier, or no stage, fails the attempt, like a failed stage.
+     */
+    private void attemptAsync(Supplier<? extends CompletionStage<RESULT>> thirdPartyCall, Retry retry, int attempt, long callStart, CompletableFuture<RESULT> result) {
+        long permission;
+        try {
+            permission = acquirePermission();
+        } catch (CallNotPermittedException e) {
+            retry.completed(descriptor.clock.monotonicTime() - callStart);
+            result.completeExceptionally(e);
+            return;
+        }
+        long start = descriptor.clock.monotonicTime();
+        CompletionStage<RESULT> stage;
         try {
-            returnValue = descriptor.timer.record(thirdPartyCall);
-        } catch (RuntimeException t) {
-            thrown = Optional.of(t);
+            stage = stageOf(thirdPartyCall);
+        } catch (RuntimeException e) {
+            stage = CompletableFuture.failedFuture(e);
         }
+        Bulkhead bulkhead = descriptor.bulkhead;
+        if (bulkhead != null) {
+            stage = bulkhead.releaseWhenCompleted(stage);
+        }
+        boolean released = bulkhead != null;
+        stage.whenComplete((value, thrown) -> {
+            RuntimeException exception = thrown != null ? asRuntimeException(thrown) : null;
+            AppStatus status = completed(start, permission, released, value, exception);
+            if (retry.shouldRetry(attempt, status, exception)) {
+                retry.schedule(attempt, () -> attemptAsync(thirdPartyCall, retry, attempt + 1, callStart, result), rejected -> {
+                    if (exception != null) {
+                        rejected.addSuppressed(exception);
+                    }
+                    retry.completed(descriptor.clock.monotonicTime() - callStart);
+                    result.completeExceptionally(rejected);
+                });
+                return;
+            }
+            retry.completed(descriptor.clock.monotonicTime() - callStart);
+            if (thrown != null) {
+                result.completeExceptionally(thrown);
+            } else {
+                result.complete(value);
+            }
+        });
+    }
+
+    /**
+     * Times each subscription to a publisher, from the subscription starts until the publisher completes or fails,
+     * and counts its status from the last element published, or {@code null} if none, or the exception it failed with.
+     * Subscriptions which are cancelled are not recorded. Reactor's <code>Mono</code> and <code>Flux</code> can be
+     * adapted with <code>JdkFlowAdapter</code>. If the circuit breaker is open, or the bulkhead is full, the subscription fails with
+     * {@link CallNotPermittedException}. Subscriptions taking longer than the timeout of the bulkhead are counted as timed out,
+     * but are not cancelled.
+     *
+     * @return a publisher publishing the same as the given publisher
+     */
+    public Flow.Publisher<RESULT> callPublisher(Flow.Publisher<RESULT> publisher) {
+        return subscriber -> {
+            long permission;
+            try {
+                permission = acquirePermission();
+            } catch (CallNotPermittedException e) {
+                subscriber.onSubscribe(NO_SUBSCRIPTION);
+                subscriber.onError(e);
+                return;
+            }
+            long start = descriptor.clock.monotonicTime();
+            TimedSubscriber<RESULT> timed = new TimedSubscriber<>(subscriber,
+                    (result, thrown) -> completed(start, permission, result, thrown), () -> cancelled(permission));
+            try {
+                publisher.subscribe(timed);
+            } catch (RuntimeException | Error e) {
+                timed.subscribeFailed();
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * @throws NullPointerException if the supplier returns no stage, which then fails the call, as if thrown by the supplier
+     */
+    private static <T> CompletionStage<T> stageOf(Supplier<? extends CompletionStage<T>> asyncCall) {
+        CompletionStage<T> stage = asyncCall.get();
+        if (stage == null) {
+            throw new NullPointerException("Asynchronous call returned no stage");
+        }
+        return stage;
+    }
+
+    /**
+     * @return the permission from the circuit breaker, or {@link CircuitBreaker#NOT_TRIAL} if none
+     */
+    private long acquirePermission() {
+        Bulkhead bulkhead = descriptor.bulkhead;
+        if (bulkhead != null) {
+            bulkhead.acquirePermission();
+        }
+        CircuitBreaker circuitBreaker = descriptor.circuitBreaker;
+        if (circuitBreaker != null) {
+            try {
+                return circuitBreaker.acquirePermission();
+            } catch (CallNotPermittedException e) {
+                if (bulkhead != null) {
+                    bulkhead.release();
+                }
+                throw e;
+            }
+        }
+        return CircuitBreaker.NOT_TRIAL;
+    }
+
+    private AppStatus completed(long start, long permission, RESULT result, RuntimeException thrown) {
+        return completed(start, permission, false, result, thrown);
+    }
+
+    /**
+     * @param released whether the permission from the bulkhead has already been released, by the executor running the call
+     */
+    private AppStatus completed(long start, long permission, boolean released, RESULT result, RuntimeException thrown) {
+        long durationNanos = descriptor.clock.monotonicTime() - start;
+        descriptor.timer.record(durationNanos, TimeUnit.NANOSECONDS);
+        AppStatus status = statusMapper.statusOf(result, thrown);
+        Bulkhead bulkhead = descriptor.bulkhead;
+        if (bulkhead != null) {
+            status = released ? bulkhead.statusOf(status, durationNanos) : bulkhead.onResult(status, durationNanos);
+        }
+        count(status);
+        CircuitBreaker circuitBreaker = descriptor.circuitBreaker;
+        if (circuitBreaker != null) {
+            circuitBreaker.onResult(status, durationNanos, permission);
+        }
+        return status;
+    }
+
+    /**
+     * The call threw an {@link Error}, which is timed, and counts as failed for the circuit breaker,
+     * but is not counted with a status.
+     */
+    private void aborted(long start, long permission, boolean released) {
+        long durationNanos = descriptor.clock.monotonicTime() - start;
+        descriptor.timer.record(durationNanos, TimeUnit.NANOSECONDS);
+        Bulkhead bulkhead = descriptor.bulkhead;
+        if (bulkhead != null && !released) {
+            bulkhead.release();
+        }
+        CircuitBreaker circuitBreaker = descriptor.circuitBreaker;
+        if (circuitBreaker != null) {
+            circuitBreaker.onResult(AppStatus.FAILED, durationNanos, permission);
+        }
+    }
 
-        AppStatus appStatus = reportWarnPredicate.apply(returnValue, thrown);
+    /**
+     * The call ended without being recorded, and only gives back its permissions from the bulkhead and the circuit breaker.
+     */
+    private void cancelled(long permission) {
+        Bulkhead bulkhead = descriptor.bulkhead;
+        if (bulkhead != null) {
+            bulkhead.release();
+        }
+        CircuitBreaker circuitBreaker = descriptor.circuitBreaker;
+        if (circuitBreaker != null) {
+            circuitBreaker.onCancelled(permission);
+        }
+    }
+
+    private static RuntimeException asRuntimeException(Throwable thrown) {
+        Throwable cause = thrown instanceof CompletionException && thrown.getCause() != null ? thrown.getCause() : thrown;
+        return cause instanceof RuntimeException ? (RuntimeException) cause : new CompletionException(cause);
+    }
+
+    private void count(AppStatus appStatus) {
         if (AppStatus.FAILED == appStatus) {
             descriptor.failedCounter.increment();
         } else if (AppStatus.WARN == appStatus) {
@@ -70,9 +373,6 @@ public class TimedThirdPartyCall<RESULT> {
         } else {
             descriptor.successCounter.increment();
         }
-        thrown.ifPresent(e -> { throw e; });
-
-        return returnValue;
     }
 
 }
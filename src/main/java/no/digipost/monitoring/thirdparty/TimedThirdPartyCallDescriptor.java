@@ -15,6 +15,7 @@
  */
 package no.digipost.monitoring.thirdparty;
 
+import io.micrometer.core.instrument.Clock;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Tags;
@@ -29,34 +30,36 @@ import java.util.function.BiFunction;
  */
 public class TimedThirdPartyCallDescriptor {
 
-    private static final BiFunction<Object, Optional<RuntimeException>, AppStatus> failOnException = (response, possibleException) -> possibleException.isPresent() ? AppStatus.FAILED : AppStatus.OK;
-    private static final BiFunction<Object, Optional<RuntimeException>, AppStatus> failOnExceptionOrNull = (response, possibleException) -> (possibleException.isPresent() || response == null) ? AppStatus.FAILED : AppStatus.OK;
-    private static final BiFunction<Boolean, Optional<RuntimeException>, AppStatus> failOnExceptionOrFalse = (response, possibleException) -> (possibleException.isPresent() || (response != null && !response)) ? AppStatus.FAILED : AppStatus.OK;
+    private static final CallStatusMapper<Object> failOnException = (response, thrown) -> thrown != null ? AppStatus.FAILED : AppStatus.OK;
+    private static final CallStatusMapper<Object> failOnExceptionOrNull = (response, thrown) -> (thrown != null || response == null) ? AppStatus.FAILED : AppStatus.OK;
+    private static final CallStatusMapper<Boolean> failOnExceptionOrFalse = (response, thrown) -> (thrown != null || (response != null && !response)) ? AppStatus.FAILED : AppStatus.OK;
     final Counter successCounter;
     final Counter warnCounter;
     final Counter failedCounter;
     final Timer timer;
+    final Clock clock;
+    volatile CircuitBreaker circuitBreaker;
+    volatile Bulkhead bulkhead;
+    volatile Retry retry;
+    private final MeterRegistry registry;
+    private final double[] percentiles;
     private final String group;
     private final String endpoint;
 
     private TimedThirdPartyCallDescriptor(String group, String endpoint, MeterRegistry prometheusRegistry, double... percentiles) {
         this.group = group;
         this.endpoint = endpoint;
+        this.registry = prometheusRegistry;
+        this.clock = prometheusRegistry.config().clock();
         this.successCounter = prometheusRegistry.counter("app_third_party_call_total", Tags.of("name", getName(), "status", AppStatus.OK.name()));
         this.warnCounter = prometheusRegistry.counter("app_third_party_call_total", Tags.of("name", getName(), "status", AppStatus.WARN.name()));
         this.failedCounter = prometheusRegistry.counter("app_third_party_call_total", Tags.of("name", getName(), "status", AppStatus.FAILED.name()));
 
-        if (percentiles.length == 0) {
-            this.timer = Timer.builder("app_third_party_call")
-                    .tags(Tags.of("name", getName()))
-                    .publishPercentiles(0.5, 0.95, 0.99)
-                    .register(prometheusRegistry);
-        } else {
-            this.timer = Timer.builder("app_third_party_call")
-                    .tags(Tags.of("name", getName()))
-                    .publishPercentiles(percentiles)
-                    .register(prometheusRegistry);
-        }
+        this.percentiles = percentiles.length == 0 ? new double[] {0.5, 0.95, 0.99} : percentiles;
+        this.timer = Timer.builder("app_third_party_call")
+                .tags(Tags.of("name", getName()))
+                .publishPercentiles(this.percentiles)
+                .register(prometheusRegistry);
     }
 
     public static TimedThirdPartyCallDescriptor create(String group, String endpoint, MeterRegistry prometheusRegistry, double... percentiles) {
@@ -73,6 +76,35 @@ public class TimedThirdPartyCallDescriptor {
 
     }
 
+    /**
+     * Stop calling when too many calls have failed or been slow, and instead throw
+     * {@link CallNotPermittedException}, until trial calls succeed again. Applies to all
+     * calls created from this descriptor.
+     */
+    public TimedThirdPartyCallDescriptor circuitBreaker(CircuitBreaker.Config config) {
+        this.circuitBreaker = new CircuitBreaker(getName(), config, registry);
+        return this;
+    }
+
+    /**
+     * Cap the number of concurrent calls, and optionally time out calls. Calls exceeding the cap throw
+     * {@link CallNotPermittedException} without calling. Applies to all calls created from this descriptor.
+     */
+    public TimedThirdPartyCallDescriptor bulkhead(Bulkhead.Config config) {
+        this.bulkhead = new Bulkhead(getName(), config, registry);
+        return this;
+    }
+
+    /**
+     * Retry failed calls, with backoff between the attempts. Each attempt is timed and counted as a call,
+     * and the call including all attempts is timed separately. Applies to all calls created from this
+     * descriptor, except {@link TimedThirdPartyCall#callPublisher(java.util.concurrent.Flow.Publisher) publishers}.
+     */
+    public TimedThirdPartyCallDescriptor retry(Retry.Config config) {
+        this.retry = new Retry(getName(), config, registry, percentiles);
+        return this;
+    }
+
     public NoResultTimedThirdPartyCallDescriptor noResult() {
         return new NoResultTimedThirdPartyCallDescriptor();
     }
@@ -91,11 +123,19 @@ public class TimedThirdPartyCallDescriptor {
     }
 
     public <RESULT> TimedThirdPartyCall<RESULT> callResponseStatus(BiFunction<? super RESULT, Optional<RuntimeException>, AppStatus> reportWarnPredicate) {
-        return build(reportWarnPredicate);
+        return new TimedThirdPartyCall<>(this, reportWarnPredicate);
     }
 
-    private <RESULT> TimedThirdPartyCall<RESULT> build(BiFunction<? super RESULT, Optional<RuntimeException>, AppStatus> reportWarnPredicate) {
-        return new TimedThirdPartyCall<>(this, reportWarnPredicate);
+    /**
+     * Same as {@link #callResponseStatus(BiFunction)}, with a status mapper getting the thrown exception,
+     * if any, as is, instead of wrapped in an {@link Optional}.
+     */
+    public <RESULT> TimedThirdPartyCall<RESULT> callStatus(CallStatusMapper<? super RESULT> statusMapper) {
+        return build(statusMapper);
+    }
+
+    private <RESULT> TimedThirdPartyCall<RESULT> build(CallStatusMapper<? super RESULT> statusMapper) {
+        return new TimedThirdPartyCall<>(this, statusMapper);
     }
 
     String getName() {
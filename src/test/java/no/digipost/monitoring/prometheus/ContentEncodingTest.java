@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class ContentEncodingTest {
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "                          | IDENTITY",
+            "identity                  | IDENTITY",
+            "gzip                      | GZIP",
+            "GZIP                      | GZIP",
+            "deflate                   | DEFLATE",
+            "gzip, deflate, br         | GZIP",
+            "deflate, gzip             | GZIP",
+            "gzip;q=0.5, deflate       | DEFLATE",
+            "gzip;q=0, deflate;q=0     | IDENTITY",
+            "*                         | GZIP",
+            "gzip;q=0, *               | DEFLATE",
+            "gzip;q=0, deflate;q=0, *  | IDENTITY",
+            "br                        | IDENTITY",
+    })
+    void negotiates_preferred_encoding(String acceptEncoding, ContentEncoding expected) {
+        assertThat(ContentEncoding.negotiate(acceptEncoding), is(expected));
+    }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class CountingOutputStreamTest {
+
+    @Test
+    void counts_bytes_and_samples_written_in_any_chunks() throws IOException {
+        byte[] exposition = ("# HELP app_events_total Events\n" +
+                "# TYPE app_events_total counter\n" +
+                "app_events_total{type=\"a\"} 1.0\n" +
+                "app_events_total{type=\"b\"} 2.0\n" +
+                "\n" +
+                "app_up 1.0\n" +
+                "# EOF\n").getBytes(UTF_8);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+        try (CountingOutputStream counting = new CountingOutputStream(target, true)) {
+            counting.write(exposition, 0, 40);
+            counting.write(exposition[40]);
+            counting.write(exposition, 41, exposition.length - 41);
+
+            assertThat(counting.bytes(), is((long) exposition.length));
+            assertThat(counting.samples(), is(3L));
+        }
+        assertThat(target.toByteArray(), is(exposition));
+    }
+
+}
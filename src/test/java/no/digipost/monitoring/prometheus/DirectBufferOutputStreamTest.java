@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DirectBufferOutputStreamTest {
+
+    private final DirectBufferPool pool = new DirectBufferPool(8, 2);
+
+    @Test
+    void leaves_buffers_of_pool_to_other_renderings_when_holding_max_buffers() throws IOException {
+        DirectBufferOutputStream slow = new DirectBufferOutputStream(pool, 1, TimeUnit.MILLISECONDS.toNanos(50), () -> {});
+        DirectBufferOutputStream other = new DirectBufferOutputStream(pool, 1, TimeUnit.MILLISECONDS.toNanos(50), () -> {});
+
+        slow.write(new byte[8]);
+        assertThrows(IOException.class, () -> slow.write(new byte[1]));
+
+        other.write(new byte[8]);
+        other.complete();
+        assertThat(other.poll().remaining(), is(8));
+    }
+
+    @Test
+    void continues_rendering_when_held_buffer_is_released() throws IOException {
+        DirectBufferOutputStream out = new DirectBufferOutputStream(pool, 1, TimeUnit.SECONDS.toNanos(5), () -> {});
+        out.write(new byte[8]);
+        CompletableFuture<Void> rendering = CompletableFuture.runAsync(() -> {
+            try {
+                out.write(new byte[8]);
+                out.complete();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        out.release(awaitBuffer(out));
+
+        rendering.join();
+        assertThat(out.poll().remaining(), is(8));
+    }
+
+    @Test
+    void abort_fails_rendering_waiting_for_buffer() throws Exception {
+        DirectBufferOutputStream out = new DirectBufferOutputStream(pool, 1, TimeUnit.SECONDS.toNanos(30), () -> {});
+        out.write(new byte[8]);
+        CompletableFuture<Void> rendering = CompletableFuture.runAsync(() -> {
+            try {
+                out.write(new byte[8]);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        awaitBuffer(out);
+
+        out.abort();
+
+        ExecutionException failed = assertThrows(ExecutionException.class, () -> rendering.get(5, TimeUnit.SECONDS));
+        assertThat(failed.getCause().getCause(), instanceOf(IOException.class));
+    }
+
+    private static ByteBuffer awaitBuffer(DirectBufferOutputStream out) {
+        ByteBuffer buffer;
+        while ((buffer = out.poll()) == null) {
+            Thread.onSpinWait();
+        }
+        return buffer;
+    }
+
+}
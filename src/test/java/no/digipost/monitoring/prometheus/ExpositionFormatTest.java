@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class ExpositionFormatTest {
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "                                                                                                          | PROMETHEUS_TEXT",
+            "*/*                                                                                                       | PROMETHEUS_TEXT",
+            "text/plain;version=0.0.4                                                                                  | PROMETHEUS_TEXT",
+            "application/openmetrics-text;version=1.0.0,application/openmetrics-text;version=0.0.1;q=0.75,text/plain;version=0.0.4;q=0.5,*/*;q=0.1 | OPENMETRICS_TEXT",
+            "text/plain;version=0.0.4,application/openmetrics-text;version=1.0.0;q=0.5                                | PROMETHEUS_TEXT",
+            "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.7,text/plain;version=0.0.4;q=0.3,*/*;q=0.2 | PROMETHEUS_PROTOBUF",
+            "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited,application/openmetrics-text | PROMETHEUS_PROTOBUF",
+            "application/vnd.google.protobuf                                                                           | PROMETHEUS_TEXT",
+            "application/openmetrics-text;q=0                                                                          | PROMETHEUS_TEXT",
+    })
+    void negotiates_preferred_format(String accept, ExpositionFormat expected) {
+        assertThat(ExpositionFormat.negotiate(accept), is(expected));
+    }
+
+}
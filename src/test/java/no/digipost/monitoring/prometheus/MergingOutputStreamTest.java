@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class MergingOutputStreamTest {
+
+    @Test
+    void leaves_out_repeated_metadata_of_same_metric() throws IOException {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        MergingOutputStream merging = new MergingOutputStream(target);
+
+        merging.write(("# HELP app_events_total Events\n" +
+                "# TYPE app_events_total counter\n" +
+                "app_events_total{tenant=\"a\"} 1.0\n").getBytes(UTF_8));
+        merging.write(("# HELP app_events_total Events\n" +
+                "# TYPE app_events_total counter\n" +
+                "app_events_total{tenant=\"b\"} 2.0\n" +
+                "# HELP app_events Other events\n" +
+                "# TYPE app_events gauge\n" +
+                "app_events 3.0\n").getBytes(UTF_8));
+        merging.finish();
+
+        assertThat(target.toString(UTF_8), is(
+                "# HELP app_events_total Events\n" +
+                "# TYPE app_events_total counter\n" +
+                "app_events_total{tenant=\"a\"} 1.0\n" +
+                "app_events_total{tenant=\"b\"} 2.0\n" +
+                "# HELP app_events Other events\n" +
+                "# TYPE app_events gauge\n" +
+                "app_events 3.0\n"));
+    }
+
+    @Test
+    void writes_openmetrics_eof_once_when_finished() throws IOException {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        MergingOutputStream merging = new MergingOutputStream(target);
+        byte[] exposition = "# TYPE app_up gauge\napp_up 1.0\n# EOF\n".getBytes(UTF_8);
+
+        for (byte b : exposition) {
+            merging.write(b);
+        }
+        merging.write(exposition, 0, 10);
+        merging.write(exposition, 10, exposition.length - 10);
+        merging.finish();
+
+        assertThat(target.toString(UTF_8), is("# TYPE app_up gauge\napp_up 1.0\napp_up 1.0\n# EOF\n"));
+    }
+
+}
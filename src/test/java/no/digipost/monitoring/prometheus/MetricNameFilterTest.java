@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+
+class MetricNameFilterTest {
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "name[]=app_events                          | app_events          | true",
+            "name[]=app_events                          | app_events_other    | false",
+            "name[]=app_events_total                    | app_events          | true",
+            "name[]=app_latency_bucket                  | app_latency         | true",
+            "name%5B%5D=app_events                      | app_events          | true",
+            "name[]=app_a&name[]=app_b                  | app_b               | true",
+            "name_prefix[]=jvm_                         | jvm_memory_used     | true",
+            "name_prefix[]=jvm_                         | app_events          | false",
+            "name_prefix%5B%5D=jvm_&name[]=app_events   | app_events          | true",
+            "other=1&name[]=app_events                  | app_events          | true",
+    })
+    void matches_requested_metric_names(String query, String metricName, boolean included) {
+        assertThat(MetricNameFilter.fromQuery(query).contains(metricName), is(included));
+    }
+
+    @Test
+    void no_filter_without_name_parameters() {
+        assertThat(MetricNameFilter.fromQuery(null), nullValue());
+        assertThat(MetricNameFilter.fromQuery(""), nullValue());
+        assertThat(MetricNameFilter.fromQuery("name[]="), nullValue());
+        assertThat(MetricNameFilter.fromQuery("debug=true"), nullValue());
+    }
+
+    @Test
+    void iterates_only_exact_names() {
+        assertThat(MetricNameFilter.fromQuery("name[]=app_a&name_prefix[]=jvm_&name[]=app_b"), containsInAnyOrder("app_a", "app_b"));
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.endsWith;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static uk.co.probablyfine.matchers.OptionalMatchers.contains;
+
+class NioPrometheusServerTest {
+
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final List<MetricsServer> runningServers = new ArrayList<>();
+    private PrometheusMeterRegistry prometheusRegistry;
+
+    @BeforeEach
+    void setUp() {
+        prometheusRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        IntStream.range(0, 2000).forEach(i -> Counter.builder("app_test_events").tag("index", String.valueOf(i)).register(prometheusRegistry).increment());
+    }
+
+    @AfterEach
+    void stopServers() {
+        runningServers.forEach(server -> server.stop(Duration.ZERO));
+    }
+
+    @Test
+    void streams_scrape_larger_than_all_buffers_on_kept_alive_connection() throws Exception {
+        int port = start(new NioPrometheusServer((msg, arg) -> {}).buffers(1024, 2));
+
+        for (int i = 0; i < 3; i++) {
+            HttpResponse<String> response = get(port, "/metrics");
+            assertThat(response.statusCode(), is(200));
+            assertThat(response.body(), is(prometheusRegistry.scrape()));
+            assertThat(response.headers().firstValue("Transfer-Encoding"), contains("chunked"));
+            assertThat(response.headers().firstValue("Content-Type"), contains("text/plain; version=0.0.4; charset=utf-8"));
+        }
+    }
+
+    @Test
+    void answers_pipelined_requests_in_order() throws Exception {
+        int port = start(new NioPrometheusServer((msg, arg) -> {}).buffers(1024 * 1024, 1));
+
+        String responses;
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /metrics?name[]=app_test_events HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                    "GET /other HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                    "HEAD /metrics HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(ISO_8859_1));
+            out.flush();
+            try (InputStream in = socket.getInputStream()) {
+                responses = new String(in.readAllBytes(), UTF_8);
+            }
+        }
+
+        int notFound = responses.indexOf("HTTP/1.1 404 Not Found");
+        int head = responses.indexOf("HTTP/1.1 200 OK", notFound);
+        assertThat(responses.startsWith("HTTP/1.1 200 OK"), is(true));
+        assertThat(responses.substring(0, notFound), containsString("app_test_events_total{index=\"1999\"} 1.0"));
+        assertThat(head > notFound && notFound > 0, is(true));
+        assertThat(responses.substring(head), containsString("Connection: close"));
+        assertThat(responses, endsWith("\r\n\r\n"));
+    }
+
+    @Test
+    void releases_buffers_of_scrape_aborted_by_closed_connection() throws Exception {
+        int port = start(new NioPrometheusServer((msg, arg) -> {}).buffers(1024, 2));
+
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write("GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(ISO_8859_1));
+            socket.getOutputStream().flush();
+            assertThat(socket.getInputStream().read(new byte[16]) > 0, is(true));
+        }
+
+        HttpResponse<String> response = get(port, "/metrics");
+        assertThat(response.statusCode(), is(200));
+        assertThat(response.body(), is(prometheusRegistry.scrape()));
+    }
+
+    @Test
+    void rejects_unsupported_requests() throws Exception {
+        int port = start(new NioPrometheusServer((msg, arg) -> {}));
+
+        HttpResponse<String> post = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/metrics"))
+                .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+
+        assertThat(post.statusCode(), is(405));
+        assertThat(get(port, "/").statusCode(), is(404));
+    }
+
+    @Test
+    void serves_negotiated_format() throws Exception {
+        int port = start(new NioPrometheusServer((msg, arg) -> {}).negotiateFormat());
+
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/metrics"))
+                .header("Accept", "application/openmetrics-text;version=1.0.0").build(), HttpResponse.BodyHandlers.ofString());
+
+        assertThat(response.headers().firstValue("Content-Type"), contains("application/openmetrics-text; version=1.0.0; charset=utf-8"));
+        assertThat(response.body(), endsWith("# EOF\n"));
+        assertThat(response.body(), containsString("app_test_events_total{index=\"1999\"} 1.0"));
+    }
+
+    @Test
+    void stopped_server_does_not_accept_requests() throws Exception {
+        MetricsServer server = new NioPrometheusServer((msg, arg) -> {}).start(prometheusRegistry, 0);
+        int port = server.getAddress().getPort();
+        assertThat(get(port, "/metrics").statusCode(), is(200));
+
+        server.close();
+
+        assertThrows(IOException.class, () -> get(port, "/metrics"));
+    }
+
+    @Test
+    void completes_scrape_in_progress_when_stopped_within_grace_period() throws Exception {
+        CountDownLatch rendering = new CountDownLatch(1);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Gauge.builder("app_test_slow", () -> {
+            rendering.countDown();
+            try {
+                stopped.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 1;
+        }).register(prometheusRegistry);
+        MetricsServer server = new NioPrometheusServer((msg, arg) -> {}).buffers(1024, 2).start(prometheusRegistry, 0);
+        int port = server.getAddress().getPort();
+
+        String response;
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write("GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(ISO_8859_1));
+            socket.getOutputStream().flush();
+            assertThat(rendering.await(5, TimeUnit.SECONDS), is(true));
+
+            CompletableFuture<Void> stopping = CompletableFuture.runAsync(() -> server.stop(Duration.ofSeconds(10)));
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+                while (true) {
+                    try (Socket refused = new Socket("localhost", port)) {
+                        Thread.sleep(10);
+                    } catch (ConnectException e) {
+                        return;
+                    }
+                }
+            });
+            stopped.countDown();
+
+            try (InputStream in = socket.getInputStream()) {
+                response = new String(in.readAllBytes(), UTF_8);
+            }
+            stopping.get(5, TimeUnit.SECONDS);
+        }
+
+        assertThat(response.startsWith("HTTP/1.1 200 OK"), is(true));
+        assertThat(response, containsString("app_test_slow 1.0"));
+        assertThat(response, endsWith("\r\n0\r\n\r\n"));
+    }
+
+    private HttpResponse<String> get(int port, String path) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + path)).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private int start(NioPrometheusServer server) {
+        MetricsServer running = server.start(prometheusRegistry, 0);
+        runningServers.add(running);
+        return running.getAddress().getPort();
+    }
+
+}
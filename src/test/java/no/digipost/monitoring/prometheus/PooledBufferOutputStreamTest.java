@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class PooledBufferOutputStreamTest {
+
+    private final BufferPool pool = new BufferPool(8, 1);
+    private final ByteArrayOutputStream target = new ByteArrayOutputStream();
+    private final List<Long> openedWithLength = new ArrayList<>();
+
+    @Test
+    void writes_everything_through_to_underlying_stream() throws IOException {
+        try (PooledBufferOutputStream out = new PooledBufferOutputStream(this::open, pool)) {
+            out.write('a');
+            out.write("bcdefghij".getBytes(UTF_8));
+            out.write("klm".getBytes(UTF_8));
+            out.write("nopqrstuvwxyz".getBytes(UTF_8), 0, 13);
+        }
+        assertThat(target.toString(UTF_8), is("abcdefghijklmnopqrstuvwxyz"));
+        assertThat(openedWithLength, contains(-1L));
+    }
+
+    @Test
+    void opens_target_with_known_length_when_everything_fits_in_buffer() throws IOException {
+        try (PooledBufferOutputStream out = new PooledBufferOutputStream(this::open, pool)) {
+            out.write("abcde".getBytes(UTF_8));
+            out.flush();
+        }
+        assertThat(target.toString(UTF_8), is("abcde"));
+        assertThat(openedWithLength, contains(5L));
+    }
+
+    @Test
+    void returns_buffer_to_pool_when_closed() throws IOException {
+        byte[] buffer = pool.acquire();
+        pool.release(buffer);
+
+        new PooledBufferOutputStream(this::open, pool).close();
+
+        assertThat(pool.acquire(), sameInstance(buffer));
+    }
+
+    private ByteArrayOutputStream open(long knownLength) {
+        openedWithLength.add(knownLength);
+        return target;
+    }
+
+}
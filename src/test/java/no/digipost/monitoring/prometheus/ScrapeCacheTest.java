@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.digipost.monitoring.prometheus.ScrapeCache.RenderedScrape;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static no.digipost.monitoring.prometheus.ContentEncoding.GZIP;
+import static no.digipost.monitoring.prometheus.ContentEncoding.IDENTITY;
+import static no.digipost.monitoring.prometheus.ExpositionFormat.OPENMETRICS_TEXT;
+import static no.digipost.monitoring.prometheus.ExpositionFormat.PROMETHEUS_TEXT;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ScrapeCacheTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final AtomicLong nanoTime = new AtomicLong();
+    private final AtomicInteger renderings = new AtomicInteger();
+    private final ScrapeCache cache = new ScrapeCache(Duration.ofSeconds(2), nanoTime::get, registry);
+
+    @Test
+    void reuses_rendered_scrape_until_it_expires() throws IOException {
+        RenderedScrape first = cache.get(PROMETHEUS_TEXT, IDENTITY, this::render);
+        nanoTime.addAndGet(Duration.ofMillis(1999).toNanos());
+        assertThat(cache.get(PROMETHEUS_TEXT, IDENTITY, this::render), sameInstance(first));
+
+        nanoTime.addAndGet(Duration.ofMillis(1).toNanos());
+        assertThat(new String(cache.get(PROMETHEUS_TEXT, IDENTITY, this::render).body, UTF_8), is("scrape 2"));
+
+        assertThat(renderings.get(), is(2));
+        assertThat(registry.get("app_metrics_scrape_cache").tag("result", "hit").counter().count(), is(1.0));
+        assertThat(registry.get("app_metrics_scrape_cache").tag("result", "miss").counter().count(), is(2.0));
+    }
+
+    @Test
+    void caches_each_format_and_encoding_separately() throws IOException {
+        cache.get(PROMETHEUS_TEXT, IDENTITY, this::render);
+        cache.get(PROMETHEUS_TEXT, GZIP, this::render);
+        cache.get(OPENMETRICS_TEXT, IDENTITY, this::render);
+        cache.get(OPENMETRICS_TEXT, IDENTITY, this::render);
+
+        assertThat(renderings.get(), is(3));
+    }
+
+    @Test
+    void concurrent_requests_share_rendering_in_progress() throws Exception {
+        CountDownLatch renderingStarted = new CountDownLatch(1);
+        CountDownLatch finishRendering = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<RenderedScrape> first = executor.submit(() -> cache.get(PROMETHEUS_TEXT, IDENTITY, () -> {
+                renderingStarted.countDown();
+                awaitRelease(finishRendering);
+                return render();
+            }));
+            renderingStarted.await();
+            Future<RenderedScrape> second = executor.submit(() -> cache.get(PROMETHEUS_TEXT, IDENTITY, this::render));
+            while (registry.get("app_metrics_scrape_cache").tag("result", "hit").counter().count() < 1) {
+                Thread.sleep(1);
+            }
+            nanoTime.addAndGet(Duration.ofMinutes(1).toNanos());
+            finishRendering.countDown();
+
+            assertThat(second.get(5, TimeUnit.SECONDS), sameInstance(first.get(5, TimeUnit.SECONDS)));
+            assertThat(renderings.get(), is(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void does_not_cache_failed_rendering() throws IOException {
+        assertThrows(IOException.class, () -> cache.get(PROMETHEUS_TEXT, IDENTITY, () -> {
+            throw new IOException("failed");
+        }));
+
+        assertThat(new String(cache.get(PROMETHEUS_TEXT, IDENTITY, this::render).body, UTF_8), is("scrape 1"));
+    }
+
+    private static void awaitRelease(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private RenderedScrape render() {
+        return new RenderedScrape(("scrape " + renderings.incrementAndGet()).getBytes(UTF_8), IDENTITY);
+    }
+
+}
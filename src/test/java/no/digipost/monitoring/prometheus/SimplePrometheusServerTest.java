@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.prometheus;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Measurement;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Statistic;
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import no.digipost.monitoring.db.DbStatus;
+import no.digipost.monitoring.db.DbStatusCollector;
+import no.digipost.monitoring.micrometer.RuntimeStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import no.digipost.monitoring.util.VirtualThreads;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.DoubleSupplier;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.endsWith;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static uk.co.probablyfine.matchers.OptionalMatchers.contains;
+import static uk.co.probablyfine.matchers.OptionalMatchers.empty;
+
+class SimplePrometheusServerTest {
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final List<MetricsServer> runningServers = new ArrayList<>();
+    private PrometheusMeterRegistry prometheusRegistry;
+
+    @BeforeEach
+    void setUp() {
+        prometheusRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        IntStream.range(0, 2000).forEach(i -> Counter.builder("app_test_events").tag("index", String.valueOf(i)).register(prometheusRegistry).increment());
+    }
+
+    @AfterEach
+    void stopServers() {
+        runningServers.forEach(server -> server.stop(Duration.ZERO));
+    }
+
+    @Test
+    void serves_complete_scrape_with_content_length() throws Exception {
+        int port = start(new SimplePrometheusServer((msg, arg) -> {}), prometheusRegistry);
+
+        HttpResponse<String> response = get(port, "/metrics");
+
+        assertThat(response.statusCode(), is(200));
+        assertThat(response.body(), is(prometheusRegistry.scrape()));
+        assertThat(response.headers().firstValue("Content-Length"), contains(String.valueOf(response.body().length())));
+        assertThat(response.headers().firstValue("Content-Type"), contains("text/plain; version=0.0.4; charset=utf-8"));
+    }
+
+    @Test
+    void streams_scrape_with_chunked_transfer_encoding() throws Exception {
+        int port = start(new SimplePrometheusServer((msg, arg) -> {}).streamingResponse(1024), prometheusRegistry);
+
+        HttpResponse<String> response = get(port, "/metrics");
+
+        assertThat(response.statusCode(), is(200));
+        assertThat(response.body(), is(prometheusRegistry.scrape()));
+        assertThat(response.body(), containsString("app_test_events_total{index=\"1999\"} 1.0"));
+        assertThat(response.headers().firstValue("Content-Length"), is(empty()));
+        assertThat(response.headers().firstValue("Transfer-Encoding"), contains("chunked"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void sends_no_response_when_scrape_fails(boolean streaming) throws Exception {
+        PrometheusMeterRegistry failingRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        Meter.builder("app_test_failing", Meter.Type.GAUGE, List.of(new Measurement((DoubleSupplier) () -> {
+            throw new IllegalStateException("Unable to collect");
+        }, Statistic.VALUE))).register(failingRegistry);
+        SimplePrometheusServer server = new SimplePrometheusServer((msg, arg) -> {});
+        int port = start(streaming ? server.streamingResponse(1024) : server, failingRegistry);
+
+        assertThrows(IOException.class, () -> get(port, "/metrics"));
+    }
+
+    @Test
+    void compresses_response_with_negotiated_encoding() throws Exception {
+        int port = start(new SimplePrometheusServer((msg, arg) -> {}).compression(), prometheusRegistry);
+
+        HttpResponse<byte[]> gzipped = get(port, "/metrics", "gzip, deflate");
+        assertThat(gzipped.headers().firstValue("Content-Encoding"), contains("gzip"));
+        assertThat(decompress(new GZIPInputStream(new ByteArrayInputStream(gzipped.body()))), containsString("app_test_events_total{index=\"1999\"} 1.0"));
+
+        HttpResponse<byte[]> deflated = get(port, "/metrics", "gzip;q=0.5, deflate");
+        assertThat(deflated.headers().firstValue("Content-Encoding"), contains("deflate"));
+        assertThat(decompress(new InflaterInputStream(new ByteArrayInputStream(deflated.body()))), containsString("app_test_events_total{index=\"1999\"} 1.0"));
+
+        assertThat(prometheusRegistry.scrape(), containsString("app_metrics_scrape_compression_ratio_count{encoding=\"gzip\"} 1"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_metrics_scrape_compression_seconds_count{encoding=\"deflate\"} 1"));
+    }
+
+    @Test
+    void compresses_streamed_response_larger_than_buffer() throws Exception {
+        int port = start(new SimplePrometheusServer((msg, arg) -> {}).streamingResponse(1024).compression(), prometheusRegistry);
+
+        HttpResponse<byte[]> response = get(port, "/metrics", "gzip");
+
+        assertThat(response.headers().firstValue("Content-Encoding"), contains("gzip"));
+        assertThat(decompress(new GZIPInputStream(new ByteArrayInputStream(response.body()))), containsString("app_test_events_total{index=\"1999\"} 1.0"));
+    }
+
+    @Test
+    void does_not_compress_response_below_min_size() throws Exception {
+        int port = start(new SimplePrometheusServer((msg, arg) -> {}).compression(9, Integer.MAX_VALUE), prometheusRegistry);
+
+        HttpResponse<byte[]> response = get(port, "/metrics", "gzip");
+
+        assertThat(response.headers().firstValue("Content-Encoding"), is(empty()));
+        assertThat(new String(response.body(), UTF_8), containsString("app_test_events_total{index=\"1999\"} 1.0"));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "PT0S    | 0",
+            "PT0.01S | 1",
+            "PT1S    | 1",
+            "PT1.5S  | 2",
+            "PT-1S   | 0"})
+    void rounds_stop_grace_period_up_to_whole_seconds(Duration gracePeriod, int expectedSeconds) {
+        assertThat(SimplePrometheusServer.wholeSecondsRoundedUp(gracePeriod), is(expectedSeconds));
+    }
+
+    @Test
+    void rejects_invalid_compression_settings() {
+        SimplePrometheusServer server = new SimplePrometheusServer((msg, arg) -> {});
+
+        assertThrows(IllegalArgumentException.class, () -> server.compression(10, 0));
+        assertThrows(IllegalArgumentException.class, () -> server.compression(6, -1));
+    }
+
+    @Test
+    void serves_openmetrics_when_accepted() throws Exception {
+        int port = start(new SimplePrometheusServer((msg, arg) -> {}).negotiateFormat(), prometheusRegistry);
+
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/metrics"))
+                .header("Accept", "application/openmetrics-text;version=1.0.0,text/plain;version=0.0.4;q=0.5").build(), HttpResponse.BodyHandlers.ofString());
+
+        assertThat(response.headers().firstValue("Content-Type"), contains("application/openmetrics-text; version=1.0.0; charset=utf-8"));
+        assertThat(response.body(), containsString("app_test_events_total{index=\"1999\"} 1.0"));
+        assertThat(response.body(), endsWith("# EOF\n"));
+    }
+
+    @Test
+    void serves_protobuf_when_accepted() throws Exception {
+        int port = start(new SimplePrometheusServer((msg, arg) -> {}).negotiateFormat().streamingResponse(), prometheusRegistry);
+
+        HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/metrics"))
+                .header("Accept", "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.7,text/plain;version=0.0.4;q=0.3").build(), HttpResponse.BodyHandlers.ofByteArray());
+
+        assertThat(response.headers().firstValue("Content-Type"), contains("application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited"));
+        assertThat(new String(response.body(), UTF_8), containsString("app_test_events_total"));
+        assertThat(new String(response.body(), UTF_8), not(containsString("# TYPE")));
+    }
+
+    @Test
+    void ignores_accept_header_unless_negotiating_format() throws Exception {
+        int port = start(new SimplePrometheusServer((msg, arg) -> {}), prometheusRegistry);
+
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/metrics"))
+                .header("Accept", "application/openmetrics-text;version=1.0.0").build(), HttpResponse.BodyHandlers.ofString());
+
+        assertThat(response.headers().firstValue("Content-Type"), contains("text/plain; version=0.0.4; charset=utf-8"));
+        assertThat(response.body(), not(containsString("# EOF")));
+    }
+
+    @Test
+    void serves_cached_scrape_within_time_to_live() throws Exception {
+        Counter counter = Counter.builder("app_test_cached").register(prometheusRegistry);
+        int port = start(new SimplePrometheusServer((msg, arg) -> {}).cacheScrape(Duration.ofMinutes(1)).compression(), prometheusRegistry);
+
+        HttpResponse<String> first = get(port, "/metrics");
+        counter.increment();
+        HttpResponse<String> second = get(port, "/metrics");
+
+        assertThat(second.body(), is(first.body()));
+        assertThat(second.body(), containsString("app_test_cached_total 0.0"));
+        HttpResponse<byte[]> gzipped = get(port, "/metrics", "gzip");
+        assertThat(gzipped.headers().firstValue("Content-Encoding"), contains("gzip"));
+        assertThat(decompress(new GZIPInputStream(new ByteArrayInputStream(gzipped.body()))), containsString("app_test_cached_total 1.0"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_metrics_scrape_cache_total{result=\"hit\"} 1.0"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_metrics_scrape_cache_total{result=\"miss\"} 2.0"));
+    }
+
+    @Test
+    void serves_only_requested_metric_names() throws Exception {
+        Counter.builder("app_test_other").register(prometheusRegistry);
+        Counter.builder("jvm_test_other").register(prometheusRegistry);
+        int port = start(new SimplePrometheusServer((msg, arg) -> {}).cacheScrape(Duration.ofMinutes(1)), prometheusRegistry);
+
+        String byName = get(port, "/metrics?name%5B%5D=app_test_other_total").body();
+        String byPrefix = get(port, "/metrics?name_prefix%5B%5D=jvm_").body();
+
+        assertThat(byName, containsString("app_test_other_total 0.0"));
+        assertThat(byName, not(containsString("app_test_events")));
+        assertThat(byPrefix, containsString("jvm_test_other_total 0.0"));
+        assertThat(byPrefix, not(containsString("app_test")));
+        assertThat(get(port, "/metrics").body(), containsString("app_test_events"));
+    }
+
+    @Test
+    void serves_merged_registries_on_additional_path() throws Exception {
+        PrometheusMeterRegistry tenantA = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        PrometheusMeterRegistry tenantB = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        Counter.builder("app_test_tenant_events").tag("tenant", "a").register(tenantA).increment();
+        Counter.builder("app_test_tenant_events").tag("tenant", "b").register(tenantB).increment(2);
+        int port = start(new SimplePrometheusServer((msg, arg) -> {}).negotiateFormat().streamingResponse(1024)
+                .metricsPath("/metrics/tenants", tenantA, tenantB), prometheusRegistry);
+
+        String merged = get(port, "/metrics/tenants").body();
+        HttpResponse<String> mergedOpenMetrics = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/metrics/tenants"))
+                .header("Accept", "application/openmetrics-text;version=1.0.0").build(), HttpResponse.BodyHandlers.ofString());
+
+        assertThat(merged, containsString("app_test_tenant_events_total{tenant=\"a\"} 1.0"));
+        assertThat(merged, containsString("app_test_tenant_events_total{tenant=\"b\"} 2.0"));
+        assertThat(merged.split("# TYPE app_test_tenant_events_total counter", -1).length, is(2));
+        assertThat(merged, not(containsString("app_test_events")));
+        assertThat(mergedOpenMetrics.body().split("# EOF", -1).length, is(2));
+        assertThat(mergedOpenMetrics.body(), endsWith("# EOF\n"));
+        assertThat(get(port, "/metrics").body(), not(containsString("app_test_tenant_events")));
+    }
+
+    @Test
+    void requires_metrics_path_when_started_without_registry() {
+        assertThrows(IllegalStateException.class, () -> new SimplePrometheusServer((msg, arg) -> {}).start(0));
+        assertThrows(IllegalStateException.class, () -> new SimplePrometheusServer((msg, arg) -> {})
+                .metricsPath("/metrics", prometheusRegistry).start(prometheusRegistry, 0));
+    }
+
+    @Test
+    void records_cost_of_serving_scrapes() throws Exception {
+        int port = start(new SimplePrometheusServer((msg, arg) -> {}).instrumentScrapes().compression(), prometheusRegistry);
+
+        HttpResponse<byte[]> first = get(port, "/metrics", "gzip");
+        String second = get(port, "/metrics").body();
+
+        long samples = second.lines().filter(line -> !line.startsWith("#")).count();
+        assertThat(second, containsString("app_metrics_scrape_seconds_count 1\n"));
+        assertThat(second, containsString("app_metrics_scrape_response_bytes_sum " + first.body().length + ".0"));
+        assertThat(second, containsString("app_metrics_scrape_series " + samples + ".0"));
+        assertThat(second, containsString("app_metrics_scrape_in_flight 1.0"));
+        assertThat(second, containsString("app_metrics_scrape_seconds_bucket{le=\"+Inf\"} 1"));
+    }
+
+    @Test
+    void rejects_scrapes_exceeding_max_concurrent_scrapes() throws Exception {
+        CountDownLatch scraping = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        PrometheusMeterRegistry blockingRegistry = blockingRegistry(scraping, release);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            int port = start(new SimplePrometheusServer((msg, arg) -> {}).executor(executor).maxConcurrentScrapes(1).instrumentScrapes(), blockingRegistry);
+
+            CompletableFuture<HttpResponse<String>> first = client.sendAsync(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/metrics")).build(), HttpResponse.BodyHandlers.ofString());
+            scraping.await(5, TimeUnit.SECONDS);
+            HttpResponse<String> second = get(port, "/metrics");
+            release.countDown();
+
+            assertThat(second.statusCode(), is(503));
+            assertThat(first.get(5, TimeUnit.SECONDS).statusCode(), is(200));
+            assertThat(blockingRegistry.scrape(), containsString("app_metrics_scrape_rejected_total{reason=\"limit\"} 1.0"));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void aborts_scrape_exceeding_request_timeout() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        PrometheusMeterRegistry blockingRegistry = blockingRegistry(new CountDownLatch(1), release);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            int port = start(new SimplePrometheusServer((msg, arg) -> {}).executor(executor).requestTimeout(Duration.ofMillis(200)), blockingRegistry);
+
+            assertThrows(IOException.class, () -> get(port, "/metrics"));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void holds_permit_of_scrape_aborted_by_request_timeout_until_rendered() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        PrometheusMeterRegistry blockingRegistry = blockingRegistry(new CountDownLatch(1), release);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            int port = start(new SimplePrometheusServer((msg, arg) -> {})
+                    .executor(executor).maxConcurrentScrapes(1).requestTimeout(Duration.ofMillis(200)).instrumentScrapes(), blockingRegistry);
+            try {
+                get(port, "/metrics");
+            } catch (IOException abortedByTimeout) {
+            }
+
+            assertThat("rejected while the aborted scrape is rendering", get(port, "/metrics").statusCode(), is(503));
+            release.countDown();
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            int status;
+            do {
+                status = get(port, "/metrics").statusCode();
+            } while (status != 200 && System.nanoTime() < deadline);
+            assertThat(status, is(200));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void stopped_server_does_not_accept_requests() throws Exception {
+        MetricsServer server = new SimplePrometheusServer((msg, arg) -> {}).start(prometheusRegistry, 0);
+        int port = server.getAddress().getPort();
+        assertThat(get(port, "/metrics").statusCode(), is(200));
+
+        server.close();
+
+        assertThrows(IOException.class, () -> get(port, "/metrics"));
+    }
+
+    @Test
+    void answers_health_probes_from_runtime_status_and_database_checks() throws Exception {
+        RuntimeStatus runtimeStatus = new RuntimeStatus();
+        AtomicReference<DbStatus> dbStatus = new AtomicReference<>(DbStatus.OK);
+        Semaphore dbChecks = new Semaphore(0);
+        DbStatusCollector database = new DbStatusCollector() {
+            @Override
+            public DbStatus check() {
+                dbChecks.release();
+                return dbStatus.get();
+            }
+
+            @Override
+            public String type() {
+                return "primary";
+            }
+        };
+        int port = start(new SimplePrometheusServer((msg, arg) -> {}).healthEndpoints(runtimeStatus, Duration.ofMillis(10), database), prometheusRegistry);
+        dbChecks.tryAcquire(5, TimeUnit.SECONDS);
+
+        assertThat(get(port, "/health/live").statusCode(), is(200));
+        assertThat(get(port, "/health/ready").statusCode(), is(503));
+
+        runtimeStatus.set(RuntimeStatus.State.ONLINE);
+        HttpResponse<String> ready = get(port, "/health/ready");
+        assertThat(ready.statusCode(), is(200));
+        assertThat(ready.body(), is("ONLINE\ndatabase primary: OK\n"));
+
+        dbStatus.set(DbStatus.ERROR);
+        dbChecks.drainPermits();
+        dbChecks.tryAcquire(2, 5, TimeUnit.SECONDS);
+        assertThat(get(port, "/health/ready").statusCode(), is(503));
+
+        runtimeStatus.set(RuntimeStatus.State.OFFLINE);
+        assertThat(get(port, "/health/live").statusCode(), is(503));
+    }
+
+    @Test
+    void answers_health_probes_while_scrape_is_in_progress() throws Exception {
+        CountDownLatch scraping = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RuntimeStatus runtimeStatus = new RuntimeStatus();
+        runtimeStatus.set(RuntimeStatus.State.ONLINE);
+        try {
+            int port = start(new SimplePrometheusServer((msg, arg) -> {}).healthEndpoints(runtimeStatus), blockingRegistry(scraping, release));
+
+            CompletableFuture<HttpResponse<String>> scrape = client.sendAsync(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/metrics")).build(), HttpResponse.BodyHandlers.ofString());
+            scraping.await(5, TimeUnit.SECONDS);
+
+            assertThat(get(port, "/health/ready").statusCode(), is(200));
+            assertThat(scrape.isDone(), is(false));
+            release.countDown();
+            assertThat(scrape.get(5, TimeUnit.SECONDS).statusCode(), is(200));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    void handles_requests_on_virtual_threads_when_available() throws Exception {
+        if (VirtualThreads.isAvailable()) {
+            int port = start(new SimplePrometheusServer((msg, arg) -> {}).virtualThreads(), prometheusRegistry);
+            assertThat(get(port, "/metrics").statusCode(), is(200));
+        } else {
+            assertThrows(UnsupportedOperationException.class, () -> new SimplePrometheusServer((msg, arg) -> {}).virtualThreads());
+        }
+    }
+
+    private static PrometheusMeterRegistry blockingRegistry(CountDownLatch scraping, CountDownLatch release) {
+        PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        Gauge.builder("app_test_blocking", () -> {
+            scraping.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 1;
+        }).register(registry);
+        return registry;
+    }
+
+    private HttpResponse<String> get(int port, String path) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + path)).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<byte[]> get(int port, String path, String acceptEncoding) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path)).header("Accept-Encoding", acceptEncoding).build();
+        return client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private static String decompress(InputStream compressed) throws IOException {
+        try (InputStream in = compressed) {
+            return new String(in.readAllBytes(), UTF_8);
+        }
+    }
+
+    private int start(SimplePrometheusServer server, PrometheusMeterRegistry registry) {
+        MetricsServer running = server.start(registry, 0);
+        runningServers.add(running);
+        return running.getAddress().getPort();
+    }
+
+}
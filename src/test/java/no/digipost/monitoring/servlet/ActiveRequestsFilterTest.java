@@ -17,19 +17,60 @@ package no.digipost.monitoring.servlet;
 
 import io.micrometer.prometheusmetrics.PrometheusConfig;
 import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
-import no.digipost.monitoring.servlet.ActiveRequestsFilter.RequestMetaInfo;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.junit.jupiter.api.BeforeEach;
+import no.digipost.monitoring.servlet.ActiveRequestsFilter.LongRunningRequest;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.mockito.ArgumentCaptor;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.time.Duration.ofSeconds;
 import static java.util.Collections.singletonList;
 import static no.digipost.monitoring.servlet.ActiveRequestsFilter.Config.forMaxThreads;
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
 
 class ActiveRequestsFilterTest {
 
@@ -77,8 +118,387 @@ class ActiveRequestsFilterTest {
         assertLongRunning("1.0");
     }
 
-    private void simulateRequest(String path, Instant requestReceived) {
-        unit.activeRequests.put(UUID.randomUUID(), new RequestMetaInfo(path, "GET", requestReceived));
+    @Test
+    void test_lock_free_tracking() {
+        unit = new ActiveRequestsFilter(prometheusRegistry, forMaxThreads(10)
+                .longRunningThreshold(LONG_RUNNING_THRESHOLD)
+                .longRunningExclusions(singletonList(r -> r.path.equals("/hello")))
+                .lockFreeTracking());
+
+        simulateRequest("/hello", Instant.now().minus(LONG_RUNNING_THRESHOLD).minus(ofSeconds(1)));
+        simulateRequest("/another", Instant.now().minus(LONG_RUNNING_THRESHOLD).minus(ofSeconds(1)));
+        long ended = simulateRequest("/another", Instant.now());
+        simulateRequest("/another", Instant.now());
+        unit.tracker.end(ended);
+
+        assertActive("3.0");
+        assertLongRunning("1.0");
+    }
+
+    @Test
+    void test_lock_free_tracking_beyond_capacity() {
+        unit = new ActiveRequestsFilter(prometheusRegistry, forMaxThreads(10).longRunningThreshold(LONG_RUNNING_THRESHOLD).lockFreeTracking(2));
+
+        simulateRequest("/hello", Instant.now().minus(LONG_RUNNING_THRESHOLD).minus(ofSeconds(1)));
+        simulateRequest("/hello", Instant.now());
+        long untracked = simulateRequest("/hello", Instant.now().minus(LONG_RUNNING_THRESHOLD).minus(ofSeconds(1)));
+
+        assertActive("3.0");
+        assertLongRunning("1.0");
+
+        unit.tracker.end(untracked);
+        assertActive("2.0");
+    }
+
+    @Test
+    void tracks_request_while_in_filter_chain() throws Exception {
+        unit = new ActiveRequestsFilter(prometheusRegistry, forMaxThreads(10).lockFreeTracking());
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getRequestURI()).thenReturn("/hello");
+        when(request.getMethod()).thenReturn("GET");
+
+        unit.doFilter(request, mock(ServletResponse.class), (req, res) -> assertActive("1.0"));
+
+        assertActive("0.0");
+    }
+
+    @Test
+    void records_route_metrics_with_collapsed_ids() throws Exception {
+        unit = new ActiveRequestsFilter(prometheusRegistry, forMaxThreads(10).routeMetrics());
+
+        unit.doFilter(request("POST", "/api/doc/123"), mock(ServletResponse.class), (req, res) ->
+                assertThat(prometheusRegistry.scrape(), containsString("app_http_requests_route_active{method=\"POST\",route=\"/api/doc/{id}\"} 1.0")));
+        unit.doFilter(request("POST", "/api/doc/456"), mock(ServletResponse.class), (req, res) -> {});
+
+        String scrape = prometheusRegistry.scrape();
+        assertThat(scrape, containsString("app_http_requests_route_active{method=\"POST\",route=\"/api/doc/{id}\"} 0.0"));
+        assertThat(scrape, containsString("app_http_requests_route_seconds_count{method=\"POST\",route=\"/api/doc/{id}\"} 2\n"));
+    }
+
+    @Test
+    void records_routes_beyond_max_as_other() throws Exception {
+        unit = new ActiveRequestsFilter(prometheusRegistry, forMaxThreads(10).routeMetrics(RouteNormalizer.collapsingIds(), 2));
+
+        for (String path : new String[] {"/a", "/b", "/c", "/d", "/a"}) {
+            unit.doFilter(request("GET", path), mock(ServletResponse.class), (req, res) -> {});
+        }
+
+        String scrape = prometheusRegistry.scrape();
+        assertThat(unit.routes.routes(), is(2));
+        assertThat(scrape, containsString("app_http_requests_route_seconds_count{method=\"GET\",route=\"/a\"} 2\n"));
+        assertThat(scrape, containsString("app_http_requests_route_seconds_count{method=\"GET\",route=\"OTHER\"} 2\n"));
+    }
+
+    @Test
+    void concurrent_new_routes_never_exceed_max() throws Exception {
+        unit = new ActiveRequestsFilter(prometheusRegistry, forMaxThreads(10).routeMetrics(RouteNormalizer.collapsingIds(), 10));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> registered = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                int offset = thread;
+                registered.add(executor.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        unit.routes.meters("/scan/" + offset + "-" + i, "GET");
+                    }
+                }));
+            }
+            for (Future<?> future : registered) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(unit.routes.routes(), is(10));
+        assertThat(unit.routes.meters("/scan/new", "GET"), sameInstance(unit.routes.meters("/scan/other", "GET")));
+    }
+
+    @Test
+    void caches_route_meters() {
+        unit = new ActiveRequestsFilter(prometheusRegistry, forMaxThreads(10).routeMetrics());
+
+        assertThat(unit.routes.meters("/api/doc/1", "GET"), sameInstance(unit.routes.meters("/api/doc/2", "GET")));
+        assertThat(unit.routes.meters("/api/doc/1", "BREW"), sameInstance(unit.routes.meters("/api/doc/1", "PROPFIND")));
+    }
+
+    @Test
+    void tracks_async_request_until_completed() throws Exception {
+        unit = new ActiveRequestsFilter(prometheusRegistry, forMaxThreads(10).lockFreeTracking().routeMetrics());
+        HttpServletRequest request = request("GET", "/async");
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(request.isAsyncStarted()).thenReturn(true);
+        when(request.getAsyncContext()).thenReturn(asyncContext);
+
+        unit.doFilter(request, mock(ServletResponse.class), (req, res) -> {});
+
+        assertActive("1.0");
+        assertThat(prometheusRegistry.scrape(), containsString("app_http_requests_async_active 1.0"));
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+
+        listener.getValue().onTimeout(new AsyncEvent(asyncContext));
+        listener.getValue().onComplete(new AsyncEvent(asyncContext));
+
+        assertActive("0.0");
+        String scrape = prometheusRegistry.scrape();
+        assertThat(scrape, containsString("app_http_requests_async_active 0.0"));
+        assertThat(scrape, containsString("app_http_requests_route_seconds_count{method=\"GET\",route=\"/async\"} 1\n"));
+    }
+
+    @Test
+    void does_not_track_async_dispatch_again() throws Exception {
+        unit = new ActiveRequestsFilter(prometheusRegistry, forMaxThreads(10));
+        HttpServletRequest request = request("GET", "/async");
+        when(request.getDispatcherType()).thenReturn(DispatcherType.ASYNC);
+
+        unit.doFilter(request, mock(ServletResponse.class), (req, res) -> assertActive("0.0"));
+    }
+
+    @Test
+    void records_saturation_and_queueing_delay() throws Exception {
+        unit = new ActiveRequestsFilter(prometheusRegistry, forMaxThreads(10).saturationMetrics().queueingDelayFromHeader("X-Request-Start"));
+        HttpServletRequest request = request("GET", "/hello");
+        when(request.getHeader("X-Request-Start")).thenReturn("t=" + (System.currentTimeMillis() - 2000));
+
+        unit.doFilter(request, mock(ServletResponse.class), (req, res) -> {});
+
+        String scrape = prometheusRegistry.scrape();
+        assertThat(scrape, containsString("app_http_requests_highwater 1.0"));
+        assertThat(scrape, containsString("app_http_requests_busy_seconds_total "));
+        assertThat(scrape, containsString("app_http_requests_queueing_seconds_count 1\n"));
+        assertThat(scrape, containsString("app_http_requests_queueing_seconds_bucket{le=\"1.789569706\"} 0\n"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void dumps_long_running_requests_with_stack_samples(boolean lockFree) {
+        ActiveRequestsFilter.Config config = forMaxThreads(10).longRunningThreshold(LONG_RUNNING_THRESHOLD)
+                .captureThreads().longRunningRequestsDump(10, 5, Duration.ofMinutes(1));
+        unit = new ActiveRequestsFilter(prometheusRegistry, lockFree ? config.lockFreeTracking() : config);
+
+        simulateRequest("/slow", Instant.now().minus(LONG_RUNNING_THRESHOLD).minus(ofSeconds(1)));
+        simulateRequest("/fast", Instant.now());
+
+        List<LongRunningRequest> requests = unit.longRunningRequests();
+        assertThat(requests, hasSize(1));
+        LongRunningRequest request = requests.get(0);
+        assertThat(request.path, is("/slow"));
+        assertThat(request.age, greaterThan(LONG_RUNNING_THRESHOLD));
+        assertThat(request.threadName, is(Thread.currentThread().getName()));
+        assertThat(request.stackTrace, hasSize(5));
+        assertThat(request.toString(), containsString("GET /slow on \"" + Thread.currentThread().getName() + "\"\n\tat "));
+
+        simulateRequest("/slow", Instant.now().minus(LONG_RUNNING_THRESHOLD).minus(ofSeconds(1)));
+        assertThat("dumped within min interval", unit.longRunningRequests(), sameInstance(requests));
+    }
+
+    @Test
+    void dumps_long_running_requests_without_stack_if_threads_not_captured() {
+        unit = new ActiveRequestsFilter(prometheusRegistry, forMaxThreads(10).longRunningThreshold(LONG_RUNNING_THRESHOLD));
+
+        simulateRequest("/slow", Instant.now().minus(LONG_RUNNING_THRESHOLD).minus(ofSeconds(1)));
+
+        LongRunningRequest request = unit.longRunningRequests().get(0);
+        assertThat(request.threadName, nullValue());
+        assertThat(request.stackTrace, empty());
+    }
+
+    @Test
+    void sheds_requests_over_concurrency_limit() throws Exception {
+        unit = new ActiveRequestsFilter(prometheusRegistry, forMaxThreads(10).loadShedding(ConcurrencyLimit.fixed(1), 429));
+        HttpServletResponse rejected = mock(HttpServletResponse.class);
+        FilterChain chain = mock(FilterChain.class);
+
+        unit.doFilter(request("GET", "/first"), mock(HttpServletResponse.class), (req, res) ->
+                unit.doFilter(request("GET", "/second"), rejected, chain));
+
+        verify(rejected).setStatus(429);
+        verifyNoInteractions(chain);
+        String scrape = prometheusRegistry.scrape();
+        assertThat(scrape, containsString("app_http_requests_shed_total 1.0"));
+        assertThat(scrape, containsString("app_http_requests_limit 1.0"));
+
+        unit.doFilter(request("GET", "/third"), mock(HttpServletResponse.class), chain);
+        verify(chain).doFilter(any(), any());
+    }
+
+    @Test
+    void releases_concurrency_limit_permit_when_tracking_fails() throws Exception {
+        RouteNormalizer failing = path -> { throw new IllegalStateException("unable to normalize " + path); };
+        unit = new ActiveRequestsFilter(prometheusRegistry, forMaxThreads(10)
+                .routeMetrics(failing, 10).saturationMetrics().loadShedding(ConcurrencyLimit.fixed(1), 429));
+        FilterChain chain = mock(FilterChain.class);
+
+        for (int i = 0; i < 3; i++) {
+            assertThrows(IllegalStateException.class, () -> unit.doFilter(request("GET", "/hello"), mock(HttpServletResponse.class), chain));
+        }
+
+        verifyNoInteractions(chain);
+        assertActive("0.0");
+        String scrape = prometheusRegistry.scrape();
+        assertThat(scrape, containsString("app_http_requests_shed_total 0.0"));
+        assertThat(scrape, containsString("app_http_requests_highwater 0.0"));
+    }
+
+    @Test
+    void records_body_sizes_per_route() throws Exception {
+        unit = new ActiveRequestsFilter(prometheusRegistry, forMaxThreads(10).bodySizeMetrics());
+        HttpServletRequest request = request("PUT", "/api/doc/123");
+        when(request.getInputStream()).thenReturn(servletInputStream(new byte[1000]));
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(servletOutputStream(responseBody));
+
+        unit.doFilter(request, response, (req, res) -> {
+            assertThat(req.getInputStream().readAllBytes().length, is(1000));
+            res.getOutputStream().write(new byte[300], 0, 250);
+            res.getOutputStream().write('x');
+        });
+
+        String scrape = prometheusRegistry.scrape();
+        assertThat(responseBody.size(), is(251));
+        assertThat(scrape, containsString("app_http_requests_route_request_size_bytes_sum{method=\"PUT\",route=\"/api/doc/{id}\"} 1000.0"));
+        assertThat(scrape, containsString("app_http_requests_route_response_size_bytes_sum{method=\"PUT\",route=\"/api/doc/{id}\"} 251.0"));
+    }
+
+    @Test
+    void records_content_length_and_characters_when_using_reader_and_writer() throws Exception {
+        unit = new ActiveRequestsFilter(prometheusRegistry, forMaxThreads(10).bodySizeMetrics());
+        HttpServletRequest request = request("POST", "/text");
+        when(request.getContentLengthLong()).thenReturn(42L);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        StringWriter responseBody = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(responseBody));
+
+        unit.doFilter(request, response, (req, res) -> {
+            res.getWriter().print("hello");
+            res.getWriter().write('!');
+            res.getWriter().flush();
+        });
+
+        String scrape = prometheusRegistry.scrape();
+        assertThat(responseBody.toString(), is("hello!"));
+        assertThat(scrape, containsString("app_http_requests_route_request_size_bytes_sum{method=\"POST\",route=\"/text\"} 42.0"));
+        assertThat(scrape, containsString("app_http_requests_route_response_size_bytes_sum{method=\"POST\",route=\"/text\"} 6.0"));
+    }
+
+    @Test
+    void counts_line_separators_and_utf8_bytes_written_through_writer() throws Exception {
+        unit = new ActiveRequestsFilter(prometheusRegistry, forMaxThreads(10).bodySizeMetrics());
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        StringWriter responseBody = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(responseBody));
+        when(response.getCharacterEncoding()).thenReturn("utf-8");
+
+        unit.doFilter(request("GET", "/text"), response, (req, res) -> {
+            res.getWriter().println("bl\u00e5b\u00e6r");
+            res.getWriter().print("\u20ac\ud83d\ude00".toCharArray());
+            res.getWriter().flush();
+        });
+
+        long expectedBytes = responseBody.toString().getBytes(UTF_8).length;
+        assertThat(expectedBytes, is(6L + 2 + System.lineSeparator().length() + 3 + 4));
+        assertThat(prometheusRegistry.scrape(), containsString(
+                "app_http_requests_route_response_size_bytes_sum{method=\"GET\",route=\"/text\"} " + (double) expectedBytes));
+    }
+
+    private static ServletInputStream servletInputStream(byte[] body) {
+        ByteArrayInputStream in = new ByteArrayInputStream(body);
+        return new ServletInputStream() {
+            @Override
+            public int read() {
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return in.read(b, off, len);
+            }
+
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+            }
+        };
+    }
+
+    private static ServletOutputStream servletOutputStream(OutputStream out) {
+        return new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        };
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void uses_injected_clock(boolean lockFree) throws Exception {
+        AtomicLong nanoTime = new AtomicLong(1_000_000_000L);
+        AtomicLong epochMillis = new AtomicLong(1_700_000_000_000L);
+        RequestClock clock = new RequestClock() {
+            @Override
+            public long nanoTime() {
+                return nanoTime.get();
+            }
+
+            @Override
+            public long epochMillis() {
+                return epochMillis.get();
+            }
+        };
+        ActiveRequestsFilter.Config config = forMaxThreads(10).longRunningThreshold(LONG_RUNNING_THRESHOLD).routeMetrics().clock(clock);
+        unit = new ActiveRequestsFilter(prometheusRegistry, lockFree ? config.lockFreeTracking() : config);
+
+        unit.doFilter(request("GET", "/slow"), mock(ServletResponse.class), (req, res) -> {
+            Duration elapsed = LONG_RUNNING_THRESHOLD.plusSeconds(1);
+            nanoTime.addAndGet(elapsed.toNanos());
+            epochMillis.addAndGet(elapsed.toMillis());
+            assertLongRunning("1.0");
+        });
+
+        assertLongRunning("0.0");
+        assertThat(prometheusRegistry.scrape(), containsString("app_http_requests_route_seconds_sum{method=\"GET\",route=\"/slow\"} 61.0\n"));
+    }
+
+    @Test
+    void coarse_clock_follows_system_clock() throws InterruptedException {
+        RequestClock clock = RequestClock.coarse();
+        long nanoTime = clock.nanoTime();
+        Thread.sleep(20);
+
+        assertThat(clock.nanoTime() - nanoTime, greaterThan(Duration.ofMillis(10).toNanos()));
+        assertThat(Math.abs(clock.epochMillis() - System.currentTimeMillis()), lessThan(1000L));
+    }
+
+    private static HttpServletRequest request(String method, String path) {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getRequestURI()).thenReturn(path);
+        when(request.getMethod()).thenReturn(method);
+        return request;
+    }
+
+    private long simulateRequest(String path, Instant requestReceived) {
+        return unit.tracker.start(path, "GET", System.nanoTime() - Duration.between(requestReceived, Instant.now()).toNanos());
     }
 
     private void assertActive(String value) {
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ConcurrencyLimitTest {
+
+    private static final long FAST = Duration.ofMillis(10).toNanos();
+    private static final long SLOW = Duration.ofMillis(200).toNanos();
+
+    @Test
+    void fixed_limit_never_changes() {
+        ConcurrencyLimit limit = ConcurrencyLimit.fixed(5);
+        limit.onSample(SLOW, 5);
+        assertThat(limit.current(), is(5));
+    }
+
+    @Test
+    void aimd_increases_additively_when_used_and_fast_and_decreases_multiplicatively_when_slow() {
+        ConcurrencyLimit limit = ConcurrencyLimit.aimd(20, 5, 22, Duration.ofMillis(100));
+
+        limit.onSample(FAST, 2);
+        assertThat("not increased when mostly unused", limit.current(), is(20));
+        limit.onSample(FAST, 15);
+        assertThat(limit.current(), is(21));
+        limit.onSample(FAST, 15);
+        limit.onSample(FAST, 15);
+        assertThat("capped at max", limit.current(), is(22));
+
+        limit.onSample(SLOW, 1);
+        assertThat(limit.current(), is(19));
+        for (int i = 0; i < 20; i++) {
+            limit.onSample(SLOW, 1);
+        }
+        assertThat("capped at min", limit.current(), is(5));
+    }
+
+    @Test
+    void gradient_decreases_when_latency_increases_and_grows_when_stable() {
+        ConcurrencyLimit limit = ConcurrencyLimit.gradient(20, 5, 100);
+        for (int i = 0; i < 50; i++) {
+            limit.onSample(FAST, limit.current());
+        }
+        int grown = limit.current();
+        assertThat(grown, greaterThan(20));
+
+        for (int i = 0; i < 20; i++) {
+            limit.onSample(SLOW, limit.current());
+        }
+        assertThat(limit.current(), allOf(lessThan(grown / 2), greaterThan(4)));
+    }
+
+    @Test
+    void gradient_does_not_grow_when_limit_is_not_used() {
+        ConcurrencyLimit limit = ConcurrencyLimit.gradient(20, 5, 100);
+        for (int i = 0; i < 50; i++) {
+            limit.onSample(FAST, 1);
+        }
+        assertThat(limit.current(), lessThanOrEqualTo(20));
+    }
+
+    @Test
+    void gradient_stays_within_bounds_when_sampled_concurrently() throws Exception {
+        ConcurrencyLimit limit = ConcurrencyLimit.gradient(20, 5, 100);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> samplers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                long latency = t % 2 == 0 ? FAST : SLOW;
+                samplers.add(executor.submit(() -> {
+                    for (int i = 0; i < 10_000; i++) {
+                        limit.onSample(latency, limit.current());
+                    }
+                }));
+            }
+            for (Future<?> sampler : samplers) {
+                sampler.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(limit.current(), allOf(greaterThan(4), lessThanOrEqualTo(100)));
+    }
+
+    @Test
+    void rejects_invalid_limits() {
+        assertThrows(IllegalArgumentException.class, () -> ConcurrencyLimit.fixed(0));
+        assertThrows(IllegalArgumentException.class, () -> ConcurrencyLimit.gradient(10, 20, 30));
+        assertThrows(IllegalArgumentException.class, () -> ConcurrencyLimit.aimd(40, 20, 30, Duration.ofSeconds(1)));
+        assertThrows(IllegalArgumentException.class, () -> ConcurrencyLimit.aimd(20, 10, 30, Duration.ZERO));
+        assertThrows(IllegalArgumentException.class, () -> ConcurrencyLimit.aimd(20, 10, 30, Duration.ofMillis(-1)));
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class IdCollapsingRouteNormalizerTest {
+
+    private final RouteNormalizer normalizer = RouteNormalizer.collapsingIds();
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "/api/doc/123                                     | /api/doc/{id}",
+            "/api/doc/123/                                    | /api/doc/{id}/",
+            "/api/doc/123/pages/4                             | /api/doc/{id}/pages/{id}",
+            "/api/doc/3f2a9c1e-8b4d-4e6f-9a0b-1c2d3e4f5a6b    | /api/doc/{id}",
+            "/api/doc/deadbeef01                              | /api/doc/{id}",
+            "/api/token/aZ3_kq9PzLmW-x7Yt2                    | /api/token/{id}",
+            "/api/doc/123;jsessionid=abc                      | /api/doc/{id}",
+            "/api/doc;jsessionid=abc                          | /api/doc",
+            "/api/v2/documents                                | /api/v2/documents",
+            "/api/decade                                      | /api/decade",
+            "/api/defaced                                     | /api/defaced",
+            "/                                                | /",
+    })
+    void collapses_ids(String path, String route) {
+        assertThat(normalizer.normalize(path), is(route));
+    }
+
+    @Test
+    void returns_same_path_when_nothing_collapsed() {
+        String path = "/api/documents/recent";
+        assertThat(normalizer.normalize(path), sameInstance(path));
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class LongRunningWheelTest {
+
+    private static final long THRESHOLD = SECONDS.toNanos(60);
+
+    private final AtomicLongArray starts = new AtomicLongArray(128);
+    private int excludedSlot = -1;
+    private int exclusionsEvaluated;
+
+    private final LongRunningWheel.Slots slots = new LongRunningWheel.Slots() {
+        @Override
+        public long start(int slot) {
+            return starts.get(slot);
+        }
+
+        @Override
+        public boolean excluded(int slot, long start, long nowNanos) {
+            exclusionsEvaluated++;
+            return slot == excludedSlot;
+        }
+    };
+
+    {
+        for (int i = 0; i < starts.length(); i++) {
+            starts.set(i, LongRunningWheel.NOT_STARTED);
+        }
+    }
+
+    @Test
+    void promotes_requests_older_than_threshold() {
+        long now = 1_000 * THRESHOLD;
+        LongRunningWheel wheel = new LongRunningWheel(starts.length(), THRESHOLD, now, slots);
+        int first = start(wheel, 1, now);
+        start(wheel, 70, now + SECONDS.toNanos(10));
+        int excluded = start(wheel, 127, now);
+        excludedSlot = 127;
+
+        assertThat(wheel.longRunning(now + THRESHOLD - 1), is(0));
+        assertThat(wheel.longRunning(now + THRESHOLD), is(1));
+        assertThat(wheel.longRunning(now + THRESHOLD + SECONDS.toNanos(10)), is(2));
+
+        end(wheel, 1, first);
+        end(wheel, 127, excluded);
+        assertThat(wheel.longRunning(now + 2 * THRESHOLD), is(1));
+        assertThat(exclusionsEvaluated, is(3));
+    }
+
+    @Test
+    void does_not_promote_ended_requests() {
+        long now = 0;
+        LongRunningWheel wheel = new LongRunningWheel(starts.length(), THRESHOLD, now, slots);
+        for (int i = 0; i < 1000; i++) {
+            end(wheel, 5, start(wheel, 5, now + i));
+        }
+
+        assertThat(wheel.longRunning(now + 10 * THRESHOLD), is(0));
+        assertThat(exclusionsEvaluated, is(0));
+    }
+
+    @Test
+    void promotes_requests_which_started_before_the_previous_read() {
+        long now = -5 * THRESHOLD;
+        LongRunningWheel wheel = new LongRunningWheel(starts.length(), THRESHOLD, now, slots);
+        assertThat(wheel.longRunning(now), is(0));
+
+        start(wheel, 3, now - 2 * THRESHOLD);
+
+        assertThat(wheel.longRunning(now), is(1));
+        assertThat(wheel.longRunning(now + 100 * THRESHOLD), is(1));
+    }
+
+    private int start(LongRunningWheel wheel, int slot, long startNanos) {
+        starts.set(slot, startNanos);
+        return wheel.schedule(slot, startNanos);
+    }
+
+    private void end(LongRunningWheel wheel, int slot, int bucket) {
+        starts.set(slot, LongRunningWheel.NOT_STARTED);
+        wheel.cancel(slot, bucket);
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import no.digipost.monitoring.servlet.ActiveRequestsFilter.RequestMetaInfo;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+class MapRequestTrackerTest {
+
+    private static final long THRESHOLD = Duration.ofSeconds(10).toNanos();
+
+    @Test
+    void counts_long_running_relative_to_given_time_without_reading_clock() {
+        RequestClock clock = mock(RequestClock.class);
+        MapRequestTracker tracker = new MapRequestTracker(Duration.ofNanos(THRESHOLD), emptyList(), false, clock);
+
+        tracker.start("/slow", "GET", 1_000);
+        long fast = tracker.start("/fast", "GET", 5_000);
+
+        assertThat(tracker.longRunning(1_000 + THRESHOLD), is(0));
+        assertThat(tracker.longRunning(1_001 + THRESHOLD), is(1));
+        assertThat(tracker.longRunning(5_001 + THRESHOLD), is(2));
+        tracker.end(fast);
+        List<Long> ages = new ArrayList<>();
+        tracker.forEachLongRunning(5_001 + THRESHOLD, 10, (path, method, ageNanos, thread) -> ages.add(ageNanos));
+        assertThat(ages, is(singletonList(4_001 + THRESHOLD)));
+        verifyNoInteractions(clock);
+    }
+
+    @Test
+    void evaluates_exclusions_only_for_long_running_requests() {
+        List<String> evaluated = new ArrayList<>();
+        Predicate<RequestMetaInfo> excludeHealth = m -> evaluated.add(m.path) && m.path.equals("/health");
+        MapRequestTracker tracker = new MapRequestTracker(Duration.ofNanos(THRESHOLD), singletonList(excludeHealth), false, RequestClock.system());
+
+        tracker.start("/health", "GET", 0);
+        tracker.start("/slow", "GET", 0);
+        tracker.start("/fast", "GET", THRESHOLD);
+
+        assertThat(tracker.longRunning(THRESHOLD + 1), is(1));
+        assertThat(evaluated.size(), is(2));
+    }
+
+}
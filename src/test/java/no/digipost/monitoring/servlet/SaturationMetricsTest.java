@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static no.digipost.monitoring.servlet.SaturationMetrics.QueueingDelay.toEpochMillis;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class SaturationMetricsTest {
+
+    private final AtomicLong nanoTime = new AtomicLong(1_000);
+    private final SaturationMetrics saturation = new SaturationMetrics(new SimpleMeterRegistry(), nanoTime::get);
+
+    @Test
+    void busy_time_is_active_requests_integrated_over_time_and_not_reset_by_reads() {
+        saturation.started(1_000);
+        saturation.started(1_000);
+        saturation.ended(1_500);
+        nanoTime.set(2_000);
+
+        assertThat(saturation.busySeconds(), is((2 * 500 + 500) / 1e9));
+        assertThat(saturation.busySeconds(), is((2 * 500 + 500) / 1e9));
+
+        saturation.ended(2_500);
+        nanoTime.set(3_000);
+        assertThat(saturation.busySeconds(), is((2 * 500 + 1000) / 1e9));
+    }
+
+    @Test
+    void high_water_is_max_active_within_window_and_not_reset_by_reads() {
+        saturation.started(1_000);
+        saturation.started(1_000);
+        saturation.started(1_000);
+        saturation.ended(1_100);
+        saturation.ended(1_100);
+
+        assertThat(saturation.highWater(), is(3.0));
+        assertThat(saturation.highWater(), is(3.0));
+
+        nanoTime.addAndGet(Duration.ofMinutes(1).toNanos());
+        assertThat("still active", saturation.highWater(), is(1.0));
+        saturation.ended(nanoTime.get());
+        assertThat(saturation.highWater(), is(0.0));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "1700000000123           | 1700000000123",
+            "t=1700000000123         | 1700000000123",
+            "t=1700000000.123        | 1700000000123",
+            "1700000000              | 1700000000000",
+            "t=1700000000123456      | 1700000000123",
+            "1700000000123456789     | 1700000000123",
+            "t=                      | -1",
+            "yesterday               | -1",
+            "-5                      | -1",
+    })
+    void parses_time_request_was_accepted(String value, long epochMillis) {
+        assertThat(toEpochMillis(value), is(epochMillis));
+    }
+
+    @Test
+    void accepts_instant_and_number_attributes() {
+        assertThat(toEpochMillis(Instant.ofEpochMilli(1700000000123L)), is(1700000000123L));
+        assertThat(toEpochMillis(1700000000123L), is(1700000000123L));
+        assertThat(toEpochMillis(null), is(-1L));
+    }
+
+}
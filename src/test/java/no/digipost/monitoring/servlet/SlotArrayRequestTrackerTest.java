@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.servlet;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.util.Collections.emptyList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class SlotArrayRequestTrackerTest {
+
+    @Test
+    void rounds_capacity_up_to_power_of_two() {
+        assertThat(new SlotArrayRequestTracker(1, Duration.ofMinutes(1), emptyList(), false, RequestClock.system()).capacity(), is(1));
+        assertThat(new SlotArrayRequestTracker(64, Duration.ofMinutes(1), emptyList(), false, RequestClock.system()).capacity(), is(64));
+        assertThat(new SlotArrayRequestTracker(100, Duration.ofMinutes(1), emptyList(), false, RequestClock.system()).capacity(), is(128));
+    }
+
+    @Test
+    void counts_nothing_when_concurrent_requests_have_ended() throws Exception {
+        SlotArrayRequestTracker tracker = new SlotArrayRequestTracker(16, Duration.ofNanos(1000), emptyList(), false, RequestClock.system());
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(9);
+        try {
+            Future<?> reader = executor.submit(() -> {
+                while (running.get()) {
+                    tracker.longRunning(System.nanoTime());
+                }
+            });
+            List<Future<?>> requests = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                requests.add(executor.submit(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        long handle = tracker.start("/hello", "GET", System.nanoTime());
+                        if (i % 100 == 0) {
+                            LockSupport.parkNanos(2000);
+                        }
+                        tracker.end(handle);
+                    }
+                }));
+            }
+            for (Future<?> request : requests) {
+                request.get(30, TimeUnit.SECONDS);
+            }
+            running.set(false);
+            reader.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(tracker.active(), is(0));
+        assertThat(tracker.longRunning(System.nanoTime()), is(0));
+    }
+
+}
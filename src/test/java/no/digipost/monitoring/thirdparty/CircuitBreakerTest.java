@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.thirdparty;
+
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.instrument.simple.SimpleConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.digipost.monitoring.micrometer.AppStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.time.Duration;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CircuitBreakerTest {
+
+    private MockClock clock;
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        clock = new MockClock();
+        registry = new SimpleMeterRegistry(SimpleConfig.DEFAULT, clock);
+    }
+
+    @Test
+    void opens_when_failure_rate_reaches_threshold() {
+        CircuitBreaker circuitBreaker = circuitBreaker(CircuitBreaker.Config.slidingWindow(4).failureRateThreshold(0.5));
+
+        record(circuitBreaker, AppStatus.OK, AppStatus.FAILED, AppStatus.WARN);
+        assertThat(circuitBreaker.state(), is(CircuitBreaker.State.CLOSED));
+
+        record(circuitBreaker, AppStatus.FAILED);
+        assertThat(circuitBreaker.state(), is(CircuitBreaker.State.OPEN));
+        assertThrows(CallNotPermittedException.class, circuitBreaker::acquirePermission);
+        assertThat(gauge("open"), is(1.0));
+        assertThat(gauge("closed"), is(0.0));
+        assertThat(registry.get("app_third_party_call_circuit_rejected").counter().count(), is(1.0));
+    }
+
+    @Test
+    void only_considers_the_most_recent_calls() {
+        CircuitBreaker circuitBreaker = circuitBreaker(CircuitBreaker.Config.slidingWindow(4).failureRateThreshold(0.75));
+
+        record(circuitBreaker, AppStatus.FAILED, AppStatus.FAILED, AppStatus.OK, AppStatus.OK, AppStatus.OK, AppStatus.OK, AppStatus.FAILED, AppStatus.FAILED);
+        assertThat(circuitBreaker.state(), is(CircuitBreaker.State.CLOSED));
+
+        record(circuitBreaker, AppStatus.FAILED);
+        assertThat(circuitBreaker.state(), is(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    void waits_for_minimum_calls() {
+        CircuitBreaker circuitBreaker = circuitBreaker(CircuitBreaker.Config.slidingWindow(100).minimumCalls(3));
+
+        record(circuitBreaker, AppStatus.FAILED, AppStatus.FAILED);
+        assertThat(circuitBreaker.state(), is(CircuitBreaker.State.CLOSED));
+
+        record(circuitBreaker, AppStatus.OK);
+        assertThat(circuitBreaker.state(), is(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    void opens_when_slow_call_rate_reaches_threshold() {
+        CircuitBreaker circuitBreaker = circuitBreaker(CircuitBreaker.Config.slidingWindow(2)
+                .failureRateThreshold(1.0)
+                .slowCallThreshold(Duration.ofSeconds(1), 1.0));
+
+        circuitBreaker.onResult(AppStatus.OK, SECONDS.toNanos(1), CircuitBreaker.NOT_TRIAL);
+        circuitBreaker.onResult(AppStatus.OK, SECONDS.toNanos(2), CircuitBreaker.NOT_TRIAL);
+        assertThat(circuitBreaker.state(), is(CircuitBreaker.State.CLOSED));
+
+        circuitBreaker.onResult(AppStatus.OK, SECONDS.toNanos(2), CircuitBreaker.NOT_TRIAL);
+        assertThat(circuitBreaker.state(), is(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    void closes_when_trial_calls_succeed() {
+        CircuitBreaker circuitBreaker = circuitBreaker(CircuitBreaker.Config.slidingWindow(1)
+                .waitInOpen(Duration.ofSeconds(10))
+                .permittedCallsInHalfOpen(2));
+        record(circuitBreaker, AppStatus.FAILED);
+
+        clock.add(Duration.ofSeconds(9));
+        assertThrows(CallNotPermittedException.class, circuitBreaker::acquirePermission);
+
+        clock.add(Duration.ofSeconds(1));
+        long first = circuitBreaker.acquirePermission();
+        long second = circuitBreaker.acquirePermission();
+        assertThat(circuitBreaker.state(), is(CircuitBreaker.State.HALF_OPEN));
+        assertThrows(CallNotPermittedException.class, circuitBreaker::acquirePermission);
+
+        circuitBreaker.onResult(AppStatus.OK, 0, first);
+        assertThat(circuitBreaker.state(), is(CircuitBreaker.State.HALF_OPEN));
+        circuitBreaker.onResult(AppStatus.WARN, 0, second);
+        assertThat(circuitBreaker.state(), is(CircuitBreaker.State.CLOSED));
+        record(circuitBreaker, AppStatus.OK);
+        assertThat(circuitBreaker.state(), is(CircuitBreaker.State.CLOSED));
+        assertThat(registry.get("app_third_party_call_circuit_transitions").tag("state", "closed").counter().count(), is(1.0));
+    }
+
+    @Test
+    void opens_again_when_a_trial_call_fails() {
+        CircuitBreaker circuitBreaker = circuitBreaker(CircuitBreaker.Config.slidingWindow(1).waitInOpen(Duration.ofSeconds(10)));
+        record(circuitBreaker, AppStatus.FAILED);
+        clock.add(Duration.ofSeconds(10));
+        long first = circuitBreaker.acquirePermission();
+        long second = circuitBreaker.acquirePermission();
+
+        circuitBreaker.onResult(AppStatus.OK, 0, first);
+        circuitBreaker.onResult(AppStatus.FAILED, 0, second);
+
+        assertThat(circuitBreaker.state(), is(CircuitBreaker.State.OPEN));
+        assertThrows(CallNotPermittedException.class, circuitBreaker::acquirePermission);
+        assertThat(registry.get("app_third_party_call_circuit_transitions").tag("state", "open").counter().count(), is(2.0));
+    }
+
+    @Test
+    void only_counts_trial_calls_of_the_current_half_open_state() {
+        CircuitBreaker circuitBreaker = circuitBreaker(CircuitBreaker.Config.slidingWindow(1)
+                .waitInOpen(Duration.ofSeconds(10))
+                .permittedCallsInHalfOpen(1));
+        long startedWhileClosed = circuitBreaker.acquirePermission();
+        record(circuitBreaker, AppStatus.FAILED);
+        clock.add(Duration.ofSeconds(10));
+        long firstTrial = circuitBreaker.acquirePermission();
+
+        circuitBreaker.onResult(AppStatus.OK, 0, startedWhileClosed);
+        assertThat("not closed by call started while closed", circuitBreaker.state(), is(CircuitBreaker.State.HALF_OPEN));
+
+        circuitBreaker.onResult(AppStatus.FAILED, 0, firstTrial);
+        clock.add(Duration.ofSeconds(9));
+        assertThrows(CallNotPermittedException.class, circuitBreaker::acquirePermission);
+        clock.add(Duration.ofSeconds(1));
+        long secondTrial = circuitBreaker.acquirePermission();
+
+        circuitBreaker.onResult(AppStatus.OK, 0, firstTrial);
+        assertThat("not closed by trial call of earlier half open state", circuitBreaker.state(), is(CircuitBreaker.State.HALF_OPEN));
+
+        circuitBreaker.onResult(AppStatus.OK, 0, secondTrial);
+        assertThat(circuitBreaker.state(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    void rejects_invalid_permitted_calls_in_half_open() {
+        assertThrows(IllegalArgumentException.class, () -> CircuitBreaker.Config.slidingWindow(1).permittedCallsInHalfOpen(0));
+        assertThrows(IllegalArgumentException.class, () -> CircuitBreaker.Config.slidingWindow(1).permittedCallsInHalfOpen(65536));
+    }
+
+    @ParameterizedTest
+    @ValueSource(doubles = {0, -0.5, 1.01, Double.NaN})
+    void rejects_invalid_rate_thresholds(double rate) {
+        assertThrows(IllegalArgumentException.class, () -> CircuitBreaker.Config.slidingWindow(1).failureRateThreshold(rate));
+        assertThrows(IllegalArgumentException.class, () -> CircuitBreaker.Config.slidingWindow(1).slowCallThreshold(Duration.ofSeconds(1), rate));
+    }
+
+    @ParameterizedTest
+    @ValueSource(longs = {0, -1})
+    void rejects_durations_which_are_not_positive(long millis) {
+        assertThrows(IllegalArgumentException.class, () -> CircuitBreaker.Config.slidingWindow(1).slowCallThreshold(Duration.ofMillis(millis), 0.5));
+        assertThrows(IllegalArgumentException.class, () -> CircuitBreaker.Config.slidingWindow(1).waitInOpen(Duration.ofMillis(millis)));
+    }
+
+    private CircuitBreaker circuitBreaker(CircuitBreaker.Config config) {
+        return new CircuitBreaker("ExternalService_getStuff", config, registry);
+    }
+
+    private static void record(CircuitBreaker circuitBreaker, AppStatus ... statuses) {
+        for (AppStatus status : statuses) {
+            circuitBreaker.onResult(status, 0, CircuitBreaker.NOT_TRIAL);
+        }
+    }
+
+    private double gauge(String state) {
+        return registry.get("app_third_party_call_circuit_state").tag("state", state).gauge().value();
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.digipost.monitoring.thirdparty;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.digipost.monitoring.micrometer.AppStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RetryTest {
+
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void retries_failed_attempts_up_to_max_attempts() {
+        Retry retry = retry(Retry.Config.maxAttempts(3));
+
+        assertThat(retry.shouldRetry(1, AppStatus.FAILED, null), is(true));
+        assertThat(retry.shouldRetry(2, AppStatus.FAILED, new IllegalStateException()), is(true));
+        assertThat(retry.shouldRetry(3, AppStatus.FAILED, null), is(false));
+        assertThat(registry.get("app_third_party_call_retries").counter().count(), is(2.0));
+    }
+
+    @Test
+    void does_not_retry_successful_or_rejected_or_non_retryable_attempts() {
+        Retry retry = retry(Retry.Config.maxAttempts(3).retryOn(thrown -> !(thrown instanceof IllegalArgumentException)));
+
+        assertThat(retry.shouldRetry(1, AppStatus.OK, null), is(false));
+        assertThat(retry.shouldRetry(1, AppStatus.WARN, new IllegalStateException()), is(false));
+        assertThat(retry.shouldRetry(1, AppStatus.FAILED, new IllegalArgumentException()), is(false));
+        assertThat(retry.shouldRetry(1, AppStatus.FAILED, new CallNotPermittedException("rejected")), is(false));
+    }
+
+    @Test
+    void retries_are_limited_by_budget_earned_by_calls() {
+        Retry retry = retry(Retry.Config.maxAttempts(2).budget(0.5, 2));
+
+        assertThat(retry.shouldRetry(1, AppStatus.FAILED, null), is(true));
+        assertThat(retry.shouldRetry(1, AppStatus.FAILED, null), is(true));
+        assertThat(retry.shouldRetry(1, AppStatus.FAILED, null), is(false));
+
+        retry.started();
+        assertThat(retry.shouldRetry(1, AppStatus.FAILED, null), is(false));
+        retry.started();
+        assertThat(retry.shouldRetry(1, AppStatus.FAILED, null), is(true));
+        assertThat(registry.get("app_third_party_call_retry_budget_exhausted").counter().count(), is(2.0));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4, 5})
+    void backoff_grows_exponentially_up_to_max_with_jitter(int retryNumber) {
+        Retry retry = retry(Retry.Config.maxAttempts(6)
+                .backoff(Duration.ofMillis(100), Duration.ofMillis(1000))
+                .jitter(0.5));
+        long expected = Math.min(1000, 100 << (retryNumber - 1));
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(Duration.ofNanos(retry.backoffNanos(retryNumber)).toMillis(),
+                    allOf(greaterThanOrEqualTo(expected / 2), lessThanOrEqualTo(expected)));
+        }
+    }
+
+    @Test
+    void schedules_retry_with_configured_executor_after_backoff() throws Exception {
+        AtomicInteger executed = new AtomicInteger();
+        Retry retry = retry(Retry.Config.maxAttempts(2)
+                .backoff(Duration.ofMillis(1), Duration.ofMillis(1))
+                .executor(task -> {
+                    executed.incrementAndGet();
+                    task.run();
+                }));
+        CountDownLatch retried = new CountDownLatch(1);
+
+        retry.schedule(1, retried::countDown, rejected -> {});
+
+        assertThat(retried.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(executed.get(), is(1));
+    }
+
+    @Test
+    void notifies_retry_rejected_by_executor() throws Exception {
+        Retry retry = retry(Retry.Config.maxAttempts(2)
+                .backoff(Duration.ofMillis(1), Duration.ofMillis(1))
+                .executor(task -> {
+                    throw new RejectedExecutionException("shut down");
+                }));
+        CompletableFuture<RejectedExecutionException> notified = new CompletableFuture<>();
+
+        retry.schedule(1, () -> notified.complete(null), notified::complete);
+
+        assertThat(notified.get(5, TimeUnit.SECONDS).getMessage(), is("shut down"));
+    }
+
+    @Test
+    void rejects_invalid_config() {
+        assertThrows(IllegalArgumentException.class, () -> Retry.Config.maxAttempts(2).jitter(-0.1));
+        assertThrows(IllegalArgumentException.class, () -> Retry.Config.maxAttempts(2).jitter(1.1));
+        assertThrows(IllegalArgumentException.class, () -> Retry.Config.maxAttempts(2).jitter(Double.NaN));
+        assertThrows(IllegalArgumentException.class, () -> Retry.Config.maxAttempts(2).backoff(Duration.ofMillis(1), 0.5, Duration.ofMillis(10)));
+        assertThrows(IllegalArgumentException.class, () -> Retry.Config.maxAttempts(2).backoff(Duration.ofMillis(10), Duration.ofMillis(1)));
+        assertThrows(IllegalArgumentException.class, () -> Retry.Config.maxAttempts(2).budget(-0.1, 10));
+        assertThrows(IllegalArgumentException.class, () -> Retry.Config.maxAttempts(2).budget(0.1, -1));
+        assertThrows(NullPointerException.class, () -> Retry.Config.maxAttempts(2).executor(null));
+    }
+
+    private Retry retry(Retry.Config config) {
+        return new Retry("ExternalService_getStuff", config, registry, 0.5);
+    }
+
+}
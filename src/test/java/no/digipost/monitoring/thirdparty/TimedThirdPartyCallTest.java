@@ -21,13 +21,31 @@ import no.digipost.monitoring.micrometer.AppStatus;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
 
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
@@ -143,6 +161,106 @@ class TimedThirdPartyCallTest {
         assertSendOK();
     }
 
+    @Test
+    void should_map_status_with_nullable_exception() {
+        final TimedThirdPartyCall<MyResponse> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .callStatus((response, thrown) -> thrown != null || "ERROR_SITUATION".equals(response.data) ? AppStatus.WARN : AppStatus.OK);
+
+        getStuff.call(() -> new MyResponse("ERROR_SITUATION"));
+
+        assertSendWarn();
+    }
+
+    @Test
+    void should_pass_exception_to_status_mapper_and_rethrow() {
+        IllegalStateException failure = new IllegalStateException("Whoohaa");
+        final TimedThirdPartyCall<String> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .callStatus((response, thrown) -> thrown == failure ? AppStatus.FAILED : AppStatus.OK);
+
+        IllegalStateException thrown = assertThrows(IllegalStateException.class, () -> getStuff.call(() -> {
+            throw failure;
+        }));
+
+        assertThat(thrown, is(failure));
+        assertSendFailed();
+    }
+
+    @Test
+    void should_record_async_call_when_completed() {
+        final TimedThirdPartyCall<MyResponse> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .callStatus((response, thrown) -> thrown != null || "ERROR_SITUATION".equals(response.data) ? AppStatus.WARN : AppStatus.OK);
+        CompletableFuture<MyResponse> response = new CompletableFuture<>();
+
+        CompletionStage<MyResponse> result = getStuff.callAsync(() -> response);
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_seconds_count{name=\"ExternalService_getStuff\"} 0"));
+
+        response.complete(new MyResponse("ERROR_SITUATION"));
+        assertThat(result.toCompletableFuture().join().data, is("ERROR_SITUATION"));
+        assertSendWarn();
+    }
+
+    @Test
+    void should_record_failed_async_call_and_propagate_exception() {
+        final TimedThirdPartyCall<String> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .callStatus((response, thrown) -> thrown instanceof IllegalStateException ? AppStatus.FAILED : AppStatus.OK);
+        CompletableFuture<String> response = new CompletableFuture<>();
+
+        CompletionStage<String> result = getStuff.callAsync(() -> response);
+        response.completeExceptionally(new IllegalStateException("Whoohaa"));
+
+        CompletionException thrown = assertThrows(CompletionException.class, () -> result.toCompletableFuture().join());
+        assertThat(thrown.getCause().getMessage(), is("Whoohaa"));
+        assertSendFailed();
+    }
+
+    @Test
+    void should_record_async_call_failing_to_start() {
+        final TimedThirdPartyCall<String> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .exceptionAsFailure();
+
+        assertThrows(IllegalStateException.class, () -> getStuff.callAsync(() -> {
+            throw new IllegalStateException("Whoohaa");
+        }));
+
+        assertSendFailed();
+    }
+
+    @Test
+    void should_record_each_subscription_to_publisher_when_completed() {
+        final TimedThirdPartyCall<String> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .exceptionAndNullAsFailure();
+        SubmissionPublisher<String> publisher = new SubmissionPublisher<>(Runnable::run, Flow.defaultBufferSize());
+        List<String> received = new ArrayList<>();
+
+        getStuff.callPublisher(publisher).subscribe(new Flow.Subscriber<String>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(String item) {
+                received.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+                received.add("completed");
+            }
+        });
+        publisher.submit("first");
+        publisher.submit("last");
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_seconds_count{name=\"ExternalService_getStuff\"} 0"));
+
+        publisher.close();
+        assertThat(received, contains("first", "last", "completed"));
+        assertSendOK();
+    }
+
     @Test
     void define_percentiles() {
         final TimedThirdPartyCall<MyResponse> getStuff = TimedThirdPartyCallDescriptor
@@ -176,6 +294,326 @@ class TimedThirdPartyCallTest {
         assertSendFailed();
     }
 
+    @Test
+    void open_circuit_breaker_rejects_calls_without_calling() {
+        final TimedThirdPartyCall<String> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .circuitBreaker(CircuitBreaker.Config.slidingWindow(1))
+                .exceptionAsFailure();
+        assertThrows(IllegalStateException.class, () -> getStuff.call(() -> {
+            throw new IllegalStateException("Whoohaa");
+        }));
+
+        assertThrows(CallNotPermittedException.class, () -> getStuff.call(() -> "OK"));
+        CompletionException rejected = assertThrows(CompletionException.class, () -> getStuff.callAsync(() -> CompletableFuture.completedFuture("OK")).toCompletableFuture().join());
+
+        assertThat(rejected.getCause(), instanceOf(CallNotPermittedException.class));
+        assertSendFailed();
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_circuit_state{name=\"ExternalService_getStuff\",state=\"open\"} 1.0"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_circuit_rejected_total{name=\"ExternalService_getStuff\"} 2.0"));
+    }
+
+    @Test
+    void full_bulkhead_rejects_calls_without_calling() {
+        final TimedThirdPartyCall<String> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .bulkhead(Bulkhead.Config.maxConcurrentCalls(1))
+                .exceptionAsFailure();
+        CompletableFuture<String> response = new CompletableFuture<>();
+        CompletionStage<String> inFlight = getStuff.callAsync(() -> response);
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_in_flight{name=\"ExternalService_getStuff\"} 1.0"));
+
+        assertThrows(CallNotPermittedException.class, () -> getStuff.call(() -> "OK"));
+        response.complete("OK");
+        inFlight.toCompletableFuture().join();
+
+        assertThat(getStuff.call(() -> "OK"), is("OK"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_in_flight{name=\"ExternalService_getStuff\"} 0.0"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_bulkhead_rejected_total{name=\"ExternalService_getStuff\"} 1.0"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_total{name=\"ExternalService_getStuff\",status=\"OK\"} 2.0"));
+    }
+
+    @Test
+    void cancels_call_run_by_executor_after_timeout() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final NoResultTimedThirdPartyCall getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                    .bulkhead(Bulkhead.Config.maxConcurrentCalls(1).timeout(Duration.ofMillis(20), executor))
+                    .noResult().exceptionAsFailure();
+            CountDownLatch interrupted = new CountDownLatch(1);
+
+            assertThrows(CallTimeoutException.class, () -> getStuff.call(() -> {
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }));
+
+            assertThat(interrupted.await(5, TimeUnit.SECONDS), is(true));
+            executor.submit(() -> {}).get(5, TimeUnit.SECONDS);
+            assertSendFailed();
+            assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_timed_out_total{name=\"ExternalService_getStuff\"} 1.0"));
+            assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_in_flight{name=\"ExternalService_getStuff\"} 0.0"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void call_run_by_executor_holds_permission_until_it_ends_after_timeout() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final NoResultTimedThirdPartyCall getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                    .bulkhead(Bulkhead.Config.maxConcurrentCalls(1).timeout(Duration.ofMillis(20), executor))
+                    .noResult().exceptionAsFailure();
+            CountDownLatch ended = new CountDownLatch(1);
+
+            assertThrows(CallTimeoutException.class, () -> getStuff.call(() -> {
+                while (true) {
+                    try {
+                        ended.await();
+                        return;
+                    } catch (InterruptedException ignoringInterrupt) {
+                    }
+                }
+            }));
+
+            assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_in_flight{name=\"ExternalService_getStuff\"} 1.0"));
+            assertThrows(CallNotPermittedException.class, () -> getStuff.call(() -> {}));
+            ended.countDown();
+            executor.submit(() -> {}).get(5, TimeUnit.SECONDS);
+            assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_in_flight{name=\"ExternalService_getStuff\"} 0.0"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void releases_permission_of_call_timed_out_before_executor_started_it() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final NoResultTimedThirdPartyCall getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                    .bulkhead(Bulkhead.Config.maxConcurrentCalls(1).timeout(Duration.ofMillis(20), executor))
+                    .noResult().exceptionAsFailure();
+            CountDownLatch busy = new CountDownLatch(1);
+            executor.submit(() -> {
+                busy.await();
+                return null;
+            });
+            AtomicInteger calls = new AtomicInteger();
+
+            assertThrows(CallTimeoutException.class, () -> getStuff.call(calls::incrementAndGet));
+
+            assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_in_flight{name=\"ExternalService_getStuff\"} 0.0"));
+            busy.countDown();
+            executor.submit(() -> {}).get(5, TimeUnit.SECONDS);
+            assertThat(calls.get(), is(0));
+            assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_in_flight{name=\"ExternalService_getStuff\"} 0.0"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void completes_async_call_after_timeout_with_configured_status() {
+        final TimedThirdPartyCall<String> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .bulkhead(Bulkhead.Config.maxConcurrentCalls(1).timeout(Duration.ofMillis(20)).timeoutStatus(AppStatus.WARN))
+                .exceptionAsFailure();
+
+        CompletableFuture<String> call = new CompletableFuture<>();
+        CompletionStage<String> result = getStuff.callAsync(() -> call);
+
+        CompletionException thrown = assertThrows(CompletionException.class, () -> result.toCompletableFuture().join());
+        assertThat(thrown.getCause(), instanceOf(TimeoutException.class));
+        assertThat("stage of the call left as it is", call.isDone(), is(false));
+        assertSendWarn();
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_timed_out_total{name=\"ExternalService_getStuff\"} 1.0"));
+    }
+
+    @Test
+    void async_call_holds_permission_until_its_stage_completes_after_timeout() {
+        final TimedThirdPartyCall<String> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .bulkhead(Bulkhead.Config.maxConcurrentCalls(1).timeout(Duration.ofMillis(20)))
+                .exceptionAsFailure();
+        CompletableFuture<String> call = new CompletableFuture<>();
+
+        CompletionException timedOut = assertThrows(CompletionException.class, () -> getStuff.callAsync(() -> call).toCompletableFuture().join());
+        assertThat(timedOut.getCause(), instanceOf(TimeoutException.class));
+
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_in_flight{name=\"ExternalService_getStuff\"} 1.0"));
+        CompletionException rejected = assertThrows(CompletionException.class,
+                () -> getStuff.callAsync(() -> CompletableFuture.completedFuture("OK")).toCompletableFuture().join());
+        assertThat(rejected.getCause(), instanceOf(CallNotPermittedException.class));
+
+        call.complete("late");
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_in_flight{name=\"ExternalService_getStuff\"} 0.0"));
+        assertThat(getStuff.callAsync(() -> CompletableFuture.completedFuture("OK")).toCompletableFuture().join(), is("OK"));
+    }
+
+    @Test
+    void rejects_invalid_bulkhead_timeout() {
+        assertThrows(IllegalArgumentException.class, () -> Bulkhead.Config.maxConcurrentCalls(1).timeout(null));
+        assertThrows(IllegalArgumentException.class, () -> Bulkhead.Config.maxConcurrentCalls(1).timeout(Duration.ZERO));
+        assertThrows(IllegalArgumentException.class, () -> Bulkhead.Config.maxConcurrentCalls(1).timeout(Duration.ofSeconds(-1)));
+        assertThrows(NullPointerException.class, () -> Bulkhead.Config.maxConcurrentCalls(1).timeout(Duration.ofSeconds(1), null));
+    }
+
+    @Test
+    void cancelled_subscription_releases_bulkhead() {
+        final TimedThirdPartyCall<String> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .bulkhead(Bulkhead.Config.maxConcurrentCalls(1))
+                .exceptionAsFailure();
+        SubmissionPublisher<String> publisher = new SubmissionPublisher<>(Runnable::run, Flow.defaultBufferSize());
+
+        getStuff.callPublisher(publisher).subscribe(new Flow.Subscriber<String>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.cancel();
+            }
+
+            @Override
+            public void onNext(String item) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_in_flight{name=\"ExternalService_getStuff\"} 0.0"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_seconds_count{name=\"ExternalService_getStuff\"} 0"));
+    }
+
+    @Test
+    void cancelled_trial_subscriptions_give_back_half_open_permits() {
+        final TimedThirdPartyCall<String> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .circuitBreaker(CircuitBreaker.Config.slidingWindow(1).waitInOpen(Duration.ofNanos(1)).permittedCallsInHalfOpen(1))
+                .bulkhead(Bulkhead.Config.maxConcurrentCalls(1))
+                .exceptionAsFailure();
+        assertThrows(IllegalStateException.class, () -> getStuff.call(() -> {
+            throw new IllegalStateException("Whoohaa");
+        }));
+        List<Throwable> errors = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+            getStuff.callPublisher(new SubmissionPublisher<>(Runnable::run, Flow.defaultBufferSize())).subscribe(cancelling(errors));
+        }
+        assertThat(errors, is(List.of()));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_circuit_state{name=\"ExternalService_getStuff\",state=\"half_open\"} 1.0"));
+
+        assertThat(getStuff.call(() -> "OK"), is("OK"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_circuit_state{name=\"ExternalService_getStuff\",state=\"closed\"} 1.0"));
+    }
+
+    @Test
+    void subscription_throwing_gives_back_permits() {
+        final TimedThirdPartyCall<String> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .circuitBreaker(CircuitBreaker.Config.slidingWindow(1).waitInOpen(Duration.ofNanos(1)).permittedCallsInHalfOpen(1))
+                .bulkhead(Bulkhead.Config.maxConcurrentCalls(1))
+                .exceptionAsFailure();
+        assertThrows(IllegalStateException.class, () -> getStuff.call(() -> {
+            throw new IllegalStateException("Whoohaa");
+        }));
+        Flow.Publisher<String> throwing = subscriber -> {
+            throw new IllegalStateException("Unable to subscribe");
+        };
+
+        assertThrows(IllegalStateException.class, () -> getStuff.callPublisher(throwing).subscribe(cancelling(new ArrayList<>())));
+
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_in_flight{name=\"ExternalService_getStuff\"} 0.0"));
+        assertThat(getStuff.call(() -> "OK"), is("OK"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_circuit_state{name=\"ExternalService_getStuff\",state=\"closed\"} 1.0"));
+    }
+
+    @Test
+    void retries_failed_attempts_and_times_each_attempt_and_whole_call() {
+        final TimedThirdPartyCall<String> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .retry(Retry.Config.maxAttempts(3).backoff(Duration.ofMillis(1), Duration.ofMillis(1)))
+                .exceptionAsFailure();
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = getStuff.call(() -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new IllegalStateException("Whoohaa");
+            }
+            return "OK";
+        });
+
+        assertThat(result, is("OK"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_total{name=\"ExternalService_getStuff\",status=\"FAILED\"} 2.0"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_total{name=\"ExternalService_getStuff\",status=\"OK\"} 1.0"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_seconds_count{name=\"ExternalService_getStuff\"} 3"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_including_retries_seconds_count{name=\"ExternalService_getStuff\"} 1"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_retries_total{name=\"ExternalService_getStuff\"} 2.0"));
+    }
+
+    @Test
+    void throws_exception_of_last_attempt_when_attempts_are_exhausted() {
+        final NoResultTimedThirdPartyCall getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .retry(Retry.Config.maxAttempts(2).backoff(Duration.ofMillis(1), Duration.ofMillis(1)))
+                .noResult().exceptionAsFailure();
+        AtomicInteger attempts = new AtomicInteger();
+
+        IllegalStateException thrown = assertThrows(IllegalStateException.class, () -> getStuff.call(() -> {
+            throw new IllegalStateException("Attempt " + attempts.incrementAndGet());
+        }));
+
+        assertThat(thrown.getMessage(), is("Attempt 2"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_total{name=\"ExternalService_getStuff\",status=\"FAILED\"} 2.0"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_including_retries_seconds_count{name=\"ExternalService_getStuff\"} 1"));
+    }
+
+    @Test
+    void retries_failed_async_attempts_without_blocking() {
+        final TimedThirdPartyCall<String> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .retry(Retry.Config.maxAttempts(3).backoff(Duration.ofMillis(1), Duration.ofMillis(1)))
+                .exceptionAsFailure();
+        AtomicInteger attempts = new AtomicInteger();
+
+        CompletionStage<String> result = getStuff.callAsync(() -> attempts.incrementAndGet() < 2
+                ? CompletableFuture.failedFuture(new IllegalStateException("Whoohaa"))
+                : CompletableFuture.completedFuture("OK"));
+
+        assertThat(result.toCompletableFuture().join(), is("OK"));
+        assertThat(attempts.get(), is(2));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_total{name=\"ExternalService_getStuff\",status=\"FAILED\"} 1.0"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_total{name=\"ExternalService_getStuff\",status=\"OK\"} 1.0"));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_including_retries_seconds_count{name=\"ExternalService_getStuff\"} 1"));
+    }
+
+    @Test
+    void completes_async_call_when_executor_rejects_retry() {
+        final TimedThirdPartyCall<String> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .retry(Retry.Config.maxAttempts(3).backoff(Duration.ofMillis(1), Duration.ofMillis(1)).executor(task -> {
+                    throw new RejectedExecutionException("shut down");
+                }))
+                .exceptionAsFailure();
+
+        CompletionStage<String> result = getStuff.callAsync(() -> CompletableFuture.failedFuture(new IllegalStateException("Whoohaa")));
+
+        ExecutionException thrown = assertThrows(ExecutionException.class, () -> result.toCompletableFuture().get(5, TimeUnit.SECONDS));
+        assertThat(thrown.getCause(), instanceOf(RejectedExecutionException.class));
+        assertThat(thrown.getCause().getSuppressed()[0], instanceOf(IllegalStateException.class));
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_including_retries_seconds_count{name=\"ExternalService_getStuff\"} 1"));
+    }
+
+    @Test
+    void no_stage_from_async_call_fails_the_attempt() {
+        final TimedThirdPartyCall<String> getStuff = TimedThirdPartyCallDescriptor.create("ExternalService", "getStuff", prometheusRegistry)
+                .circuitBreaker(CircuitBreaker.Config.slidingWindow(1))
+                .retry(Retry.Config.maxAttempts(1))
+                .exceptionAsFailure();
+
+        CompletionException thrown = assertThrows(CompletionException.class, () -> getStuff.callAsync(() -> null).toCompletableFuture().join());
+
+        assertThat(thrown.getCause(), instanceOf(NullPointerException.class));
+        assertSendFailed();
+        assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_circuit_state{name=\"ExternalService_getStuff\",state=\"open\"} 1.0"));
+    }
+
     void assertSendOK() {
         assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_total{name=\"ExternalService_getStuff\",status=\"OK\"} 1.0"));
         assertThat(prometheusRegistry.scrape(), containsString("app_third_party_call_total{name=\"ExternalService_getStuff\",status=\"FAILED\"} 0.0"));
@@ -205,4 +643,27 @@ class TimedThirdPartyCallTest {
             this.data = data;
         }
     }
+
+    private static <T> Flow.Subscriber<T> cancelling(List<Throwable> errors) {
+        return new Flow.Subscriber<T>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.cancel();
+            }
+
+            @Override
+            public void onNext(T item) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                errors.add(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        };
+    }
+
 }